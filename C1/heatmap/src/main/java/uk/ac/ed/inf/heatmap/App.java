@@ -15,13 +15,13 @@ public class App {
      * Constants the program depends on are stored here so they can be changed easily
      * It has been assumed the confinement area is defined by a maximum and minimum longitude and latitude
      */
-    private static final double MINIMUM_LONGITUDE = -3.192473;
-    private static final double MAXIMUM_LONGITUDE = -3.184319;
-    private static final double MINIMUM_LATITUDE = 55.942617;
-    private static final double MAXIMUM_LATITUDE = 55.946233;
+    static final double MINIMUM_LONGITUDE = -3.192473;
+    static final double MAXIMUM_LONGITUDE = -3.184319;
+    static final double MINIMUM_LATITUDE = 55.942617;
+    static final double MAXIMUM_LATITUDE = 55.946233;
     private static final int GRID_WIDTH = 10;
     private static final int GRID_HEIGHT = 10;
-    private static final double FILL_OPACITY = 0.75;
+    static final double FILL_OPACITY = 0.75;
     
     /*
      * These are also constants the program depends on, but are calculated from other constants rather 
@@ -31,8 +31,70 @@ public class App {
     private static final double RECTANGE_HIGHT = (MAXIMUM_LATITUDE - MINIMUM_LATITUDE) / GRID_WIDTH; 
     
     
-    public static void main(String[] args) throws IOException { 
-        var input = new BufferedReader(new FileReader(new File(args[0])));
+    public static void main(String[] args) throws IOException, InterruptedException { 
+        /*
+         * Any further arguments are options for large grids:
+         *   --large       read the grid size from the predictions file and stream the output, see StreamingHeatmap
+         *   --mmap        read the predictions through a memory mapped file, implies --large
+         *   --threads n   the number of threads to use, by default one per available processor, implies --large
+         *   --merge       merge neighbouring cells of the same color into larger polygons, implies --large
+         *   --levels n    also write n coarser heatmaps, each half the resolution of the last, implies --large
+         */
+        var large = false;
+        var memoryMapped = false;
+        var merged = false;
+        var levels = 0;
+        var threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--large")) {
+                large = true;
+            } else if (args[i].equals("--mmap")) {
+                large = true;
+                memoryMapped = true;
+            } else if (args[i].equals("--merge")) {
+                large = true;
+                merged = true;
+            } else if (args[i].equals("--levels") && i + 1 < args.length) {
+                large = true;
+                try {
+                    levels = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    levels = -1;
+                }
+                if (levels < 0 || levels > 30) {
+                    System.out.println("The number of levels should be a whole number from 0 to 30.");
+                    System.exit(1);
+                }
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                large = true;
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    System.out.println("The number of threads should be a positive whole number.");
+                    System.exit(1);
+                }
+            } else {
+                System.out.println("Unrecognised option " + args[i] + ". Options are --large, --mmap, --threads n, --merge and --levels n.");
+                System.exit(1);
+            }
+        }
+        
+        if (large) {
+            new StreamingHeatmap(threads, memoryMapped, merged, levels).render(new File(args[0]), new File("heatmap.geojson"));
+            System.out.println("Finished");
+            return;
+        }
+        
+        writeHeatmap(new File(args[0]), new File("heatmap.geojson"));
+        System.out.println("Finished");
+    }
+    
+    // Writes the heatmap for a grid of the fixed size to the output file
+    static void writeHeatmap(File inputFile, File outputFile) throws IOException {
+        var input = new BufferedReader(new FileReader(inputFile));
         var heatmap = new ArrayList<Feature>();
         
         for (int i = 0; i < GRID_HEIGHT; i++) {
@@ -82,14 +144,13 @@ public class App {
         }
         
         input.close();
-        var output = new FileWriter("heatmap.geojson");
+        var output = new FileWriter(outputFile);
         output.write(FeatureCollection.fromFeatures(heatmap).toJson());
         output.close();
-        System.out.println("Finished");
     }
     
     // Maps an air quality estimate to its associated color code
-    private static String getAirQualityColor(int airQuality) {
+    static String getAirQualityColor(int airQuality) {
         if (airQuality >= 0 && airQuality < 32) {
             return "#00ff00";
         } else if (airQuality >= 32 && airQuality < 64) {
@@ -0,0 +1,43 @@
+package uk.ac.ed.inf.heatmap;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+// A GeoJSON feature collection written to a file through a buffer, given features already formatted as JSON
+class FeatureFile implements Closeable {
+
+    private final BufferedWriter writer;
+    private boolean empty;
+
+    FeatureFile(File file) throws IOException {
+        writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+        writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+        empty = true;
+    }
+
+    // Writes one feature, or several separated by commas. Nothing is written if there are none
+    void write(CharSequence features) throws IOException {
+        if (features.length() == 0) {
+            return;
+        }
+        if (!empty) {
+            writer.write(',');
+        }
+        writer.append(features);
+        empty = false;
+    }
+
+    // Finishes the collection and closes the file
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.write("]}");
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package uk.ac.ed.inf.heatmap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Merges neighbouring cells of the same color into rectangles, so large areas of one color are written as a single
+ * polygon rather than one per cell. Each row is first split into runs of cells of the same color. A run exactly 
+ * matching a run on the row above, in both columns and color, extends that rectangle down a row. Any rectangle not 
+ * extended is finished and written. Only the rectangles open on the previous row are held, so memory depends on the 
+ * width of the grid rather than its size.
+ */
+class RegionMerger {
+
+    // Receives finished rectangles. Edges are numbered in cells from the top left, right and bottom being exclusive
+    interface RectangleWriter {
+        void writeRectangle(int left, int right, int top, int bottom, String color) throws IOException;
+    }
+
+    private final RectangleWriter writer;
+    // Rectangles which reached the last row added, in order of their left edge
+    private List<Run> open;
+
+    RegionMerger(RectangleWriter writer) {
+        this.writer = writer;
+        open = new ArrayList<>();
+    }
+
+    // Rows must be added in order. Colors are null for cells which shouldn't be drawn
+    void addRow(int row, String[] colors) throws IOException {
+        var runs = new ArrayList<Run>();
+        for (int j = 0; j < colors.length; j++) {
+            if (colors[j] == null) {
+                continue;
+            }
+            var start = j;
+            while (j + 1 < colors.length && colors[j].equals(colors[j + 1])) {
+                j++;
+            }
+            runs.add(new Run(start, j + 1, colors[j], row));
+        }
+
+        // Both lists are in order of their left edge, so matching runs are found by walking them together
+        var openIndex = 0;
+        for (var run : runs) {
+            while (openIndex < open.size() && open.get(openIndex).left < run.left) {
+                write(open.get(openIndex++), row);
+            }
+            if (openIndex < open.size() && open.get(openIndex).matches(run)) {
+                run.top = open.get(openIndex++).top;
+            }
+        }
+        while (openIndex < open.size()) {
+            write(open.get(openIndex++), row);
+        }
+        open = runs;
+    }
+
+    // Writes the rectangles still open, given the number of rows added
+    void finish(int rows) throws IOException {
+        for (var run : open) {
+            write(run, rows);
+        }
+        open = new ArrayList<>();
+    }
+
+    private void write(Run run, int bottom) throws IOException {
+        writer.writeRectangle(run.left, run.right, run.top, bottom, run.color);
+    }
+
+    private static class Run {
+        private final int left;
+        private final int right;
+        private final String color;
+        // Row the rectangle this run belongs to starts on
+        private int top;
+
+        private Run(int left, int right, String color, int top) {
+            this.left = left;
+            this.right = right;
+            this.color = color;
+            this.top = top;
+        }
+
+        private boolean matches(Run other) {
+            return left == other.left && right == other.right && color.equals(other.color);
+        }
+    }
+}
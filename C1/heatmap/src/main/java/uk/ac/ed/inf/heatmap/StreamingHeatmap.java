@@ -0,0 +1,489 @@
+package uk.ac.ed.inf.heatmap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mapbox.geojson.utils.GeoJsonUtils;
+
+/*
+ * Generates heatmaps from predictions grids of any size, without holding the grid or the output in memory.
+ * The number of rows is the number of lines before the first empty line or the end of the file, and the number of 
+ * columns is the number of values on the first row. Rows are parsed by scanning for commas rather than with a regular 
+ * expression, and can be read from a memory mapped file rather than through a stream.
+ * Rows are handled in blocks: each row of a block is parsed and formatted as GeoJSON on a pool of threads, then the 
+ * block is written out in order. Polygons are written directly as text in the same form FeatureCollection.toJson uses, 
+ * so a grid gives the same output as App would give for it with the grid size set to match.
+ * Optionally cells of the same color are merged into larger rectangles, see RegionMerger, and coarser copies of the 
+ * heatmap are written alongside it. Level k of this pyramid has cells 2^k times as wide and high, each colored by the 
+ * average of the predictions it covers, and is written to the output file name with -k added.
+ */
+public class StreamingHeatmap {
+
+    // Each thread is given this many rows per block, enough to keep threads busy without holding much output at once
+    private static final int ROWS_PER_THREAD = 4;
+    // Marks a cell with no valid prediction
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    private final int threads;
+    private final boolean memoryMapped;
+    private final boolean merged;
+    private final int levels;
+
+    public StreamingHeatmap(int threads, boolean memoryMapped) {
+        this(threads, memoryMapped, false, 0);
+    }
+
+    // Levels is the number of coarser heatmaps to write in addition to the full heatmap
+    public StreamingHeatmap(int threads, boolean memoryMapped, boolean merged, int levels) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        if (levels < 0 || levels > 30) {
+            throw new IllegalArgumentException("The number of levels must be between 0 and 30");
+        }
+        this.threads = threads;
+        this.memoryMapped = memoryMapped;
+        this.merged = merged;
+        this.levels = levels;
+    }
+
+    public void render(File input, File output) throws IOException, InterruptedException {
+        // Files too large to map in one piece are streamed instead
+        var rows = memoryMapped && input.length() <= Integer.MAX_VALUE ? new MappedRows(input) : new StreamedRows(input);
+        var executor = Executors.newFixedThreadPool(threads);
+        var layers = new ArrayList<Layer>();
+        try (rows) {
+            if (rows.getRowCount() == 0) {
+                System.out.println("expected at least one row but found 0");
+            }
+            var grid = new Grid(rows.getRowCount(), rows.getColumnCount());
+            for (int level = 0; level <= levels; level++) {
+                layers.add(new Layer(grid, level, merged, level == 0 ? output : getLevelFile(output, level)));
+            }
+            // Cells are only formatted while parsing if the full heatmap is written one cell at a time
+            var formatCells = !merged;
+
+            var blockSize = threads * ROWS_PER_THREAD;
+            for (int blockStart = 0; blockStart < grid.rows; blockStart += blockSize) {
+                var results = new ArrayList<Future<RowOutput>>();
+                for (int i = blockStart; i < grid.rows && i < blockStart + blockSize; i++) {
+                    var row = rows.next();
+                    var rowIndex = i;
+                    Callable<RowOutput> task = () -> parseRow(row, rowIndex, grid, formatCells);
+                    results.add(executor.submit(task));
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    var rowOutput = await(results.get(i));
+                    System.out.print(rowOutput.messages);
+                    for (var layer : layers) {
+                        layer.addRow(blockStart + i, rowOutput);
+                    }
+                }
+            }
+            for (var layer : layers) {
+                layer.finish();
+            }
+        } finally {
+            executor.shutdownNow();
+            for (var layer : layers) {
+                layer.close();
+            }
+        }
+    }
+
+    // heatmap.geojson becomes heatmap-1.geojson for level 1
+    static File getLevelFile(File output, int level) {
+        var name = output.getName();
+        var extension = name.lastIndexOf('.');
+        var levelName = extension < 0 ? name + "-" + level : name.substring(0, extension) + "-" + level + name.substring(extension);
+        return new File(output.getParentFile(), levelName);
+    }
+
+    private static RowOutput await(Future<RowOutput> result) throws IOException, InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw new IOException("A row of the predictions could not be processed", e.getCause());
+        }
+    }
+
+    /*
+     * Parses one row, giving the prediction for each cell along with any messages for the user. If asked, the cells
+     * are also formatted as features separated by commas.
+     */
+    private static RowOutput parseRow(Row row, int rowIndex, Grid grid, boolean formatCells) {
+        var output = new RowOutput(grid.columns);
+        var fields = row.splitFields();
+
+        if (fields.size() / 2 != grid.columns) {
+            output.messages.append("expected " + grid.columns + " values on row " + (rowIndex + 1) + " but found " + fields.size() / 2 + "\n");
+        }
+
+        // We choose to map at most the number of values on the first row, even if more are provided
+        for (int j = 0; j < fields.size() / 2 && j < grid.columns; j++) {
+            String color;
+            int prediction;
+            try {
+                prediction = row.parseInt(fields.get(2 * j), fields.get(2 * j + 1));
+                color = App.getAirQualityColor(prediction);
+            } catch (IllegalArgumentException e) {
+                output.messages.append("An error occurred when processing entry " + (j + 1) + " on row " + (rowIndex + 1)
+                        + ". Please insure this entry is a valid integer with a specified color mapping. This entry will be skipped.\n");
+                continue;
+            }
+
+            output.predictions[j] = prediction;
+            if (formatCells) {
+                if (output.features.length() > 0) {
+                    output.features.append(',');
+                }
+                grid.appendRectangle(output.features, j, j + 1, rowIndex, rowIndex + 1, color);
+            }
+        }
+        return output;
+    }
+
+    /*
+     * The size of the full grid, with the coordinates of the cell edges formatted once rather than for every cell.
+     * Edges are numbered from 0 at the top left, so cell (i, j) lies between row edges i and i + 1 and column edges 
+     * j and j + 1.
+     */
+    private static class Grid {
+        private final int rows;
+        private final int columns;
+        private final String[] longitudes;
+        private final String[] latitudes;
+
+        private Grid(int rows, int columns) {
+            this.rows = rows;
+            this.columns = columns;
+            var width = (App.MAXIMUM_LONGITUDE - App.MINIMUM_LONGITUDE) / columns;
+            longitudes = new String[columns + 1];
+            for (int j = 0; j <= columns; j++) {
+                longitudes[j] = Double.toString(GeoJsonUtils.trim(App.MINIMUM_LONGITUDE + j * width));
+            }
+            var height = (App.MAXIMUM_LATITUDE - App.MINIMUM_LATITUDE) / rows;
+            latitudes = new String[rows + 1];
+            for (int i = 0; i <= rows; i++) {
+                latitudes[i] = Double.toString(GeoJsonUtils.trim(App.MAXIMUM_LATITUDE - i * height));
+            }
+        }
+
+        // Formats the rectangle between the given edges as a feature, with corners in the same order as App uses
+        private void appendRectangle(StringBuilder features, int left, int right, int top, int bottom, String color) {
+            features.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[[");
+            features.append(longitudes[left]).append(',').append(latitudes[top]).append("],[");
+            features.append(longitudes[left]).append(',').append(latitudes[bottom]).append("],[");
+            features.append(longitudes[right]).append(',').append(latitudes[bottom]).append("],[");
+            features.append(longitudes[right]).append(',').append(latitudes[top]).append("],[");
+            features.append(longitudes[left]).append(',').append(latitudes[top]);
+            features.append("]]]},\"properties\":{\"rgb-string\":\"").append(color).append("\",\"fill\":\"").append(color)
+                    .append("\",\"fill-opacity\":").append(App.FILL_OPACITY).append("}}");
+        }
+    }
+
+    /*
+     * One output file, either the full heatmap or a level of the pyramid. The full grid is divided into cells of
+     * scale by scale full cells, fewer at the right and bottom edges if the grid doesn't divide exactly. 
+     */
+    private static class Layer implements RegionMerger.RectangleWriter {
+        private final Grid grid;
+        private final int scale;
+        private final FeatureFile output;
+        // Null if cells are written one at a time
+        private final RegionMerger merger;
+        private final long[] sums;
+        private final int[] counts;
+        private final StringBuilder features;
+
+        private Layer(Grid grid, int level, boolean merged, File file) throws IOException {
+            this.grid = grid;
+            scale = 1 << level;
+            output = new FeatureFile(file);
+            merger = merged ? new RegionMerger(this) : null;
+            var columns = (grid.columns + scale - 1) / scale;
+            sums = new long[columns];
+            counts = new int[columns];
+            features = new StringBuilder();
+        }
+
+        private void addRow(int rowIndex, RowOutput row) throws IOException {
+            // The full heatmap may already have been formatted while parsing
+            if (scale == 1 && merger == null) {
+                output.write(row.features);
+                return;
+            }
+
+            for (int j = 0; j < grid.columns; j++) {
+                if (row.predictions[j] != MISSING) {
+                    sums[j / scale] += row.predictions[j];
+                    counts[j / scale]++;
+                }
+            }
+            if ((rowIndex + 1) % scale == 0 || rowIndex == grid.rows - 1) {
+                addCellRow(rowIndex / scale);
+            }
+        }
+
+        // Colors each cell of a completed row of this layer by the average prediction it covers
+        private void addCellRow(int cellRow) throws IOException {
+            var colors = new String[sums.length];
+            for (int j = 0; j < sums.length; j++) {
+                if (counts[j] > 0) {
+                    colors[j] = App.getAirQualityColor((int) Math.round((double) sums[j] / counts[j]));
+                }
+            }
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+
+            if (merger != null) {
+                merger.addRow(cellRow, colors);
+            } else {
+                for (int j = 0; j < colors.length; j++) {
+                    if (colors[j] != null) {
+                        writeRectangle(j, j + 1, cellRow, cellRow + 1, colors[j]);
+                    }
+                }
+            }
+        }
+
+        private void finish() throws IOException {
+            if (merger != null) {
+                merger.finish((grid.rows + scale - 1) / scale);
+            }
+        }
+
+        // Takes edges numbered in cells of this layer
+        @Override
+        public void writeRectangle(int left, int right, int top, int bottom, String color) throws IOException {
+            features.setLength(0);
+            grid.appendRectangle(features, left * scale, Math.min(right * scale, grid.columns),
+                    top * scale, Math.min(bottom * scale, grid.rows), color);
+            output.write(features);
+        }
+
+        private void close() throws IOException {
+            output.close();
+        }
+    }
+
+    private static class RowOutput {
+        private final int[] predictions;
+        private final StringBuilder features = new StringBuilder();
+        private final StringBuilder messages = new StringBuilder();
+
+        private RowOutput(int columns) {
+            predictions = new int[columns];
+            Arrays.fill(predictions, MISSING);
+        }
+    }
+
+    // A single line of the predictions file, as a range of bytes not including the line ending
+    private static class Row {
+        private final ByteBuffer bytes;
+        private final int start;
+        private final int end;
+
+        private Row(ByteBuffer bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        /*
+         * Finds the comma separated fields, returned as start and end offsets in turn. Like String.split, empty fields
+         * at the end of the row are dropped. Only absolute gets are used, so rows sharing a buffer can be read at once.
+         */
+        private List<Integer> splitFields() {
+            var fields = new ArrayList<Integer>();
+            var fieldStart = start;
+            for (int i = start; i <= end; i++) {
+                if (i == end || bytes.get(i) == ',') {
+                    fields.add(fieldStart);
+                    fields.add(i);
+                    fieldStart = i + 1;
+                }
+            }
+            while (!fields.isEmpty() && fields.get(fields.size() - 1).equals(fields.get(fields.size() - 2))) {
+                fields.remove(fields.size() - 1);
+                fields.remove(fields.size() - 1);
+            }
+            return fields;
+        }
+
+        // Parses the field as a decimal integer, ignoring surrounding white space
+        private int parseInt(int from, int to) {
+            while (from < to && isWhitespace(bytes.get(from))) {
+                from++;
+            }
+            while (to > from && isWhitespace(bytes.get(to - 1))) {
+                to--;
+            }
+            var negative = from < to && bytes.get(from) == '-';
+            if (from < to && (bytes.get(from) == '-' || bytes.get(from) == '+')) {
+                from++;
+            }
+            if (from == to) {
+                throw new NumberFormatException("Empty entry");
+            }
+
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                var digit = bytes.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Not a whole number");
+                }
+                value = value * 10 + digit;
+                if (value > Integer.MAX_VALUE + 1L) {
+                    throw new NumberFormatException("Too large");
+                }
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Too large");
+            }
+            return (int) value;
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == 0x0b || b == '\f';
+        }
+
+        private boolean isBlank() {
+            for (int i = start; i < end; i++) {
+                if (!isWhitespace(bytes.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /*
+     * The rows of the grid in order. Rows must be taken in order with next, and only getRowCount of them. The column 
+     * count is the number of values on the first row.
+     */
+    private abstract static class Rows implements AutoCloseable {
+        protected int rowCount;
+        protected int columnCount;
+
+        int getRowCount() {
+            return rowCount;
+        }
+
+        int getColumnCount() {
+            return columnCount;
+        }
+
+        abstract Row next() throws IOException;
+
+        @Override
+        public abstract void close() throws IOException;
+    }
+
+    // Maps the whole file and finds where every row starts before any are used, which only needs a few bytes per row
+    private static class MappedRows extends Rows {
+        private final ByteBuffer buffer;
+        private final List<Integer> rowEnds;
+        private int nextRow;
+        private int nextStart;
+
+        private MappedRows(File input) throws IOException {
+            try (var channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+                // The mapping stays valid after the channel is closed
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            rowEnds = new ArrayList<>();
+            var start = 0;
+            var limit = buffer.limit();
+            while (start < limit) {
+                var end = start;
+                while (end < limit && buffer.get(end) != '\n') {
+                    end++;
+                }
+                var row = new Row(buffer, start, end);
+                // We choose to interpret an empty line as the end of the file
+                if (row.isBlank()) {
+                    break;
+                }
+                if (rowEnds.isEmpty()) {
+                    columnCount = row.splitFields().size() / 2;
+                }
+                rowEnds.add(end);
+                start = end + 1;
+            }
+            rowCount = rowEnds.size();
+        }
+
+        @Override
+        Row next() {
+            var end = rowEnds.get(nextRow++);
+            var row = new Row(buffer, nextStart, end);
+            nextStart = end + 1;
+            return row;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Reads the file twice, once to count the rows and then to read them, holding only one block of rows at a time
+    private static class StreamedRows extends Rows {
+        private final InputStream input;
+        private final ByteArrayOutputStream line;
+
+        private StreamedRows(File file) throws IOException {
+            line = new ByteArrayOutputStream();
+            try (var counting = new BufferedInputStream(new FileInputStream(file))) {
+                for (var row = readRow(counting); row != null; row = readRow(counting)) {
+                    if (rowCount == 0) {
+                        columnCount = row.splitFields().size() / 2;
+                    }
+                    rowCount++;
+                }
+            }
+            input = new BufferedInputStream(new FileInputStream(file));
+        }
+
+        @Override
+        Row next() throws IOException {
+            return readRow(input);
+        }
+
+        // Reads the next line, or returns null at the end of the file or an empty line
+        private Row readRow(InputStream stream) throws IOException {
+            line.reset();
+            int b;
+            while ((b = stream.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            var bytes = line.toByteArray();
+            var row = new Row(ByteBuffer.wrap(bytes), 0, bytes.length);
+            if (row.isBlank()) {
+                return null;
+            }
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+}
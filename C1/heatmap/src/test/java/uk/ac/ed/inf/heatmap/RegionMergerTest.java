@@ -0,0 +1,104 @@
+package uk.ac.ed.inf.heatmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Rectangles are recorded as "left right top bottom color" in the order they are written.
+ */
+public class RegionMergerTest {
+
+    private static final String R = "#ff0000";
+    private static final String G = "#00ff00";
+    private static final String B = "#0000ff";
+
+    @Test
+    public void mergesHandWrittenGrid() throws IOException {
+        var grid = new String[][] {
+            {R, R, G, G},
+            {R, R, G, B},
+            {R, R, null, B},
+            {G, G, G, G}};
+        // A run only extends a rectangle with exactly the same columns, so the green at the top right is cut where the
+        // blue starts and the bottom row isn't joined to anything
+        assertEquals(List.of(
+                "2 4 0 1 " + G,
+                "2 3 1 2 " + G,
+                "0 2 0 3 " + R,
+                "3 4 1 3 " + B,
+                "0 4 3 4 " + G), merge(grid));
+    }
+
+    @Test
+    public void gridOfOneColorIsOneRectangle() throws IOException {
+        var grid = new String[5][7];
+        for (var row : grid) {
+            Arrays.fill(row, B);
+        }
+        assertEquals(List.of("0 7 0 5 " + B), merge(grid));
+    }
+
+    @Test
+    public void emptyRowsCloseEverything() throws IOException {
+        var grid = new String[][] {{R, R}, {null, null}, {R, R}};
+        assertEquals(List.of("0 2 0 1 " + R, "0 2 2 3 " + R), merge(grid));
+    }
+
+    // Whatever the grid, every drawn cell is covered by exactly one rectangle of its color and nothing else is
+    @Test
+    public void coversEveryCellOnce() throws IOException {
+        var random = new Random(16);
+        var colors = new String[] {R, G, B, null};
+        for (int run = 0; run < 200; run++) {
+            var grid = new String[1 + random.nextInt(12)][1 + random.nextInt(12)];
+            for (var row : grid) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = colors[random.nextInt(colors.length)];
+                }
+            }
+            // Most cells copy the one above, so there are rectangles to extend
+            for (int i = 1; i < grid.length; i++) {
+                for (int j = 0; j < grid[i].length; j++) {
+                    if (random.nextInt(3) > 0) {
+                        grid[i][j] = grid[i - 1][j];
+                    }
+                }
+            }
+
+            var covered = new String[grid.length][grid[0].length];
+            for (var rectangle : merge(grid)) {
+                var parts = rectangle.split(" ");
+                for (int i = Integer.parseInt(parts[2]); i < Integer.parseInt(parts[3]); i++) {
+                    for (int j = Integer.parseInt(parts[0]); j < Integer.parseInt(parts[1]); j++) {
+                        assertNull("cell " + i + " " + j + " covered twice", covered[i][j]);
+                        covered[i][j] = parts[4];
+                    }
+                }
+            }
+            for (int i = 0; i < grid.length; i++) {
+                for (int j = 0; j < grid[i].length; j++) {
+                    assertEquals("cell " + i + " " + j, grid[i][j], covered[i][j]);
+                }
+            }
+        }
+    }
+
+    private static List<String> merge(String[][] grid) throws IOException {
+        var rectangles = new ArrayList<String>();
+        var merger = new RegionMerger((left, right, top, bottom, color) ->
+                rectangles.add(left + " " + right + " " + top + " " + bottom + " " + color));
+        for (int i = 0; i < grid.length; i++) {
+            merger.addRow(i, grid[i]);
+        }
+        merger.finish(grid.length);
+        return rectangles;
+    }
+}
@@ -0,0 +1,174 @@
+package uk.ac.ed.inf.heatmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.Polygon;
+
+/*
+ * On a grid of App's fixed size the large grid mode should write exactly what App writes, whether the predictions are
+ * streamed or memory mapped and however many threads share the rows. Levels are checked cell by cell on small grids.
+ */
+public class StreamingHeatmapTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void matchesAppOnRandomGrids() throws IOException, InterruptedException {
+        var random = new Random(15);
+        for (int grid = 0; grid < 5; grid++) {
+            var predictions = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                for (int j = 0; j < 10; j++) {
+                    predictions.append(j > 0 ? ", " : "").append(random.nextInt(256));
+                }
+                predictions.append('\n');
+            }
+            assertMatchesApp(predictions.toString());
+        }
+    }
+
+    @Test
+    public void skipsTheSameEntriesAsApp() throws IOException, InterruptedException {
+        // An entry which isn't a number, one out of range, one empty, padding and Windows line endings
+        var predictions = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                var value = String.valueOf((i * 10 + j) * 2);
+                if (i == 2 && j == 3) {
+                    value = "abc";
+                } else if (i == 5 && j == 0) {
+                    value = "300";
+                } else if (i == 7 && j == 9) {
+                    value = "";
+                } else if (i == 8) {
+                    value = " " + value + "\t";
+                }
+                predictions.append(j > 0 ? "," : "").append(value);
+            }
+            predictions.append("\r\n");
+        }
+        assertMatchesApp(predictions.toString());
+    }
+
+    @Test
+    public void ignoresWhatFollowsAnEmptyLineLikeApp() throws IOException, InterruptedException {
+        var predictions = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            predictions.append("0,40,80,100,130,170,200,230,250,20\n");
+        }
+        predictions.append("\n255,255,255,255,255,255,255,255,255,255\n");
+        assertMatchesApp(predictions.toString());
+    }
+
+    @Test
+    public void levelFileNamesAddTheLevel() {
+        var folder = new File("out");
+        assertEquals(new File(folder, "heatmap-1.geojson"), StreamingHeatmap.getLevelFile(new File(folder, "heatmap.geojson"), 1));
+        assertEquals(new File("heatmap-12.geojson"), StreamingHeatmap.getLevelFile(new File("heatmap.geojson"), 12));
+        assertEquals(new File("map.v2-3.json"), StreamingHeatmap.getLevelFile(new File("map.v2.json"), 3));
+        assertEquals(new File("heatmap-2"), StreamingHeatmap.getLevelFile(new File("heatmap"), 2));
+    }
+
+    /*
+     * A 3 by 3 grid gives a 2 by 2 level 1, the cells on the right and bottom covering only what is left of the grid.
+     * Entries which can't be read are left out of the averages, and a cell with none at all isn't drawn.
+     */
+    @Test
+    public void levelCellsAreColoredByTheirAverage() throws IOException, InterruptedException {
+        var input = folder.newFile();
+        Files.write(input.toPath(), "10,40,250\n45,abc,240\n200,211,x\n".getBytes(StandardCharsets.UTF_8));
+        var output = new File(folder.getRoot(), "heatmap.geojson");
+        new StreamingHeatmap(2, false, false, 1).render(input, output);
+
+        // Averages 95 / 3 rounded up to 32, 245, and 205.5 rounded to 206
+        assertEquals(List.of(
+                cell(0, 2, 0, 2, "#40ff00"),
+                cell(2, 3, 0, 2, "#ff0000"),
+                cell(0, 2, 2, 3, "#ff4000")), readCells(StreamingHeatmap.getLevelFile(output, 1), 3));
+        // The full heatmap is still written as it would be without levels
+        var plain = folder.newFile();
+        new StreamingHeatmap(2, false).render(input, plain);
+        assertEquals(read(plain), read(output));
+        assertFalse(StreamingHeatmap.getLevelFile(output, 2).exists());
+    }
+
+    @Test
+    public void mergedLevelsJoinCellsOfTheSameAverage() throws IOException, InterruptedException {
+        var input = folder.newFile();
+        // Level 1 averages to 20, 20 and 100, 130
+        Files.write(input.toPath(), "10,30,20,20\n30,10,20,20\n100,100,130,130\n100,100,130,130\n".getBytes(StandardCharsets.UTF_8));
+        var output = new File(folder.getRoot(), "merged.geojson");
+        new StreamingHeatmap(1, true, true, 2).render(input, output);
+
+        assertEquals(List.of(
+                cell(0, 4, 0, 2, "#00ff00"),
+                cell(0, 2, 2, 4, "#c0ff00"),
+                cell(2, 4, 2, 4, "#ffc000")), readCells(StreamingHeatmap.getLevelFile(output, 1), 4));
+        // Level 2 is a single cell averaging everything, 1040 / 16 = 65
+        assertEquals(List.of(cell(0, 4, 0, 4, "#80ff00")), readCells(StreamingHeatmap.getLevelFile(output, 2), 4));
+    }
+
+    // A rectangle between the given edges of the full grid as "left right top bottom color"
+    private static String cell(int left, int right, int top, int bottom, String color) {
+        return left + " " + right + " " + top + " " + bottom + " " + color;
+    }
+
+    // The rectangles of a heatmap in the form given by cell, in the order written, for a full grid of size by size cells
+    private static List<String> readCells(File file, int size) throws IOException {
+        var cells = new ArrayList<String>();
+        var heatmap = FeatureCollection.fromJson(read(file));
+        for (var feature : heatmap.features()) {
+            var corners = ((Polygon) feature.geometry()).coordinates().get(0);
+            var width = App.MAXIMUM_LONGITUDE - App.MINIMUM_LONGITUDE;
+            var height = App.MAXIMUM_LATITUDE - App.MINIMUM_LATITUDE;
+            // Corners run top left, bottom left, bottom right, top right, as App writes them
+            cells.add(cell(toEdge((corners.get(0).longitude() - App.MINIMUM_LONGITUDE) / width * size),
+                    toEdge((corners.get(2).longitude() - App.MINIMUM_LONGITUDE) / width * size),
+                    toEdge((App.MAXIMUM_LATITUDE - corners.get(0).latitude()) / height * size),
+                    toEdge((App.MAXIMUM_LATITUDE - corners.get(2).latitude()) / height * size),
+                    feature.getStringProperty("fill")));
+        }
+        return cells;
+    }
+
+    // Coordinates are written to seven decimal places, so edges are only close to whole numbers of cells
+    private static int toEdge(double cells) {
+        var edge = (int) Math.round(cells);
+        assertEquals(edge, cells, 1e-3);
+        return edge;
+    }
+
+    private void assertMatchesApp(String predictions) throws IOException, InterruptedException {
+        var input = folder.newFile();
+        Files.write(input.toPath(), predictions.getBytes(StandardCharsets.UTF_8));
+        var expected = folder.newFile();
+        App.writeHeatmap(input, expected);
+
+        for (var memoryMapped : new boolean[] {false, true}) {
+            for (var threads : new int[] {1, 3}) {
+                var output = folder.newFile();
+                new StreamingHeatmap(threads, memoryMapped).render(input, output);
+                assertEquals("memory mapped " + memoryMapped + " threads " + threads, read(expected), read(output));
+            }
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
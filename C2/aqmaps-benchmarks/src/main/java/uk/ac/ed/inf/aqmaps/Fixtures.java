@@ -0,0 +1,110 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+/*
+ * Fixed inputs shared by the benchmarks, so results can be compared between runs and between versions of the planner.
+ * The drone uses App's constants, and sensors are placed randomly from a fixed seed within App's confinement area,
+ * avoiding the no fly zones.
+ * The bundled no fly zones are a small synthetic stand-in of four simple buildings, far easier to route around than
+ * the real campus zones. For realistic figures point AQMAPS_NO_FLY_ZONES at the no-fly-zones.geojson the webserver
+ * serves. An environment variable is used since JMH runs benchmarks in forked JVMs, which inherit it.
+ */
+final class Fixtures {
+
+    private static final String NO_FLY_ZONES_VARIABLE = "AQMAPS_NO_FLY_ZONES";
+    static final Point DRONE_START = Point.fromLngLat(-3.1878, 55.9444);
+
+    private Fixtures() {
+    }
+
+    static List<NoFlyZone> noFlyZones() throws IOException {
+        var file = System.getenv(NO_FLY_ZONES_VARIABLE);
+        try (InputStream input = file == null ? Fixtures.class.getResourceAsStream("/no-fly-zones.geojson")
+                : Files.newInputStream(Paths.get(file))) {
+            var buildings = FeatureCollection.fromJson(new String(input.readAllBytes(), StandardCharsets.UTF_8)).features();
+            var noFlyZones = new ArrayList<NoFlyZone>();
+            for (var building : buildings) {
+                noFlyZones.add(new NoFlyZone((Polygon) building.geometry()));
+            }
+            return noFlyZones;
+        }
+    }
+
+    static Drone drone() {
+        return new Drone(DRONE_START, App.MOVE_DISTANCE, App.READ_DISTANCE, App.ENDING_DISTANCE, App.MAX_MOVES,
+                App.MINIMUM_LONGITUDE, App.MAXIMUM_LONGITUDE, App.MINIMUM_LATITUDE, App.MAXIMUM_LATITUDE);
+    }
+
+    // The given number of sensors, always the same for the same count and seed
+    static List<Sensor> sensors(int count, long seed, List<NoFlyZone> noFlyZones) {
+        var random = new Random(seed);
+        var index = new NoFlyZoneIndex(noFlyZones, App.MOVE_DISTANCE);
+        var sensors = new ArrayList<Sensor>();
+
+        while (sensors.size() < count) {
+            var lng = App.MINIMUM_LONGITUDE + App.MOVE_DISTANCE + random.nextDouble() * (App.MAXIMUM_LONGITUDE - App.MINIMUM_LONGITUDE - 2 * App.MOVE_DISTANCE);
+            var lat = App.MINIMUM_LATITUDE + App.MOVE_DISTANCE + random.nextDouble() * (App.MAXIMUM_LATITUDE - App.MINIMUM_LATITUDE - 2 * App.MOVE_DISTANCE);
+
+            // A sensor is reachable from the drone start if a straight line between them doesn't enter a zone an odd
+            // number of times. Rather than work that out we only keep sensors well clear of every zone, checking a
+            // small cross around the sensor
+            if (index.isCrossedByMove(lng - App.READ_DISTANCE, lat, lng + App.READ_DISTANCE, lat) ||
+                    index.isCrossedByMove(lng, lat - App.READ_DISTANCE, lng, lat + App.READ_DISTANCE) ||
+                    isInside(lng, lat, noFlyZones)) {
+                continue;
+            }
+            sensors.add(new Sensor(Point.fromLngLat(lng, lat), 50.0, String.valueOf(random.nextInt(256)), "sensor." + sensors.size() + ".fixture"));
+        }
+        return sensors;
+    }
+
+    // Random symmetric table of move counts between points, with a zero diagonal
+    static int[][] distanceMatrix(int size, long seed) {
+        var random = new Random(seed);
+        var points = new double[size][2];
+        for (var point : points) {
+            point[0] = random.nextDouble();
+            point[1] = random.nextDouble();
+        }
+
+        var distances = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                distances[i][j] = (int) Math.ceil(Math.hypot(points[i][0] - points[j][0], points[i][1] - points[j][1]) * 30);
+            }
+        }
+        return distances;
+    }
+
+    // Ray casting point in polygon test, only used to keep fixture sensors out of the zones
+    private static boolean isInside(double lng, double lat, List<NoFlyZone> noFlyZones) {
+        for (var noFlyZone : noFlyZones) {
+            var points = noFlyZone.getBoundaryPoints();
+            var inside = false;
+            for (int i = 0, j = points.size() - 1; i < points.size(); j = i++) {
+                var pi = points.get(i);
+                var pj = points.get(j);
+                if ((pi.latitude() > lat) != (pj.latitude() > lat) &&
+                        lng < (pj.longitude() - pi.longitude()) * (lat - pi.latitude()) / (pj.latitude() - pi.latitude()) + pi.longitude()) {
+                    inside = !inside;
+                }
+            }
+            if (inside) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
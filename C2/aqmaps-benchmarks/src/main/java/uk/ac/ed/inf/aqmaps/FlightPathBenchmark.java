@@ -0,0 +1,57 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Cost of planning a whole day. 33 sensors is a normal day, while larger counts can't all be visited within the
+ * move limit and so also exercise dropping sensors. Runs are long, so fewer iterations are used. Each day is planned
+ * with the adaptive beam width the planner uses by default and with the fixed width it used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FlightPathBenchmark {
+
+    @Param({"33", "80", "140"})
+    public int sensorCount;
+
+    @Param({"1", "2", "3"})
+    public long seed;
+
+    @Param({"true", "false"})
+    public boolean adaptiveBeamWidth;
+
+    private List<NoFlyZone> noFlyZones;
+    private List<Sensor> sensors;
+
+    @Setup
+    public void setUp() throws IOException {
+        noFlyZones = Fixtures.noFlyZones();
+        sensors = Fixtures.sensors(sensorCount, seed, noFlyZones);
+    }
+
+    @Benchmark
+    public Drone findFlightPath() {
+        var drone = Fixtures.drone();
+        drone.setAdaptiveBeamWidth(adaptiveBeamWidth);
+        drone.findFlightPath(sensors, noFlyZones);
+        return drone;
+    }
+}
@@ -0,0 +1,73 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Cost of checking a single move against the no fly zones, both zone by zone as the planner originally did and 
+ * through the index. The moves either cross the edge of a zone, pass close to one without crossing, or are far away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NoFlyZoneBenchmark {
+
+    @Param({"crossing", "near", "far"})
+    public String move;
+
+    private List<NoFlyZone> noFlyZones;
+    private NoFlyZoneIndex index;
+    private double startLng;
+    private double startLat;
+    private double endLng;
+    private double endLat;
+
+    @Setup
+    public void setUp() throws IOException {
+        noFlyZones = Fixtures.noFlyZones();
+        index = new NoFlyZoneIndex(noFlyZones, App.MOVE_DISTANCE);
+
+        // All moves are the length of a drone move, relative to the first zone's first corner
+        var corner = noFlyZones.get(0).getBoundaryPoints().get(0);
+        switch (move) {
+            case "crossing":
+                startLng = corner.longitude() + 0.0001;
+                startLat = corner.latitude() - 0.00015;
+                break;
+            case "near":
+                startLng = corner.longitude() + 0.0001;
+                startLat = corner.latitude() - 0.00035;
+                break;
+            default:
+                startLng = App.MINIMUM_LONGITUDE + 0.0005;
+                startLat = App.MAXIMUM_LATITUDE - 0.0005;
+        }
+        endLng = startLng;
+        endLat = startLat + App.MOVE_DISTANCE;
+    }
+
+    @Benchmark
+    public boolean everyZone() {
+        for (var noFlyZone : noFlyZones) {
+            if (noFlyZone.isCrossedByMove(startLng, startLat, endLng, endLat)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean index() {
+        return index.isCrossedByMove(startLng, startLat, endLng, endLat);
+    }
+}
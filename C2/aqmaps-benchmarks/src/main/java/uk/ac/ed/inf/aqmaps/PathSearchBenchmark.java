@@ -0,0 +1,81 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Cost of a single beam search for one leg, without the leg cache. The short leg is a few moves across open space,
+ * the long leg crosses the whole confinement area, and the obstacle leg has to find its way around a no fly zone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PathSearchBenchmark {
+
+    @Param({"short", "long", "obstacle"})
+    public String leg;
+
+    // The planner's beam width, and the wider beam it used before the visibility graph heuristic
+    @Param({"100", "300"})
+    public int beamWidth;
+
+    // Whether legs longer than the planner's threshold are searched for from both ends, which only the long leg is
+    @Param({"true", "false"})
+    public boolean bidirectional;
+
+    private Drone drone;
+    private NoFlyZoneIndex noFlyZones;
+    private Point start;
+    private Point goal;
+
+    @Setup
+    public void setUp() throws IOException {
+        drone = Fixtures.drone();
+        if (!bidirectional) {
+            drone.setBidirectionalDistance(Double.POSITIVE_INFINITY);
+        }
+        var zones = Fixtures.noFlyZones();
+        noFlyZones = new NoFlyZoneIndex(zones, App.MOVE_DISTANCE);
+
+        switch (leg) {
+            case "short":
+                start = Point.fromLngLat(-3.1915, 55.9455);
+                goal = Point.fromLngLat(-3.1905, 55.9458);
+                break;
+            case "long":
+                start = Point.fromLngLat(App.MINIMUM_LONGITUDE + 0.0002, App.MINIMUM_LATITUDE + 0.0002);
+                goal = Point.fromLngLat(App.MAXIMUM_LONGITUDE - 0.0002, App.MAXIMUM_LATITUDE - 0.0002);
+                break;
+            default:
+                // Directly either side of the first zone, at the height of its middle
+                var lngMin = Double.POSITIVE_INFINITY;
+                var lngMax = Double.NEGATIVE_INFINITY;
+                var latMin = Double.POSITIVE_INFINITY;
+                var latMax = Double.NEGATIVE_INFINITY;
+                for (var point : zones.get(0).getBoundaryPoints()) {
+                    lngMin = Math.min(lngMin, point.longitude());
+                    lngMax = Math.max(lngMax, point.longitude());
+                    latMin = Math.min(latMin, point.latitude());
+                    latMax = Math.max(latMax, point.latitude());
+                }
+                start = Point.fromLngLat(lngMin - 0.0003, (latMin + latMax) / 2);
+                goal = Point.fromLngLat(lngMax + 0.0003, (latMin + latMax) / 2);
+        }
+    }
+
+    @Benchmark
+    public Path findPath() {
+        return drone.findPath(start, goal, App.READ_DISTANCE, beamWidth, 1, noFlyZones);
+    }
+}
@@ -0,0 +1,34 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Cost of ordering the sensors from a table of move estimates, for tables of different sizes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TourOptimizerBenchmark {
+
+    @Param({"10", "34", "100", "300", "1000", "3000"})
+    public int size;
+
+    private int[][] distances;
+
+    @Setup
+    public void setUp() {
+        distances = Fixtures.distanceMatrix(size, 42);
+    }
+
+    @Benchmark
+    public int[] findTour() {
+        return TourOptimizer.findTour(distances);
+    }
+}
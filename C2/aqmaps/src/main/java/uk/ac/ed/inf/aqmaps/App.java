@@ -2,27 +2,20 @@ package uk.ac.ed.inf.aqmaps;
 
 import com.mapbox.geojson.*;
 
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse.BodyHandlers;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import java.util.ArrayList;
 import java.util.List;
 
 public class App {
     
-    private static final double MOVE_DISTANCE = 0.0003;
-    private static final double READ_DISTANCE = 0.0002;
-    private static final double ENDING_DISTANCE = 0.0003;
-    private static final int MAX_MOVES = 150;
-    private static final double MINIMUM_LONGITUDE = -3.192473;
-    private static final double MAXIMUM_LONGITUDE = -3.184319;
-    private static final double MINIMUM_LATITUDE = 55.942617;
-    private static final double MAXIMUM_LATITUDE = 55.946233;
+    static final double MOVE_DISTANCE = 0.0003;
+    static final double READ_DISTANCE = 0.0002;
+    static final double ENDING_DISTANCE = 0.0003;
+    static final int MAX_MOVES = 150;
+    static final double MINIMUM_LONGITUDE = -3.192473;
+    static final double MAXIMUM_LONGITUDE = -3.184319;
+    static final double MINIMUM_LATITUDE = 55.942617;
+    static final double MAXIMUM_LATITUDE = 55.946233;
     
     public static void main(String[] args) throws IOException, InterruptedException {
         var day = args[0];
@@ -41,139 +34,145 @@ public class App {
         // arg[5] is the random number seed for the application. We don't use this since everything is deterministic 
         var webserver = "http://localhost:" + args[6];
         
-        // Get required information from webserver
-        var sensors = getSensors(day, month, year, webserver);
-        var noFlyZones = getNoFlyZones(webserver);
+        /*
+         * Any further arguments are options:
+         *   --threads n       the number of threads to use when planning, by default one per available processor
+         *   --cache-dir dir   keep What3Words locations and no fly zones in dir between runs
+         *   --clear-cache     empty the cache before running
+         *   --metrics         also write a summary of where planning spent its time to metrics-dd-mm-yyyy.json
+         *   --move-count-fields  estimate the moves between sensors from a move count field for each sensor, 
+         *                     which is much faster with many sensors but may give a slightly different flight path
+         *   --time-budget ms  find a flight path quickly, then improve it for as long as the budget allows
+         */
+        var options = new PlannerOptions();
+        options.setParallelism(Runtime.getRuntime().availableProcessors());
+        try {
+            for (int i = 7; i < args.length; i++) {
+                var last = options.parseOption(args, i);
+                if (last < 0) {
+                    throw new IllegalArgumentException("Unrecognised option " + args[i] + ".");
+                }
+                i = last;
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage() + " Options are --threads n, --cache-dir dir, --clear-cache, --metrics, "
+                    + "--move-count-fields and --time-budget ms.");
+            System.exit(1);
+        }
         
-        // Initialise the drone and find a flight path
-        var drone = new Drone(Point.fromLngLat(droneLng, droneLat), MOVE_DISTANCE, READ_DISTANCE, 
-                ENDING_DISTANCE, MAX_MOVES, MINIMUM_LONGITUDE, MAXIMUM_LONGITUDE, MINIMUM_LATITUDE, MAXIMUM_LATITUDE);
-        drone.findFlightPath(sensors, noFlyZones);
-        drone.updateSensors();
+        // Get required information from webserver. The map and no fly zones are requested together, then the sensor
+        // locations once we know which sensors there are
+        var client = createClient(webserver, options);
+        var noFlyZonesResponce = client.fetchNoFlyZones();
+        var mapEntries = client.parseMapData(WebserverClient.await(client.fetchMapData(day, month, year)));
+        if (mapEntries == null) {
+            System.out.println("Exiting");
+            System.exit(1);
+        }
+        var sensors = client.getSensors(mapEntries);
+        var noFlyZones = client.parseNoFlyZones(WebserverClient.await(noFlyZonesResponce));
         
-        // Write required outputs
-        writeReadings(sensors, drone, day, month, year);
-        writeFlightPath(drone, day, month, year);
+        planFlight(sensors, createNoFlyZoneIndex(noFlyZones), createDrone(Point.fromLngLat(droneLng, droneLat), options), 
+                day, month, year);
     }
     
-    private static List<Sensor> getSensors(String day, String month, String year, String webserver) throws IOException, InterruptedException {
-        var mapEntries = getMapData(day, month, year, webserver);
-        var client = HttpClient.newHttpClient();
-        var sensors = new ArrayList<Sensor>();
-        
-        for (var entry : mapEntries) {
-            var request = HttpRequest.newBuilder().uri(URI.create(
-                    webserver + "/words/" + entry.getLocation().replace('.', '/') + "/details.json")).build();
-            var responce = client.send(request, BodyHandlers.ofString());
-            
-            if (responce.statusCode() != 200) {
-                System.out.println("Error: unable to find data for the sensor at " + entry.getLocation() + ".\n"
-                        + "HTTP status code: " + responce.statusCode() + "\nThis entry will be skipped.");
-            } else {
-                var sensorInfo = new Gson().fromJson(responce.body(), What3WordsData.class);
-                
-                sensors.add(new Sensor(Point.fromLngLat(sensorInfo.getLng(), sensorInfo.getLat()), 
-                        entry.getBattery(), entry.getReading(), entry.getLocation()));
+    // Creates a client for the webserver, using a cache if the options give a directory for one
+    static WebserverClient createClient(String webserver, PlannerOptions options) throws IOException {
+        var client = new WebserverClient(webserver);
+        if (options.getCacheDirectory() != null) {
+            var cache = new DiskCache(new File(options.getCacheDirectory()));
+            if (options.getClearCache()) {
+                cache.clear();
             }
+            client.setCache(cache);
         }
-        
-        return sensors;
+        return client;
     }
     
-    private static List<MapData> getMapData(String day, String month, String year, String webserver) throws IOException, InterruptedException {
-        var client = HttpClient.newHttpClient();
-        var request = HttpRequest.newBuilder().uri(URI.create(
-                webserver + "/maps/" + year + "/" + month + "/" + day + "/air-quality-data.json")).build(); 
-        var responce = client.send(request, BodyHandlers.ofString());
-        
-        // Informing the user if there is a problem reading the specified map
-        if (responce.statusCode() != 200) {
-            System.out.println("Error: Unable to read required data for the specified date.\n" 
-                    + "Please insure the date was entered in the correct format\n"
-                    + "HTTP status code: " + responce.statusCode() + "\nExiting");
-            System.exit(1);
+    // The index is built with cells the size of a move, so each move only needs to check a few cells
+    static NoFlyZoneIndex createNoFlyZoneIndex(List<NoFlyZone> noFlyZones) {
+        return new NoFlyZoneIndex(noFlyZones, MOVE_DISTANCE);
+    }
+    
+    static Drone createDrone(Point startPosition, PlannerOptions options) {
+        var drone = new Drone(startPosition, MOVE_DISTANCE, READ_DISTANCE, ENDING_DISTANCE, MAX_MOVES, 
+                MINIMUM_LONGITUDE, MAXIMUM_LONGITUDE, MINIMUM_LATITUDE, MAXIMUM_LATITUDE);
+        drone.setParallelism(options.getParallelism());
+        drone.setMoveCountFieldEstimates(options.getMoveCountFields());
+        drone.setTimeBudget(options.getTimeBudget());
+        if (options.getRecordMetrics()) {
+            drone.setMetrics(new PlannerMetrics());
         }
-        
-        var listType = new TypeToken<List<MapData>>() {}.getType();
-        return new Gson().fromJson(responce.body(), listType);
+        return drone;
     }
     
-    private static List<NoFlyZone> getNoFlyZones(String webserver) throws IOException, InterruptedException {
-        var client = HttpClient.newHttpClient();
-        var request = HttpRequest.newBuilder().uri(URI.create(webserver + "/buildings/no-fly-zones.geojson")).build();
-        var responce = client.send(request, BodyHandlers.ofString());
-        var noFlyZones = new ArrayList<NoFlyZone>();
+    /*
+     * Finds a flight path visiting the given sensors with the given drone and writes the output files for the given 
+     * date. A metrics summary is written too if the drone is recording metrics, and with a time budget we report how 
+     * much of it each phase of planning used.
+     */
+    static void planFlight(List<Sensor> sensors, NoFlyZoneIndex noFlyZones, Drone drone, String day, String month, String year) 
+            throws IOException {
+        drone.findFlightPath(sensors, noFlyZones);
+        drone.updateSensors();
+        if (drone.getTimeBudget() > 0) {
+            printBudgetUse(drone, day, month, year);
+        }
         
-        if (responce.statusCode() != 200) { 
-            System.out.println("Error: A problem has occured in reading the no-fly zones from " + webserver + "\n."
-                    + "HTTP status code: " + responce.statusCode() + "\n"
-                    + "Attempting to run with no no-fly zones\n.");
-        } else {
-            var buildings = FeatureCollection.fromJson(responce.body()).features();
-            
-            for (int i = 0; i < buildings.size(); i++) {
-                try {
-                    var boundary = (Polygon) buildings.get(i).geometry();
-                    noFlyZones.add(new NoFlyZone(boundary));
-                } catch (Exception e) {
-                    System.out.println("Error: no fly zone number " + i + " could not be interpreted. \nThis entry will be skipped");
-                }
+        // Write required outputs
+        writeReadings(sensors, drone, day, month, year);
+        writeFlightPath(drone, day, month, year);
+        if (drone.getMetrics() != null) {
+            drone.getMetrics().writeSummary(new File("metrics-" + day + "-" + month + "-" + year + ".json"));
+        }
+    }
+    
+    private static void printBudgetUse(Drone drone, String day, String month, String year) {
+        var phases = new StringBuilder();
+        var totalNanos = 0L;
+        for (var phase : PlannerMetrics.Phase.values()) {
+            var nanos = drone.getPhaseNanos(phase);
+            if (nanos > 0) {
+                phases.append(phases.length() > 0 ? ", " : "").append(phase).append(" ").append(nanos / 1000000).append(" ms");
+                totalNanos += nanos;
             }
         }
-        
-        return noFlyZones;
+        System.out.println("Planned " + day + "-" + month + "-" + year + " in " + totalNanos / 1000000 + " ms of a " 
+                + drone.getTimeBudget() + " ms budget (" + phases + ")");
     }
     
     private static void writeReadings(List<Sensor> sensors, Drone drone, String day, String month, String year) throws IOException {
-        var output = new FileWriter("readings-" + day + "-" + month + "-" + year + ".geojson");
-        var geojson = new ArrayList<Feature>();
-        
-        // Add the drone flight path to the output
-        var droneFlightPath = new ArrayList<Point>();
-        droneFlightPath.add(drone.getStartPosition());
-        for (Path path : drone.getPathsList()) {
-            droneFlightPath.addAll(path.getPositions());
+        try (var output = new GeoJsonWriter(new File("readings-" + day + "-" + month + "-" + year + ".geojson"))) {
+            writeReadings(output, sensors, drone);
         }
-        geojson.add(Feature.fromGeometry(LineString.fromLngLats(droneFlightPath)));
+    }
+    
+    static void writeReadings(GeoJsonWriter output, List<Sensor> sensors, Drone drone) throws IOException {
+        // Add the drone flight path to the output
+        output.writeFlightPath(drone.getStartPosition(), drone.getPathsList());
         
         // Add all the sensors to the output. Assume they have already been updated if they would be visited
         for (Sensor sensor : sensors) {
-            geojson.add(sensor.toGeojsonFeature());
+            output.writeFeature(sensor.toGeojsonFeature());
         }
-        
-        output.write(FeatureCollection.fromFeatures(geojson).toJson());
-        output.close();
     }
     
     private static void writeFlightPath(Drone drone, String day, String month, String year) throws IOException {
-        var output = new FileWriter("flightpath-" + day + "-" + month + "-" + year + ".txt");   
-        var lineNumber = 1;
-        var previousPosition = drone.getStartPosition();
-        var paths = drone.getPathsList();
-        var sensors = drone.getVisitedSensorsList();
-        
+        writeFlightPath(new File("flightpath-" + day + "-" + month + "-" + year + ".txt"), drone.getStartPosition(), 
+                drone.getPathsList(), drone.getVisitedSensorsList());
+    }
+    
+    // Writes the flight made up of the given paths, each but the last reading the visited sensor of the same index
+    static void writeFlightPath(File file, Point startPosition, List<Path> paths, List<Sensor> sensors) throws IOException {
+        try (var output = new FlightPathWriter(file, startPosition)) {
+            writePaths(output, paths, sensors);
+        }
+    }
+    
+    static void writePaths(FlightPathWriter output, List<Path> paths, List<Sensor> sensors) throws IOException {
         for (int i = 0; i < paths.size(); i++) {
-            // These two lists always have the same size
-            var positions = paths.get(i).getPositions();
-            var angles = paths.get(i).getMoveAngles();
-            
-            for (int j = 0; j < positions.size(); j++) {
-                // Write the line in the format specified
-                output.write(lineNumber + "," + previousPosition.longitude() + "," + previousPosition.latitude() + "," + angles.get(j)
-                    + "," + positions.get(j).longitude() + "," + positions.get(j).latitude());
-                
-                // Check which ending for the line is correct
-                if (j == positions.size() - 1 && i != paths.size() - 1) {
-                    output.write("," + sensors.get(i).getWhatThreeWords() + "\n");
-                } else {
-                    output.write(",null\n");
-                }
-                
-                lineNumber++;
-                previousPosition = positions.get(j);
-            }
+            // The last path returns to the start, every other path ends by reading the sensor of the same index
+            output.writePath(paths.get(i), i < paths.size() - 1 ? sensors.get(i) : null);
         }
-        
-        output.close();
     }
 }
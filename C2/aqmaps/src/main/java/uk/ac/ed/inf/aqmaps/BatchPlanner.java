@@ -0,0 +1,192 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Plans the flights for many days in a single run, writing the same output files for each day as App does.
+ * The no fly zones are fetched and indexed once and shared by every day, as is the webserver client along with its
+ * cache. Days are planned concurrently on a pool of workers.
+ *
+ * Usage:
+ *   BatchPlanner port --range dd-mm-yyyy dd-mm-yyyy latitude longitude [options]
+ *   BatchPlanner port --plan-file file [options]
+ * The range form plans every day between the two dates inclusive from the same starting position. A plan file has
+ * one day per line in the form "dd mm yyyy latitude longitude", the same order as the arguments to App.
+ * Options are --workers n (days planned at once, by default one per processor), --threads n (threads used by each
+ * day, by default 1), and --cache-dir dir, --clear-cache, --metrics, --move-count-fields and --time-budget ms as
+ * for App.
+ */
+public class BatchPlanner {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            printUsage();
+            System.exit(1);
+        }
+        var webserver = "http://localhost:" + args[0];
+        List<FlightRequest> requests = null;
+        var workers = Runtime.getRuntime().availableProcessors();
+        var options = new PlannerOptions();
+
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--range") && i + 4 < args.length) {
+                    requests = getRangeRequests(LocalDate.parse(args[i + 1], DATE_FORMAT), LocalDate.parse(args[i + 2], DATE_FORMAT),
+                            Point.fromLngLat(Double.parseDouble(args[i + 4]), Double.parseDouble(args[i + 3])));
+                    i += 4;
+                } else if (args[i].equals("--plan-file") && i + 1 < args.length) {
+                    requests = readPlanFile(args[++i]);
+                } else if (args[i].equals("--workers")) {
+                    workers = (int) PlannerOptions.parsePositive(args, i++, Integer.MAX_VALUE);
+                } else {
+                    var last = options.parseOption(args, i);
+                    if (last < 0) {
+                        throw new IllegalArgumentException("Unrecognised option " + args[i] + ".");
+                    }
+                    i = last;
+                }
+            }
+        } catch (DateTimeParseException e) {
+            System.out.println("An argument was incorrectly formated: " + e.getMessage());
+            printUsage();
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        if (requests == null) {
+            printUsage();
+            System.exit(1);
+        }
+
+        // Everything shared between days is set up once, before any planning starts
+        var client = App.createClient(webserver, options);
+        var noFlyZones = App.createNoFlyZoneIndex(client.parseNoFlyZones(WebserverClient.await(client.fetchNoFlyZones())));
+
+        var failures = planAll(requests, client, noFlyZones, workers, options);
+        System.out.println("Planned " + (requests.size() - failures) + " of " + requests.size() + " days");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Plans each of the requested days, returning the number which could not be planned
+    static int planAll(List<FlightRequest> requests, WebserverClient client, NoFlyZoneIndex noFlyZones, int workers,
+            PlannerOptions options) throws InterruptedException {
+        var executor = Executors.newFixedThreadPool(workers);
+        // Each worker keeps one drone for all the days it plans, so what the drone builds for the no fly zones is only
+        // built once per worker
+        var drones = new ThreadLocal<Drone>();
+        var results = new ArrayList<Future<Boolean>>();
+        for (var request : requests) {
+            Callable<Boolean> task = () -> plan(request, client, noFlyZones, drones, options);
+            results.add(executor.submit(task));
+        }
+
+        var failures = 0;
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (!results.get(i).get()) {
+                        failures++;
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println("Error: planning failed for " + requests.get(i) + ": " + e.getCause());
+                    failures++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    // Plans a single day, returning false if the data for the day couldn't be read
+    private static boolean plan(FlightRequest request, WebserverClient client, NoFlyZoneIndex noFlyZones, ThreadLocal<Drone> drones,
+            PlannerOptions options) throws IOException, InterruptedException {
+        var mapEntries = client.parseMapData(WebserverClient.await(client.fetchMapData(request.day, request.month, request.year)));
+        if (mapEntries == null) {
+            System.out.println("Skipping " + request + ".");
+            return false;
+        }
+        var sensors = client.getSensors(mapEntries);
+        var drone = drones.get();
+        if (drone == null) {
+            drone = App.createDrone(request.startPosition, options);
+            drones.set(drone);
+        } else {
+            drone.setStartPosition(request.startPosition);
+        }
+        App.planFlight(sensors, noFlyZones, drone, request.day, request.month, request.year);
+        return true;
+    }
+
+    private static List<FlightRequest> getRangeRequests(LocalDate first, LocalDate last, Point startPosition) {
+        var requests = new ArrayList<FlightRequest>();
+        for (var date = first; !date.isAfter(last); date = date.plusDays(1)) {
+            requests.add(new FlightRequest(String.format("%02d", date.getDayOfMonth()), String.format("%02d", date.getMonthValue()),
+                    String.valueOf(date.getYear()), startPosition));
+        }
+        return requests;
+    }
+
+    private static List<FlightRequest> readPlanFile(String fileName) throws IOException {
+        var requests = new ArrayList<FlightRequest>();
+        var lineNumber = 0;
+        for (var line : Files.readAllLines(Paths.get(fileName))) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            var values = line.trim().split("\\s+");
+            if (values.length != 5) {
+                throw new NumberFormatException("line " + lineNumber + " of " + fileName + " should be \"dd mm yyyy latitude longitude\"");
+            }
+            requests.add(new FlightRequest(values[0], values[1], values[2],
+                    Point.fromLngLat(Double.parseDouble(values[4]), Double.parseDouble(values[3]))));
+        }
+        return requests;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: BatchPlanner port (--range dd-mm-yyyy dd-mm-yyyy latitude longitude | --plan-file file) "
+                + "[--workers n] [--threads n] [--cache-dir dir] [--clear-cache] [--metrics] [--move-count-fields] "
+                + "[--time-budget ms]");
+    }
+
+    // A single day to plan, with the date given as the strings used in requests and file names
+    static class FlightRequest {
+        private final String day;
+        private final String month;
+        private final String year;
+        private final Point startPosition;
+
+        FlightRequest(String day, String month, String year, Point startPosition) {
+            this.day = day;
+            this.month = month;
+            this.year = year;
+            this.startPosition = startPosition;
+        }
+
+        @Override
+        public String toString() {
+            return day + "-" + month + "-" + year;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package uk.ac.ed.inf.aqmaps;
+
+/*
+ * The search space of a beam search, holding at most a fixed number of paths. Paths are ranked by a score, lower being
+ * better, with ties broken by distance to the goal. Both are computed once when a path is offered rather than every
+ * time two paths are compared.
+ * This is a min-max heap stored in parallel arrays: nodes on even depths are no greater than everything below them and
+ * nodes on odd depths no less. This gives both the best path, which we expand next, and the worst path, which is the
+ * one to discard when the beam is full, in logarithmic time. Nothing is allocated after construction.
+ */
+class Beam {
+
+    private final Path[] paths;
+    private final int[] scores;
+    private final double[] distances;
+    private int size;
+
+    Beam(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Beam capacity must be at least 1");
+        }
+        paths = new Path[capacity];
+        scores = new int[capacity];
+        distances = new double[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /*
+     * Adds a path to the beam. If the beam is full the worst path is discarded, which may be the path offered.
+     * Returns whether the path was kept.
+     */
+    boolean offer(Path path, int score, double distance) {
+        if (size == paths.length) {
+            var worst = maxIndex();
+            if (!isBetter(score, distance, scores[worst], distances[worst])) {
+                return false;
+            }
+            removeAt(worst);
+        }
+
+        set(size, path, score, distance);
+        size++;
+        bubbleUp(size - 1);
+        return true;
+    }
+
+    // Distance to the goal of the best path. The beam must not be empty
+    double bestDistance() {
+        return distances[0];
+    }
+
+    // Removes and returns the best path. The beam must not be empty
+    Path pollBest() {
+        var best = paths[0];
+        removeAt(0);
+        return best;
+    }
+
+    private boolean isBetter(int score1, double distance1, int score2, double distance2) {
+        return score1 < score2 || (score1 == score2 && distance1 < distance2);
+    }
+
+    private boolean less(int i, int j) {
+        return isBetter(scores[i], distances[i], scores[j], distances[j]);
+    }
+
+    private int maxIndex() {
+        if (size == 1) {
+            return 0;
+        } else if (size == 2 || less(2, 1)) {
+            return 1;
+        }
+        return 2;
+    }
+
+    // Replaces the element at index with the last element, then restores the heap
+    private void removeAt(int index) {
+        size--;
+        if (index != size) {
+            set(index, paths[size], scores[size], distances[size]);
+            paths[size] = null;
+            trickleDown(index);
+            // The moved element may also belong further up, for instance when it replaced a worst path
+            bubbleUp(index);
+        } else {
+            paths[size] = null;
+        }
+    }
+
+    private void set(int index, Path path, int score, double distance) {
+        paths[index] = path;
+        scores[index] = score;
+        distances[index] = distance;
+    }
+
+    private void swap(int i, int j) {
+        var path = paths[i];
+        var score = scores[i];
+        var distance = distances[i];
+        set(i, paths[j], scores[j], distances[j]);
+        set(j, path, score, distance);
+    }
+
+    private static boolean isMinLevel(int index) {
+        // Depth of a node is floor(log2(index + 1)), min levels are the even depths
+        return (31 - Integer.numberOfLeadingZeros(index + 1)) % 2 == 0;
+    }
+
+    private void bubbleUp(int index) {
+        if (index == 0) {
+            return;
+        }
+        var parent = (index - 1) / 2;
+        if (isMinLevel(index)) {
+            if (less(parent, index)) {
+                swap(index, parent);
+                bubbleUpLevel(parent, false);
+            } else {
+                bubbleUpLevel(index, true);
+            }
+        } else {
+            if (less(index, parent)) {
+                swap(index, parent);
+                bubbleUpLevel(parent, true);
+            } else {
+                bubbleUpLevel(index, false);
+            }
+        }
+    }
+
+    // Moves the element up through the levels of the same kind, comparing against grandparents
+    private void bubbleUpLevel(int index, boolean minLevel) {
+        while (index > 2) {
+            var grandparent = ((index - 1) / 2 - 1) / 2;
+            if (minLevel ? less(index, grandparent) : less(grandparent, index)) {
+                swap(index, grandparent);
+                index = grandparent;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void trickleDown(int index) {
+        var minLevel = isMinLevel(index);
+        while (2 * index + 1 < size) {
+            // Find the best (for this level) of the children and grandchildren
+            var candidate = 2 * index + 1;
+            var isGrandchild = false;
+            for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) {
+                if (minLevel ? less(child, candidate) : less(candidate, child)) {
+                    candidate = child;
+                    isGrandchild = false;
+                }
+                for (int grandchild = 2 * child + 1; grandchild <= 2 * child + 2 && grandchild < size; grandchild++) {
+                    if (minLevel ? less(grandchild, candidate) : less(candidate, grandchild)) {
+                        candidate = grandchild;
+                        isGrandchild = true;
+                    }
+                }
+            }
+
+            if (!(minLevel ? less(candidate, index) : less(index, candidate))) {
+                return;
+            }
+            swap(index, candidate);
+            if (!isGrandchild) {
+                return;
+            }
+
+            var parent = (candidate - 1) / 2;
+            if (minLevel ? less(parent, candidate) : less(candidate, parent)) {
+                swap(candidate, parent);
+            }
+            index = candidate;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.List;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * The edges of one or more boundaries, compiled once into flat arrays so checking a move against them doesn't go
+ * through Point objects or recompute anything about the edges. For each edge we keep its end points, the coefficients
+ * of the line through it, and its bounding box, along with a bounding box around all of the edges.
+ * A move is tested against a batch of edges at once: the line through the move is found once for the whole batch,
+ * then each edge whose bounding box comes near the move's is given the same test as NoFlyZone.isEdgeCrossedByMove,
+ * with the same arithmetic in the same order, so the answers are exactly the same. CompiledEdgesTest checks this.
+ */
+class CompiledEdges {
+
+    /*
+     * An edge can only be crossed if its bounding box is within twice the float offset of the move's. Rounding errors
+     * in finding the crossing point are far smaller than this for any coordinates up to a few hundred degrees, and
+     * are covered by this extra margin so skipping edges on their bounding boxes never changes an answer.
+     */
+    private static final double ROUNDING_MARGIN = 1e-12;
+
+    private final int size;
+    private final double[] lng1;
+    private final double[] lat1;
+    private final double[] lng2;
+    private final double[] lat2;
+    // The line through each edge as ax + by + c = 0
+    private final double[] a;
+    private final double[] b;
+    private final double[] c;
+    private final double[] minLng;
+    private final double[] maxLng;
+    private final double[] minLat;
+    private final double[] maxLat;
+    private double allMinLng = Double.POSITIVE_INFINITY;
+    private double allMaxLng = Double.NEGATIVE_INFINITY;
+    private double allMinLat = Double.POSITIVE_INFINITY;
+    private double allMaxLat = Double.NEGATIVE_INFINITY;
+
+    // Each boundary is a closed ring of points with the first and last equal, as given by Polygon
+    CompiledEdges(List<List<Point>> boundaries) {
+        var edgeCount = 0;
+        for (var boundary : boundaries) {
+            edgeCount += Math.max(0, boundary.size() - 1);
+        }
+        size = edgeCount;
+        lng1 = new double[size];
+        lat1 = new double[size];
+        lng2 = new double[size];
+        lat2 = new double[size];
+        a = new double[size];
+        b = new double[size];
+        c = new double[size];
+        minLng = new double[size];
+        maxLng = new double[size];
+        minLat = new double[size];
+        maxLat = new double[size];
+
+        var edge = 0;
+        for (var boundary : boundaries) {
+            for (int i = 0; i < boundary.size() - 1; i++, edge++) {
+                lng1[edge] = boundary.get(i).longitude();
+                lat1[edge] = boundary.get(i).latitude();
+                lng2[edge] = boundary.get(i + 1).longitude();
+                lat2[edge] = boundary.get(i + 1).latitude();
+
+                // Computed exactly as in NoFlyZone.isEdgeCrossedByMove
+                a[edge] = lat1[edge] - lat2[edge];
+                b[edge] = lng2[edge] - lng1[edge];
+                c[edge] = -(lng1[edge] * a[edge]) - (lat1[edge] * b[edge]);
+
+                minLng[edge] = Math.min(lng1[edge], lng2[edge]);
+                maxLng[edge] = Math.max(lng1[edge], lng2[edge]);
+                minLat[edge] = Math.min(lat1[edge], lat2[edge]);
+                maxLat[edge] = Math.max(lat1[edge], lat2[edge]);
+
+                allMinLng = Math.min(allMinLng, minLng[edge]);
+                allMaxLng = Math.max(allMaxLng, maxLng[edge]);
+                allMinLat = Math.min(allMinLat, minLat[edge]);
+                allMaxLat = Math.max(allMaxLat, maxLat[edge]);
+            }
+        }
+    }
+
+    // How far apart the bounding boxes of a move and an edge can be while the move may still cross the edge
+    static double getMargin(double floatOffset) {
+        return 2 * floatOffset + ROUNDING_MARGIN;
+    }
+
+    int size() {
+        return size;
+    }
+
+    double getMinLng(int edge) {
+        return minLng[edge];
+    }
+
+    double getMaxLng(int edge) {
+        return maxLng[edge];
+    }
+
+    double getMinLat(int edge) {
+        return minLat[edge];
+    }
+
+    double getMaxLat(int edge) {
+        return maxLat[edge];
+    }
+
+    // Checks if the straight line move from start to end crosses any of the edges
+    boolean isCrossedByMove(double startLng, double startLat, double endLng, double endLat, double floatOffset) {
+        var margin = getMargin(floatOffset);
+        if (Math.max(startLng, endLng) < allMinLng - margin || Math.min(startLng, endLng) > allMaxLng + margin ||
+                Math.max(startLat, endLat) < allMinLat - margin || Math.min(startLat, endLat) > allMaxLat + margin) {
+            return false;
+        }
+        return isCrossedByMove(null, size, startLng, startLat, endLng, endLat, floatOffset);
+    }
+
+    // As above, but only checking the edges with the given indices
+    boolean isCrossedByMove(int[] edges, double startLng, double startLat, double endLng, double endLat, double floatOffset) {
+        return isCrossedByMove(edges, edges.length, startLng, startLat, endLng, endLat, floatOffset);
+    }
+
+    // Null edges means every edge, in which case count is the number of edges
+    private boolean isCrossedByMove(int[] edges, int count, double startLng, double startLat, double endLng, double endLat,
+            double floatOffset) {
+        // The line through the move, found as for the edges
+        var a1 = startLat - endLat;
+        var b1 = endLng - startLng;
+        var c1 = -(startLng * a1) - (startLat * b1);
+
+        var moveMinLng = Math.min(startLng, endLng);
+        var moveMaxLng = Math.max(startLng, endLng);
+        var moveMinLat = Math.min(startLat, endLat);
+        var moveMaxLat = Math.max(startLat, endLat);
+        var margin = getMargin(floatOffset);
+
+        for (int i = 0; i < count; i++) {
+            var edge = edges == null ? i : edges[i];
+
+            // Cheap checks first, the move can't cross an edge if it doesn't come near it
+            if (moveMaxLng < minLng[edge] - margin || moveMinLng > maxLng[edge] + margin ||
+                    moveMaxLat < minLat[edge] - margin || moveMinLat > maxLat[edge] + margin) {
+                continue;
+            }
+
+            // The same test as NoFlyZone.isEdgeCrossedByMove, see there for how it works
+            var a2 = a[edge];
+            var b2 = b[edge];
+            var c2 = c[edge];
+            if ((a1 * b2) - (a2 * b1) != 0) {
+                var pointLng = ((b1 * c2) - (b2 * c1)) / ((a1 * b2) - (a2 * b1));
+                var pointLat = ((a2 * c1) - (a1 * c2)) / ((a1 * b2) - (a2 * b1));
+
+                if (pointLng + floatOffset >= moveMinLng && pointLng - floatOffset <= moveMaxLng &&
+                        pointLat + floatOffset >= moveMinLat && pointLat - floatOffset <= moveMaxLat &&
+                        pointLng + floatOffset >= minLng[edge] && pointLng - floatOffset <= maxLng[edge] &&
+                        pointLat + floatOffset >= minLat[edge] && pointLat - floatOffset <= maxLat[edge]) {
+                    return true;
+                }
+            } else if ((b2 * c1) - (b1 * c2) == 0 && (a2 * c1) - (a1 * c2) == 0 &&
+                    ((lng1[edge] + floatOffset >= moveMinLng && lng1[edge] - floatOffset <= moveMaxLng &&
+                      lat1[edge] + floatOffset >= moveMinLat && lat1[edge] - floatOffset <= moveMaxLat) ||
+                     (lng2[edge] + floatOffset >= moveMinLng && lng2[edge] - floatOffset <= moveMaxLng &&
+                      lat2[edge] + floatOffset >= moveMinLat && lat2[edge] - floatOffset <= moveMaxLat))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
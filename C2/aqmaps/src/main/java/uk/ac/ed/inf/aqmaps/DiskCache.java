@@ -0,0 +1,232 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+/*
+ * Keeps data which practically never changes between days in a directory on disk, so later runs don't need to fetch
+ * and parse it again. What3Words locations never move, so once a location is known it is used without asking the
+ * webserver. The no fly zones could change, so they are stored along with the validators the webserver gave us and a
+ * hash of the content. We make a conditional request each run and only parse the response if the content has changed.
+ * A cache file which can't be read, or whose contents aren't the shape we wrote, is ignored and its contents fetched
+ * again, so a damaged file is never used in planning.
+ */
+public class DiskCache {
+
+    // Changing the layout of the cache files requires changing this, so old files are ignored rather than misread
+    private static final int FORMAT_VERSION = 1;
+    private static final String WHAT_THREE_WORDS_FILE = "what3words.json";
+    private static final String NO_FLY_ZONES_FILE = "no-fly-zones.json";
+
+    private final File directory;
+    private final Gson gson;
+    private What3WordsContents what3Words;
+    private NoFlyZonesContents noFlyZones;
+    private boolean what3WordsChanged;
+
+    public DiskCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the cache directory " + directory);
+        }
+        this.directory = directory;
+        this.gson = new Gson();
+
+        what3Words = read(WHAT_THREE_WORDS_FILE, What3WordsContents.class);
+        if (what3Words == null) {
+            what3Words = new What3WordsContents();
+        }
+        noFlyZones = read(NO_FLY_ZONES_FILE, NoFlyZonesContents.class);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    // Removes everything from the cache, both in memory and on disk
+    public synchronized void clear() throws IOException {
+        what3Words = new What3WordsContents();
+        noFlyZones = null;
+        what3WordsChanged = false;
+        Files.deleteIfExists(new File(directory, WHAT_THREE_WORDS_FILE).toPath());
+        Files.deleteIfExists(new File(directory, NO_FLY_ZONES_FILE).toPath());
+    }
+
+    // Returns the position of the given location as {longitude, latitude}, or null if it isn't known
+    public synchronized double[] getWhat3Words(String location) {
+        return what3Words.locations.get(location);
+    }
+
+    public synchronized void putWhat3Words(String location, double lng, double lat) {
+        what3Words.locations.put(location, new double[] {lng, lat});
+        what3WordsChanged = true;
+    }
+
+    // The validators to send with a conditional request for the no fly zones, null if there are none
+    public synchronized String getNoFlyZonesETag() {
+        return noFlyZones == null ? null : noFlyZones.eTag;
+    }
+
+    public synchronized String getNoFlyZonesLastModified() {
+        return noFlyZones == null ? null : noFlyZones.lastModified;
+    }
+
+    // The cached no fly zones, or null if none are cached or they came from content with a different hash
+    public synchronized List<NoFlyZone> getNoFlyZones(String contentHash) {
+        if (noFlyZones == null || (contentHash != null && !contentHash.equals(noFlyZones.contentHash))) {
+            return null;
+        }
+
+        var zones = new ArrayList<NoFlyZone>();
+        for (var boundary : noFlyZones.boundaries) {
+            var points = new ArrayList<Point>();
+            for (var point : boundary) {
+                points.add(Point.fromLngLat(point[0], point[1]));
+            }
+            zones.add(new NoFlyZone(Polygon.fromLngLats(List.of(points))));
+        }
+        return zones;
+    }
+
+    public synchronized void putNoFlyZones(List<NoFlyZone> zones, String contentHash, String eTag, String lastModified) throws IOException {
+        var contents = new NoFlyZonesContents();
+        contents.contentHash = contentHash;
+        contents.eTag = eTag;
+        contents.lastModified = lastModified;
+        for (var zone : zones) {
+            var boundary = new ArrayList<double[]>();
+            for (var point : zone.getBoundaryPoints()) {
+                boundary.add(new double[] {point.longitude(), point.latitude()});
+            }
+            contents.boundaries.add(boundary);
+        }
+        noFlyZones = contents;
+        write(NO_FLY_ZONES_FILE, contents);
+    }
+
+    // Writes any new What3Words locations to disk
+    public synchronized void save() throws IOException {
+        if (what3WordsChanged) {
+            write(WHAT_THREE_WORDS_FILE, what3Words);
+            what3WordsChanged = false;
+        }
+    }
+
+    // Hash used to tell whether the content fetched from the webserver has changed
+    public static String hash(String content) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            var hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T extends Versioned> T read(String fileName, Class<T> type) {
+        var file = new File(directory, fileName);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            var contents = gson.fromJson(Files.readString(file.toPath()), type);
+            if (contents == null || contents.version != FORMAT_VERSION) {
+                return null;
+            }
+            if (contents.isValid()) {
+                return contents;
+            }
+        } catch (IOException | JsonParseException | NumberFormatException e) {
+            // Gson lets NumberFormatException through when a string is found where an array of numbers should be
+        }
+        System.out.println("Warning: the cache file " + file + " could not be read and will be ignored.");
+        return null;
+    }
+
+    // Whether a position is {longitude, latitude} with both finite
+    private static boolean isPosition(double[] position) {
+        return position != null && position.length == 2 && Double.isFinite(position[0]) && Double.isFinite(position[1]);
+    }
+
+    // Writes to a temporary file first, so a run stopped part way through never leaves a half written cache file
+    private void write(String fileName, Object contents) throws IOException {
+        var file = new File(directory, fileName);
+        var temporary = new File(directory, fileName + ".tmp");
+        Files.writeString(temporary.toPath(), gson.toJson(contents));
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class Versioned {
+        int version = FORMAT_VERSION;
+
+        // Gson fills in whatever the file has, so missing or malformed fields have to be checked for after reading
+        boolean isValid() {
+            return true;
+        }
+    }
+
+    private static class What3WordsContents extends Versioned {
+        Map<String, double[]> locations = new HashMap<>();
+
+        @Override
+        boolean isValid() {
+            if (locations == null) {
+                return false;
+            }
+            for (var entry : locations.entrySet()) {
+                if (entry.getKey() == null || !isPosition(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class NoFlyZonesContents extends Versioned {
+        String contentHash;
+        String eTag;
+        String lastModified;
+        List<List<double[]>> boundaries = new ArrayList<>();
+
+        // Every boundary must be a closed ring of at least four positions, as a polygon's outer ring is
+        @Override
+        boolean isValid() {
+            if (boundaries == null) {
+                return false;
+            }
+            for (var boundary : boundaries) {
+                if (boundary == null || boundary.size() < 4) {
+                    return false;
+                }
+                for (var position : boundary) {
+                    if (!isPosition(position)) {
+                        return false;
+                    }
+                }
+                if (!Arrays.equals(boundary.get(0), boundary.get(boundary.size() - 1))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -2,8 +2,18 @@ package uk.ac.ed.inf.aqmaps;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.PriorityQueue;
-import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.mapbox.geojson.Point;
 
@@ -12,6 +22,26 @@ public class Drone {
     // It is assumed this value will always be divide 360. 
     // Changing it may result in some methods not functioning as expected
     private final int angleStepSize = 10;
+    // Paths ending in the same cell of this size (as a fraction of the move distance) are treated as reaching the same position
+    private static final double DUPLICATE_CELL_FRACTION = 0.05;
+    // Waypoints of the visibility graph are this far (as a fraction of the move distance) from the corners of the no fly zones
+    private static final double WAYPOINT_OFFSET_FRACTION = 0.01;
+    // Width of the beam used for leg searches, and the widest used when improving a flight path within a time budget
+    private static final int DEFAULT_BEAM_WIDTH = 100;
+    private static final int MAX_BEAM_WIDTH = 1600;
+    // With an adaptive beam width, legs start with a beam this wide and double it when needed up to the widest
+    private static final int ADAPTIVE_START_WIDTH = 25;
+    private static final int MAX_ADAPTIVE_BEAM_WIDTH = 3200;
+    // Regions remembering the beam width their legs needed are squares this many moves across
+    private static final double REGION_SIZE_IN_MOVES = 3;
+    // Legs longer than this many moves are searched for from both ends unless set otherwise
+    private static final double DEFAULT_BIDIRECTIONAL_MOVES = 10;
+    // Dropped sensors are tried again if they are estimated to take the flight at most this many moves over the limit
+    private static final int REINSERTION_SLACK = 2;
+    // Cells of the move count grid are this size (as a fraction of the move distance), see MoveCountGrid
+    private static final double MOVE_COUNT_CELL_FRACTION = 0.5;
+    // How long the threads used for parallel searches are kept waiting for more work before they stop
+    private static final long IDLE_THREAD_SECONDS = 10;
     
     private List<Path> pathsList;
     private List<Sensor> visitedSensorsList;
@@ -24,6 +54,48 @@ public class Drone {
     private double maxLongitude;
     private double minLatitude;
     private double maxLatitude;
+    // Number of threads used for the path searches which can be run independently, 1 meaning no extra threads are used
+    private int parallelism = 1;
+    // Runs the parallel searches, kept from one call of runAll to the next, see getExecutor
+    private ThreadPoolExecutor executor;
+    // Legs already searched for during the current planning run
+    private LegCache legCache;
+    private MoveModel moveModel;
+    // Built for the no fly zones of the current planning run, see getVisibilityGraph
+    private VisibilityGraph visibilityGraph;
+    // Likewise, only built if move count fields are used, see getMoveCountGrid
+    private MoveCountGrid moveCountGrid;
+    // Whether move estimates are looked up in move count fields rather than found by beam searches
+    private boolean moveCountFieldEstimates = false;
+    // The field for each sensor position and the starting position during the current planning run, null unless
+    // move count fields are used
+    private Map<Point, MoveCountGrid.Field> moveCountFields;
+    // Whether each leg starts with a narrow beam and widens it as needed, see searchLeg
+    private boolean adaptiveBeamWidth = true;
+    // Width of the beam each leg search starts with during the current planning run
+    private int beamWidth = DEFAULT_BEAM_WIDTH;
+    // The widest beam a leg starting or ending in each region has needed during the current planning run
+    private final Map<Long, Integer> regionBeamWidths = new ConcurrentHashMap<>();
+    // Whether legs start with the widths remembered for their regions. Not while searches run in parallel, as what
+    // has been remembered by then depends on the order they finish, and the flight path found mustn't
+    private boolean useRegionBeamWidths = true;
+    // Legs whose ends are further apart than this are searched for from both ends, see bidirectionalSearch
+    private double bidirectionalDistance;
+    // Wall clock time allowed for each planning run in milliseconds, 0 meaning no limit, see setTimeBudget
+    private long timeBudget = 0;
+    // The System.nanoTime() of the current run's deadline, only enforced by searches while deadlineActive is set
+    private long deadline;
+    private boolean deadlineActive = false;
+    // The best flight found so far while there is a deadline, kept here so none of it is lost when a search is cut short
+    private FlightPlan bestFlight;
+    // Time spent in each phase of the last planning run, in nanoseconds
+    private final Map<PlannerMetrics.Phase, Long> phaseNanos = new EnumMap<>(PlannerMetrics.Phase.class);
+    // Null unless metrics are being collected
+    private PlannerMetrics metrics;
+    // The phase of planning currently running, null outside of findFlightPath
+    private PlannerMetrics.Phase phase;
+    private long phaseStartTime;
+    private PlanningPhaseEvent phaseEvent;
     
     public Drone(Point startPosition, double moveDistance, double readDistance, double endingDistance, int maxMoves, 
             double minLongitude, double maxLongitude, double minLatitude, double maxLatitude) {
@@ -39,11 +111,22 @@ public class Drone {
         this.maxLongitude = maxLongitude;
         this.minLatitude = minLatitude;
         this.maxLatitude = maxLatitude;
+        bidirectionalDistance = moveDistance * DEFAULT_BIDIRECTIONAL_MOVES;
+        legCache = new LegCache();
+        moveModel = new MoveModel(moveDistance, angleStepSize);
     }
     
     public Point getStartPosition() {
         return startPosition;
     }
+    
+    /*
+     * Moves the drone to start its next flight somewhere else. Anything built for the no fly zones is kept, so a 
+     * drone planning many flights around the same no fly zones only builds it once.
+     */
+    public void setStartPosition(Point startPosition) {
+        this.startPosition = startPosition;
+    }
 
     public List<Path> getPathsList() {
         return pathsList;
@@ -53,6 +136,86 @@ public class Drone {
         return visitedSensorsList;
     }
     
+    public int getMaxMoves() {
+        return maxMoves;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    // The flight path found is the same for any level of parallelism, this only affects how long it takes to find it
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+    
+    public PlannerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    // Records what each planning run does in the given metrics, which are cleared at the start of each run. Null stops recording
+    public void setMetrics(PlannerMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public boolean getMoveCountFieldEstimates() {
+        return moveCountFieldEstimates;
+    }
+    
+    /*
+     * Whether to estimate the moves between sensors from a move count field for each sensor, see MoveCountGrid, 
+     * rather than a beam search for each pair. This is much faster with many sensors, but the estimates are rougher 
+     * so the flight path found may differ.
+     */
+    public void setMoveCountFieldEstimates(boolean moveCountFieldEstimates) {
+        this.moveCountFieldEstimates = moveCountFieldEstimates;
+    }
+    
+    public boolean getAdaptiveBeamWidth() {
+        return adaptiveBeamWidth;
+    }
+    
+    // Whether to adapt the beam width to each leg, see searchLeg, rather than always using the same width
+    public void setAdaptiveBeamWidth(boolean adaptiveBeamWidth) {
+        this.adaptiveBeamWidth = adaptiveBeamWidth;
+    }
+    
+    public double getBidirectionalDistance() {
+        return bidirectionalDistance;
+    }
+    
+    /*
+     * Legs whose start and goal are further apart than this distance, in degrees, are searched for from both ends at 
+     * once, see bidirectionalSearch. Infinity turns this off.
+     */
+    public void setBidirectionalDistance(double bidirectionalDistance) {
+        this.bidirectionalDistance = bidirectionalDistance;
+    }
+    
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+    
+    /*
+     * Limits each planning run to about the given number of milliseconds, 0 meaning no limit. With a budget, a valid 
+     * flight path is found quickly and then improved until the budget runs out, see findFlightPathWithinBudget. 
+     * Only the first flight path ignores the budget, so a run can overrun when even that takes longer.
+     */
+    public void setTimeBudget(long timeBudget) {
+        if (timeBudget < 0) {
+            throw new IllegalArgumentException("Time budget can't be negative");
+        }
+        this.timeBudget = timeBudget;
+    }
+    
+    // Time spent in the given phase of the last planning run, in nanoseconds, recorded whether or not metrics are set
+    public long getPhaseNanos(PlannerMetrics.Phase phase) {
+        return phaseNanos.getOrDefault(phase, 0L);
+    }
+    
     // Changes the state of the sensors the drone would visit on its current flight path
     public void updateSensors() {
         for (Sensor sensor : visitedSensorsList) {
@@ -61,154 +224,722 @@ public class Drone {
     }
 
     public void findFlightPath(List<Sensor> sensors, List<NoFlyZone> noFlyZones) {
-        // Initially we attempt to visit all sensors. If this takes us over the move limit, we later remove sensors
-        visitedSensorsList = selectVistOrder(sensors, noFlyZones);
+        // Index the no fly zones with cells roughly the size of a move, so each move only touches a few cells
+        findFlightPath(sensors, new NoFlyZoneIndex(noFlyZones, moveDistance));
+    }
+    
+    // As above, but using an index which has already been built. This allows the index to be reused between flights
+    public void findFlightPath(List<Sensor> sensors, NoFlyZoneIndex noFlyZones) {
+        // Paths found in a previous run may not be valid for these no fly zones
+        legCache.clear();
+        moveCountFields = null;
+        beamWidth = adaptiveBeamWidth ? ADAPTIVE_START_WIDTH : DEFAULT_BEAM_WIDTH;
+        regionBeamWidths.clear();
+        phaseNanos.clear();
+        var runStartTime = System.nanoTime();
+        if (metrics != null) {
+            metrics.clear();
+        }
+        
+        if (timeBudget > 0) {
+            deadline = runStartTime + timeBudget * 1000000;
+            findFlightPathWithinBudget(sensors, noFlyZones);
+        } else {
+            // Initially we attempt to visit all sensors. If this takes us over the move limit, we later remove sensors
+            findFlightPath(selectVistOrder(sensors, noFlyZones), PlannerMetrics.Phase.FLIGHT_PATH, noFlyZones);
+        }
+        endPhase();
+        
+        if (metrics != null) {
+            metrics.recordRun(System.nanoTime() - runStartTime, getMoveCount(), visitedSensorsList.size());
+        }
+    }
+    
+    /*
+     * Flies to the sensors in the given order, dropping sensors until the flight is within the move limit. The 
+     * searches for the legs are counted as the given phase of planning.
+     */
+    private void findFlightPath(List<Sensor> visitOrder, PlannerMetrics.Phase pathPhase, NoFlyZoneIndex noFlyZones) {
+        visitedSensorsList = visitOrder;
         pathsList = new ArrayList<Path>();
+        // Only built if we need to drop sensors
+        DropQueue dropQueue = null;
           
         var updatedOrder = true;
         while (updatedOrder) {
             updatedOrder = false;
             
-            var currentPosition = startPosition;
-            if (pathsList.size() > 0) {
-                currentPosition = pathsList.get(pathsList.size() - 1).getEndPosition();
-            }
-            
             // Need this logic for when we are recomputing part of the flight path due to removing a sensor
+            beginPhase(pathPhase);
             var startIndex = pathsList.size();
-            for (int i = startIndex; i < visitedSensorsList.size(); i++) {
-                var sensor = visitedSensorsList.get(i);
-                var path = findPath(currentPosition, sensor.getPosition(), readDistance, 1, noFlyZones);
-                
-                if (path != null) {
-                    // If we found a path, update the position of the drone and add the path to our list
-                    currentPosition = path.getEndPosition();
-                    pathsList.add(path);
+            findPathsFrom(startIndex, dropQueue, noFlyZones);
+            var numberOfMoves = getMoveCount();
+            
+            /*
+             * We remove sensors from our visit list in a greedy manner to reduce the number of moves below maximum.
+             * Rather than recomputing the flight path after every sensor removed, each round removes enough sensors
+             * to make up about half of the moves we are over by, as estimated by the drop queue. Estimates aren't
+             * exact, so aiming for half means we close in on the maximum over a few rounds without removing more
+             * sensors than needed. Only the paths from the first sensor removed onward need recomputing.
+             */
+            if (numberOfMoves > maxMoves && !visitedSensorsList.isEmpty()) {
+                beginPhase(PlannerMetrics.Phase.SENSOR_DROPPING);
+                updatedOrder = true;
+                if (dropQueue == null) {
+                    dropQueue = new DropQueue(visitedSensorsList, pathsList, startPosition, 
+                            (start, goal) -> estimateMoves(start, goal, noFlyZones),
+                            (start, goal) -> estimateMoves(start, goal, endingDistance, 0, noFlyZones));
                 } else {
-                    // Indicates the sensor is practically inaccessible and shouldn't be considered
-                    visitedSensorsList.remove(i);
-                    i--;
+                    // The paths recomputed last round, along with the one leading into them, have changed
+                    for (int i = Math.max(0, startIndex - 1); i < visitedSensorsList.size(); i++) {
+                        dropQueue.setFlownMoves(visitedSensorsList.get(i), pathsList.get(i).getMoveCount(), 
+                                pathsList.get(i + 1).getMoveCount());
+                    }
+                }
+                
+                var firstDropIndex = visitedSensorsList.size();
+                var targetMoves = maxMoves + (numberOfMoves - maxMoves) / 2;
+                var dropped = dropQueue.pollSaving(numberOfMoves - targetMoves);
+                for (var sensor : dropped) {
+                    var dropIndex = visitedSensorsList.indexOf(sensor);
+                    visitedSensorsList.remove(dropIndex);
+                    firstDropIndex = Math.min(firstDropIndex, dropIndex);
                 }
-            }   
-            // Always needs to be possible to return to start, so no need to check for null
-            pathsList.add(findPath(currentPosition, startPosition, endingDistance, 0, noFlyZones));
+                pathsList.subList(firstDropIndex, pathsList.size()).clear();
+                if (metrics != null) {
+                    metrics.recordDropRound(dropped.size());
+                }
+            }
+        }
+    }
+    
+    /*
+     * Finds the paths to the visited sensors from the given index onward and back to the start, keeping the paths 
+     * before it. Sensors which can't be reached are removed, from the drop queue too if there is one.
+     */
+    private void findPathsFrom(int startIndex, DropQueue dropQueue, NoFlyZoneIndex noFlyZones) {
+        var currentPosition = startPosition;
+        if (startIndex > 0) {
+            currentPosition = pathsList.get(startIndex - 1).getEndPosition();
+        }
+        
+        for (int i = startIndex; i < visitedSensorsList.size(); i++) {
+            var sensor = visitedSensorsList.get(i);
+            var path = findPath(currentPosition, sensor.getPosition(), readDistance, 1, noFlyZones);
             
-            var numberOfMoves = 0;
-            for (Path path : pathsList) {
-                numberOfMoves += path.getPositions().size();
+            if (path != null) {
+                // If we found a path, update the position of the drone and add the path to our list
+                currentPosition = path.getEndPosition();
+                pathsList.add(path);
+            } else {
+                // Indicates the sensor is practically inaccessible and shouldn't be considered
+                visitedSensorsList.remove(i);
+                if (dropQueue != null) {
+                    dropQueue.remove(sensor);
+                }
+                i--;
+            }
+        }   
+        // Always needs to be possible to return to start, so no need to check for null
+        pathsList.add(findPath(currentPosition, startPosition, endingDistance, 0, noFlyZones));
+    }
+    
+    private int getMoveCount() {
+        var numberOfMoves = 0;
+        for (Path path : pathsList) {
+            numberOfMoves += path.getMoveCount();
+        }
+        return numberOfMoves;
+    }
+    
+    /*
+     * Anytime planning, used when there is a time budget. A first flight path is found as quickly as possible, with 
+     * the moves between sensors estimated from move count fields. After that we keep looking for a better one until 
+     * the deadline, always keeping the best found so far: one which visits more sensors, or as many in fewer moves. 
+     * We try, in turn, improving the flight as in improveFlight, flying the best visit order again with ever wider 
+     * beams, and a visit order from beam search estimates (unless move count fields were asked for), each of the last 
+     * two followed by improving the flight again. Whatever is being tried at the deadline is abandoned. The first 
+     * flight path is found without checking the deadline, so a valid flight path is always found however small the 
+     * budget.
+     */
+    private void findFlightPathWithinBudget(List<Sensor> sensors, NoFlyZoneIndex noFlyZones) {
+        var fieldEstimates = moveCountFieldEstimates;
+        moveCountFieldEstimates = true;
+        try {
+            findFlightPath(selectVistOrder(sensors, noFlyZones), PlannerMetrics.Phase.FLIGHT_PATH, noFlyZones);
+        } finally {
+            moveCountFieldEstimates = fieldEstimates;
+        }
+        // Kept for estimating where dropped sensors could be fitted back in, whatever the later estimates come from
+        var fields = moveCountFields;
+        bestFlight = new FlightPlan();
+        
+        deadlineActive = true;
+        try {
+            improveFlight(sensors, fields, noFlyZones);
+            while (beamWidth < MAX_BEAM_WIDTH) {
+                // Legs found with narrower beams would otherwise be taken from the cache
+                beamWidth *= 2;
+                legCache.clear();
+                findFlightPath(new ArrayList<>(bestFlight.sensors), PlannerMetrics.Phase.LEG_IMPROVEMENT, noFlyZones);
+                keepIfBetter();
+                improveFlight(sensors, fields, noFlyZones);
             }
             
-            // We remove sensors from our visit list one at a time in a greedy manner to reduce the number of moves below maximum
-            if (numberOfMoves > maxMoves) {
-                updatedOrder = true;
-                var bestDropIndex = findVisitedSensorsReduction(noFlyZones);
-                
-                // Remove the selected sensor. We only need to recompute the paths from that sensor onward, all paths before are still valid 
-                visitedSensorsList.remove(bestDropIndex);
-                pathsList.subList(bestDropIndex, pathsList.size()).clear();
+            // Much slower than the rest with many sensors, so tried last
+            if (!fieldEstimates) {
+                findFlightPath(selectVistOrder(sensors, noFlyZones), PlannerMetrics.Phase.FLIGHT_PATH, noFlyZones);
+                keepIfBetter();
+                improveFlight(sensors, fields, noFlyZones);
             }
+        } catch (DeadlineExceededException e) {
+            // The best flight path found before the deadline is restored below
+        } finally {
+            deadlineActive = false;
         }
+        bestFlight.restore();
+        bestFlight = null;
     }
     
-    private List<Sensor> selectVistOrder(List<Sensor> sensors, List<NoFlyZone> noFlyZones) { 
-        var moveEstimates = getMoveEstimates(sensors, noFlyZones);
-        var visitOrder = new ArrayList<Sensor>();
-        var orderedIndices = twoOpt(moveEstimates);
+    /*
+     * Keeps the current flight as the best if it is better than the best found so far and within the move limit, 
+     * otherwise goes back to the best. Returns whether the current flight was kept.
+     */
+    private boolean keepIfBetter() {
+        var current = new FlightPlan();
+        if (current.moveCount <= maxMoves && bestFlight.orBetter(current) == current) {
+            bestFlight = current;
+            return true;
+        }
+        bestFlight.restore();
+        return false;
+    }
+    
+    /*
+     * Improves the best flight found so far, which must be the current one, in rounds. Each round fits dropped sensors 
+     * back in, then flies the visited sensors in a new order, then exchanges dropped sensors for visited ones. Any of 
+     * these finding a better flight can make room for the others, so rounds are repeated until one finds nothing 
+     * better. Every better flight visits more sensors or the same in fewer moves, so this always ends. The best flight 
+     * is left as the current one.
+     */
+    private void improveFlight(List<Sensor> sensors, Map<Point, MoveCountGrid.Field> fields, NoFlyZoneIndex noFlyZones) {
+        while (true) {
+            var roundStart = bestFlight;
+            reinsertDroppedSensors(sensors, fields, noFlyZones);
+            reorderVisitedSensors(fields, noFlyZones);
+            exchangeDroppedSensors(sensors, fields, noFlyZones);
+            if (bestFlight == roundStart) {
+                return;
+            }
+        }
+    }
+    
+    /*
+     * Fits the untried dropped sensor which is estimated to add the fewest moves back into the flight, where it adds 
+     * fewest, for as long as that is estimated to stay within the move limit. A sensor which doesn't fit is not tried 
+     * again unless one does fit, which changes where the others might go. The best flight is left as the current one.
+     */
+    private void reinsertDroppedSensors(List<Sensor> sensors, Map<Point, MoveCountGrid.Field> fields, NoFlyZoneIndex noFlyZones) {
+        beginPhase(PlannerMetrics.Phase.SENSOR_REINSERTION);
+        var tried = new IdentityHashMap<Sensor, Boolean>();
+        while (true) {
+            // The cheapest insertion of each sensor not yet tried, in the flight as it now is
+            Sensor bestSensor = null;
+            var bestIndex = 0;
+            var bestCost = Integer.MAX_VALUE;
+            var visited = new IdentityHashMap<Sensor, Boolean>();
+            for (var sensor : visitedSensorsList) {
+                visited.put(sensor, true);
+            }
+            for (var sensor : sensors) {
+                if (visited.containsKey(sensor) || tried.containsKey(sensor)) {
+                    continue;
+                }
+                for (int i = 0; i <= visitedSensorsList.size(); i++) {
+                    var before = i == 0 ? startPosition : visitedSensorsList.get(i - 1).getPosition();
+                    var after = i == visitedSensorsList.size() ? startPosition : visitedSensorsList.get(i).getPosition();
+                    var cost = estimateMoves(before, fields.get(sensor.getPosition())) 
+                            + estimateMoves(sensor.getPosition(), fields.get(after)) - estimateMoves(before, fields.get(after));
+                    if (cost < bestCost) {
+                        bestSensor = sensor;
+                        bestIndex = i;
+                        bestCost = cost;
+                    }
+                }
+            }
+            
+            if (bestSensor == null) {
+                return;
+            }
+            tried.put(bestSensor, true);
+            // Estimates are rough, so sensors estimated to go slightly over the limit are still tried
+            if (bestFlight.moveCount + bestCost > maxMoves + REINSERTION_SLACK) {
+                return;
+            }
+            
+            visitedSensorsList.add(bestIndex, bestSensor);
+            pathsList.subList(bestIndex, pathsList.size()).clear();
+            findPathsFrom(bestIndex, null, noFlyZones);
+            if (keepIfBetter()) {
+                // Sensors which didn't fit before may fit in a different place now
+                tried.clear();
+            }
+        }
+    }
+    
+    /*
+     * Puts the sensors of the best flight in the order of a short round trip through them, estimated from their move 
+     * count fields, and flies that order. The first visit order was chosen for every sensor, so once some are dropped 
+     * a shorter order through those left can sometimes be found. The better of the two flights is left as the current 
+     * one.
+     */
+    private void reorderVisitedSensors(Map<Point, MoveCountGrid.Field> fields, NoFlyZoneIndex noFlyZones) {
+        beginPhase(PlannerMetrics.Phase.TOUR_OPTIMIZATION);
+        var positions = new ArrayList<Point>();
+        for (var sensor : bestFlight.sensors) {
+            positions.add(sensor.getPosition());
+        }
+        positions.add(startPosition);
+        var visitOrder = getVisitOrder(bestFlight.sensors, TourOptimizer.findTour(getFieldMoveEstimates(positions, fields)));
+        if (visitOrder.equals(bestFlight.sensors)) {
+            return;
+        }
         
+        findFlightPath(visitOrder, PlannerMetrics.Phase.LEG_IMPROVEMENT, noFlyZones);
+        keepIfBetter();
+    }
+    
+    /*
+     * Exchanges a dropped sensor for a visited one, trying first the exchange estimated to save the most moves. The 
+     * legs to and from the visited sensor are known from the flight, the legs to and from the dropped sensor which 
+     * would replace them are estimated from its move count field. Exchanges are tried while any untried one is 
+     * estimated to save moves, and kept if the flight really is shorter. The moves saved may make room to fit another 
+     * dropped sensor in. The best flight is left as the current one.
+     */
+    private void exchangeDroppedSensors(List<Sensor> sensors, Map<Point, MoveCountGrid.Field> fields, NoFlyZoneIndex noFlyZones) {
+        beginPhase(PlannerMetrics.Phase.SENSOR_EXCHANGE);
+        var tried = new HashSet<List<Sensor>>();
+        while (true) {
+            var visited = new IdentityHashMap<Sensor, Boolean>();
+            for (var sensor : visitedSensorsList) {
+                visited.put(sensor, true);
+            }
+            Sensor bestDropped = null;
+            var bestIndex = 0;
+            var bestSaving = 0;
+            for (int i = 0; i < visitedSensorsList.size(); i++) {
+                var before = i == 0 ? startPosition : pathsList.get(i - 1).getEndPosition();
+                var after = i == visitedSensorsList.size() - 1 ? startPosition : visitedSensorsList.get(i + 1).getPosition();
+                var flownMoves = pathsList.get(i).getMoveCount() + pathsList.get(i + 1).getMoveCount();
+                for (var sensor : sensors) {
+                    if (visited.containsKey(sensor) || tried.contains(List.of(sensor, visitedSensorsList.get(i)))) {
+                        continue;
+                    }
+                    var saving = flownMoves - estimateMoves(before, fields.get(sensor.getPosition())) 
+                            - estimateMoves(sensor.getPosition(), fields.get(after));
+                    if (saving > bestSaving) {
+                        bestDropped = sensor;
+                        bestIndex = i;
+                        bestSaving = saving;
+                    }
+                }
+            }
+            
+            if (bestDropped == null) {
+                return;
+            }
+            tried.add(List.of(bestDropped, visitedSensorsList.get(bestIndex)));
+            
+            visitedSensorsList.set(bestIndex, bestDropped);
+            pathsList.subList(bestIndex, pathsList.size()).clear();
+            findPathsFrom(bestIndex, null, noFlyZones);
+            keepIfBetter();
+        }
+    }
+    
+    private List<Sensor> selectVistOrder(List<Sensor> sensors, NoFlyZoneIndex noFlyZones) { 
+        beginPhase(PlannerMetrics.Phase.MOVE_ESTIMATES);
+        var moveEstimates = getMoveEstimates(sensors, noFlyZones);
+        // A short round trip through the sensors and the drone's starting position, see TourOptimizer
+        beginPhase(PlannerMetrics.Phase.TOUR_OPTIMIZATION);
+        return getVisitOrder(sensors, TourOptimizer.findTour(moveEstimates));
+    } 
+    
+    // The sensors in the order of a tour through them and the drone, whose index comes after theirs, starting from the drone
+    private static List<Sensor> getVisitOrder(List<Sensor> sensors, int[] orderedIndices) {
         // We want to reorder orderedIndices according to the location of the drone
         int droneIndex = 0;
         for (int i = 0; i < orderedIndices.length; i++) {
-            if (orderedIndices[i] == moveEstimates.length - 1) {
+            if (orderedIndices[i] == sensors.size()) {
                 droneIndex = i;
                 break;
             }
         }
         
+        var visitOrder = new ArrayList<Sensor>();
         for (int i = 1; i < orderedIndices.length; i++) {
             visitOrder.add(sensors.get(orderedIndices[(droneIndex + i) % orderedIndices.length]));
         }
-        
         return visitOrder;
-    } 
+    }
 
-    private int[][] getMoveEstimates(List<Sensor> sensors, List<NoFlyZone> noFlyZones) { 
+    // Ends the current phase of planning, if any, and starts timing the given one
+    private void beginPhase(PlannerMetrics.Phase nextPhase) {
+        endPhase();
+        phase = nextPhase;
+        phaseStartTime = System.nanoTime();
+        phaseEvent = new PlanningPhaseEvent();
+        phaseEvent.begin();
+    }
+    
+    private void endPhase() {
+        if (phase == null) {
+            return;
+        }
+        var nanos = System.nanoTime() - phaseStartTime;
+        phaseNanos.merge(phase, nanos, Long::sum);
+        if (metrics != null) {
+            metrics.addPhaseNanos(phase, nanos);
+        }
+        if (phaseEvent.shouldCommit()) {
+            phaseEvent.phase = phase.name();
+            phaseEvent.commit();
+        }
+        phase = null;
+    }
+    
+    private int[][] getMoveEstimates(List<Sensor> sensors, NoFlyZoneIndex noFlyZones) { 
+        if (moveCountFieldEstimates) {
+            // The starting position comes last, as in the table of estimates
+            var positions = new ArrayList<Point>();
+            for (var sensor : sensors) {
+                positions.add(sensor.getPosition());
+            }
+            positions.add(startPosition);
+            return getFieldMoveEstimates(positions, noFlyZones);
+        }
+        
         // Table of estimated number of moves to get from sensor i to sensor j, with the last row and column representing the drone
         var estimates = new int[sensors.size() + 1][sensors.size() + 1];
+        var droneIndex = estimates.length - 1;
         
+        // Every entry is computed independently, so we list them all up front and then decide how to compute them.
+        // Each estimate is only ever written by the one task which computes it, so the result doesn't depend on the order
+        var tasks = new ArrayList<Callable<Void>>();
         for (int i = 0; i < estimates.length - 2; i++) {
             for (int j = i + 1; j < estimates.length - 1; j++) {
-                var path = findPath(sensors.get(i).getPosition(), sensors.get(j).getPosition(), readDistance, 1, noFlyZones);
-                
-                if (path == null) {
-                    // Divide by 10 since this may be used in sums and we want to avoid overflow
-                    estimates[i][j] = Integer.MAX_VALUE / 10;
-                } else {
-                    estimates[i][j] = path.getPositions().size();
-                }
-                
-                // Assumed paths are symmetric 
-                estimates[j][i] = estimates[i][j];
+                var from = i;
+                var to = j;
+                tasks.add(() -> {
+                    estimates[from][to] = estimateMoves(sensors.get(from).getPosition(), sensors.get(to).getPosition(), noFlyZones);
+                    // Assumed paths are symmetric 
+                    estimates[to][from] = estimates[from][to];
+                    return null;
+                });
             }
         }
         
         for (int i = 0; i < estimates.length - 1; i++) {
-            // Use readDistance rather than endingDistance since this could be either going to the sensor or returning from
-            var path = findPath(startPosition, sensors.get(i).getPosition(), readDistance, 1, noFlyZones);
-            
-            // Logic similar to above
-            if (path == null) {
-                estimates[i][estimates.length - 1] = Integer.MAX_VALUE / 10;
-            } else {
-                estimates[i][estimates.length - 1] = path.getPositions().size();
+            var sensorIndex = i;
+            tasks.add(() -> {
+                estimates[sensorIndex][droneIndex] = estimateMoves(startPosition, sensors.get(sensorIndex).getPosition(), noFlyZones);
+                estimates[droneIndex][sensorIndex] = estimates[sensorIndex][droneIndex];
+                return null;
+            });
+        }
+        
+        // Beam widths needed are still remembered, but only used once the searches are back on this thread
+        useRegionBeamWidths = false;
+        try {
+            runAll(tasks);
+        } finally {
+            useRegionBeamWidths = true;
+        }
+        return estimates;
+    }
+    
+    /*
+     * As above, but looking the estimates up in a move count field for each of the given positions, the sensors and 
+     * then the starting position. The fields from either end of a leg needn't agree exactly, so we take the larger of 
+     * the two to keep the table symmetric. The fields are kept for the rest of the planning run, so the drop queue's 
+     * estimates come from them too.
+     */
+    private int[][] getFieldMoveEstimates(List<Point> positions, NoFlyZoneIndex noFlyZones) {
+        var grid = getMoveCountGrid(noFlyZones);
+        
+        // Each field is only ever written by the one task which finds it
+        var fields = new MoveCountGrid.Field[positions.size()];
+        var tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < fields.length; i++) {
+            var index = i;
+            // Use readDistance rather than endingDistance for the start, as in estimateMoves
+            tasks.add(() -> {
+                fields[index] = grid.getField(positions.get(index), readDistance);
+                return null;
+            });
+        }
+        runAll(tasks);
+        
+        moveCountFields = new IdentityHashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            moveCountFields.put(positions.get(i), fields[i]);
+        }
+        return getFieldMoveEstimates(positions, moveCountFields);
+    }
+    
+    // As above, from fields which have already been found for every one of the positions
+    private int[][] getFieldMoveEstimates(List<Point> positions, Map<Point, MoveCountGrid.Field> fields) {
+        var estimates = new int[positions.size()][positions.size()];
+        for (int i = 0; i < positions.size(); i++) {
+            for (int j = i + 1; j < positions.size(); j++) {
+                estimates[i][j] = Math.max(estimateMoves(positions.get(i), fields.get(positions.get(j))), 
+                        estimateMoves(positions.get(j), fields.get(positions.get(i))));
+                estimates[j][i] = estimates[i][j];
             }
-            estimates[estimates.length - 1][i] = estimates[i][estimates.length - 1];
+        }
+        return estimates;
+    }
+    
+    /*
+     * Estimated number of moves between each pair of the given positions, found as for the table of estimates of a 
+     * flight. Used by FleetPlanner to decide which drone visits which sensors, so it can't rely on anything left over 
+     * from planning a flight.
+     */
+    int[][] getMoveEstimatesBetween(List<Point> positions, NoFlyZoneIndex noFlyZones) {
+        legCache.clear();
+        moveCountFields = null;
+        beamWidth = adaptiveBeamWidth ? ADAPTIVE_START_WIDTH : DEFAULT_BEAM_WIDTH;
+        regionBeamWidths.clear();
+        if (moveCountFieldEstimates) {
+            return getFieldMoveEstimates(positions, noFlyZones);
         }
         
+        var estimates = new int[positions.size()][positions.size()];
+        var tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < positions.size() - 1; i++) {
+            for (int j = i + 1; j < positions.size(); j++) {
+                var from = i;
+                var to = j;
+                tasks.add(() -> {
+                    estimates[from][to] = estimateMoves(positions.get(from), positions.get(to), noFlyZones);
+                    estimates[to][from] = estimates[from][to];
+                    return null;
+                });
+            }
+        }
+        useRegionBeamWidths = false;
+        try {
+            runAll(tasks);
+        } finally {
+            useRegionBeamWidths = true;
+        }
         return estimates;
     }
+    
+    // Estimated number of moves from start to goal, used for building the table of estimates 
+    private int estimateMoves(Point start, Point goal, NoFlyZoneIndex noFlyZones) {
+        // Use readDistance rather than endingDistance since this could be either going to the sensor or returning from
+        return estimateMoves(start, goal, readDistance, 1, noFlyZones);
+    }
+    
+    // As above, for a leg flown to within the given distance of the goal in at least the given number of moves
+    private int estimateMoves(Point start, Point goal, double acceptableError, int minMoves, NoFlyZoneIndex noFlyZones) {
+        if (moveCountFieldEstimates && moveCountFields != null && moveCountFields.containsKey(goal)) {
+            return Math.max(minMoves, getFieldMoveCount(start, moveCountFields.get(goal)));
+        }
+        
+        var path = findPath(start, goal, acceptableError, minMoves, noFlyZones);
+        
+        if (path == null) {
+            // Divide by 10 since this may be used in sums and we want to avoid overflow
+            return Integer.MAX_VALUE / 10;
+        }
+        return path.getMoveCount();
+    }
+    
+    // Estimated number of moves from start to the goal of the given field, always at least one as for a beam search 
+    private int estimateMoves(Point start, MoveCountGrid.Field goalField) {
+        return Math.max(1, getFieldMoveCount(start, goalField));
+    }
+    
+    private int getFieldMoveCount(Point start, MoveCountGrid.Field goalField) {
+        var moveCount = goalField.getMoveCount(start.longitude(), start.latitude());
+        if (moveCount == MoveCountGrid.UNREACHABLE) {
+            return Integer.MAX_VALUE / 10;
+        }
+        return moveCount;
+    }
+    
+    // Runs each of the tasks, in order on this thread if parallelism is 1 and otherwise spread over a pool of threads
+    private void runAll(List<Callable<Void>> tasks) {
+        try {
+            if (parallelism <= 1) {
+                for (var task : tasks) {
+                    task.call();
+                }
+            } else {
+                // Waits for every task, so none is left running on the executor whatever happens
+                for (var future : getExecutor().invokeAll(tasks)) {
+                    future.get();
+                }
+            }
+        } catch (DeadlineExceededException e) {
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeadlineExceededException) {
+                throw (DeadlineExceededException) e.getCause();
+            }
+            throw new IllegalStateException("A path search failed while computing move estimates", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing move estimates", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("A path search failed while computing move estimates", e);
+        }
+    }
 
     /*
-     * We are using the 2-opt method to find a good solution to the travelling salesperson problem
-     * It works by taking an initial choice of solution and improving it by reversing segments where doing so reduce 
-     * the total length of the solution. It does this until it can't find any more which improve the solution.  
+     * The threads are created when first needed and kept for the drone's later planning runs, rather than paying to
+     * start them on every call to runAll. They are daemon threads which stop once idle for a while, so a drone which 
+     * is finished with needs no shutting down.
      */
-    private int[] twoOpt(int[][] distances) {
-        var order = new int[distances.length];
-        for (int i = 0; i < order.length; i++) {
-            order[i] = i;
-        }
-        
-        var improvement = true;
-        while (improvement) {
-            improvement = false;
-            for (int i = 0; i < order.length - 2; i++) {
-                for (int j = i + 1; j < order.length - 1; j++) {
-                    // Tells us reversing the segment from i to j reduces the length of the round trip
-                    if (distances[order[(i - 1 + order.length) % order.length]][order[j]] + 
-                            distances[order[i]][order[(j + 1) % order.length]] < 
-                            distances[order[(i - 1 + order.length) % order.length]][order[i]] + 
-                            distances[order[j]][order[(j + 1) % order.length]]) {
-                        
-                        improvement = true;
-                        // Reverses segment from i to j
-                        for (int i2 = i, j2 = j; i2 < j2; i2++, j2--) {
-                            var temp = order[i2];
-                            order[i2] = order[j2];
-                            order[j2] = temp;
-                        }
-                    }
-                }
-            }  
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null || executor.getMaximumPoolSize() != parallelism) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            executor = new ThreadPoolExecutor(parallelism, parallelism, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, 
+                    new LinkedBlockingQueue<>(), task -> {
+                        var thread = new Thread(task, "drone-search");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+    
+    /*
+     * Calls findPath with default argument for beamwidth. Each leg is only searched for once per planning run, 
+     * after that the path found is taken from the leg cache. If we have already searched for the same leg in the 
+     * opposite direction, we try flying that path backwards before running a new search.
+     */
+    private Path findPath(Point start, Point goal, double acceptableError, int minMoves, NoFlyZoneIndex noFlyZones) {
+        var cached = legCache.lookup(start, goal, acceptableError, minMoves);
+        if (cached != null) {
+            if (metrics != null) {
+                metrics.recordLegCacheHit();
+            }
+            return cached.getPath();
+        }
+        
+        Path path = null;
+        var reverse = legCache.lookup(goal, start, acceptableError, minMoves);
+        if (reverse != null && reverse.getPath() != null) {
+            path = reversePath(reverse.getPath(), start, goal, acceptableError, minMoves, noFlyZones);
+            if (path != null && metrics != null) {
+                metrics.recordReversedLeg();
+            }
+        }
+        
+        if (path == null) {
+            path = searchLeg(start, goal, acceptableError, minMoves, noFlyZones);
         }
         
-        return order;
+        legCache.store(start, goal, acceptableError, minMoves, path);
+        return path;
     }
     
-    // Calls findPath with default argument for beamwidth
-    private Path findPath(Point start, Point goal, double acceptableError, int minMoves, List<NoFlyZone> noFlyZones) {
-     // How wide a beam we use in the beam search. Larger values can improve the path found, but also reduce performance
-     int beamWidth = 300;
-     return findPath(start, goal, acceptableError, beamWidth, minMoves, noFlyZones);
+    /*
+     * Runs a beam search for a leg. How wide a beam we use matters: larger values can improve the path found, but 
+     * also reduce performance. Without an adaptive beam width every leg uses beamWidth. Otherwise we start from 
+     * beamWidth, or the widest beam remembered for the regions the leg starts and ends in, and double the width until 
+     * the path found is close to the lower bound on the moves needed given by the distance around the no fly zones. 
+     * Most legs are open and finish with the first, narrow beam. A leg which fails is tried with every width up to 
+     * MAX_ADAPTIVE_BEAM_WIDTH before a sensor is given up on, unless a wider beam can't help: when the last search 
+     * never had to discard a path, or the visibility graph shows there is no way to the goal at all. The width which worked is remembered for the leg's 
+     * regions, so the legs around a hard obstacle don't each repeat the narrower searches.
+     */
+    private Path searchLeg(Point start, Point goal, double acceptableError, int minMoves, NoFlyZoneIndex noFlyZones) {
+        if (!adaptiveBeamWidth) {
+            return findPath(start, goal, acceptableError, beamWidth, minMoves, noFlyZones);
+        }
+        
+        var startRegion = getRegion(start);
+        var goalRegion = getRegion(goal);
+        var width = beamWidth;
+        if (useRegionBeamWidths) {
+            width = Math.max(width, Math.max(regionBeamWidths.getOrDefault(startRegion, 0), regionBeamWidths.getOrDefault(goalRegion, 0)));
+        }
+        var maxWidth = Math.max(beamWidth, MAX_ADAPTIVE_BEAM_WIDTH);
+        var goalDistances = getVisibilityGraph(noFlyZones).getDistancesTo(goal);
+        var lowerBound = Math.max(minMoves, (int) Math.ceil((goalDistances.get(start.longitude(), start.latitude()) - acceptableError) / moveDistance));
+        
+        Path best = null;
+        while (true) {
+            var counts = new PlannerMetrics.SearchCounts();
+            var path = findPath(start, goal, acceptableError, width, minMoves, noFlyZones, counts);
+            if (path != null && (best == null || path.getMoveCount() < best.getMoveCount())) {
+                best = path;
+            }
+            if (best != null && best.getMoveCount() <= lowerBound + getAcceptableExcess(lowerBound)) {
+                break;
+            }
+            
+            // A wider beam only helps if this one had to discard paths, and can't help with a goal which is walled off
+            if (width >= maxWidth || counts.beamTruncations == 0 || !goalDistances.isReachable(start.longitude(), start.latitude())) {
+                // Not remembered, it would only make the next legs nearby as slow without helping them
+                return best;
+            }
+            width = Math.min(maxWidth, width * 2);
+        }
+        
+        if (width > beamWidth) {
+            regionBeamWidths.merge(startRegion, width, Math::max);
+            regionBeamWidths.merge(goalRegion, width, Math::max);
+        }
+        return best;
+    }
+    
+    /*
+     * How many more moves than the lower bound a leg may take before a wider beam is tried. Moves are restricted to 
+     * multiples of 10 degrees, so even the best path usually needs a move or so more than the bound, and more for a 
+     * long leg or one which bends around corners.
+     */
+    private int getAcceptableExcess(int lowerBound) {
+        return 1 + lowerBound / 5;
+    }
+    
+    // Identifies the region of the confinement area containing a position, see searchLeg
+    private long getRegion(Point position) {
+        return getCell(position.longitude(), position.latitude(), Point.fromLngLat(minLongitude, minLatitude), 
+                moveDistance * REGION_SIZE_IN_MOVES);
+    }
+    
+    /*
+     * Makes the moves of the given path in reverse order and opposite direction, starting from start. The given path
+     * ends within acceptableError of start, so the reversed path ends within the same distance of goal. As the reversed 
+     * moves are shifted by that difference they may not be legal, in which case null is returned.
+     */
+    private Path reversePath(Path path, Point start, Point goal, double acceptableError, int minMoves, NoFlyZoneIndex noFlyZones) {
+        var reversed = new Path(start, moveModel);
+        
+        // Walking back along the path visits its moves in reverse order
+        for (var node = path; node.getParent() != null; node = node.getParent()) {
+            var extendedPath = reversed.extend(moveModel.getOppositeDirection(node.getLastDirection()));
+            
+            if (!checkMoveLegality(reversed.getEndLongitude(), reversed.getEndLatitude(), 
+                    extendedPath.getEndLongitude(), extendedPath.getEndLatitude(), noFlyZones)) {
+                return null;
+            }
+            reversed = extendedPath;
+        }
+        
+        // Should hold from the argument above, but floating point errors could push the end just outside the acceptable error
+        if (getDistance(reversed.getEndLongitude(), reversed.getEndLatitude(), goal) >= acceptableError || reversed.getMoveCount() < minMoves) {
+            return null;
+        }
+        return reversed;
     }
       
     /*
@@ -216,61 +947,123 @@ public class Drone {
      * however we have a very high branching factor and due to the limits on the angles at which the drone can move
      * most moves will result in slight inefficiency so many short paths will be expanded. Over large distances
      * this can cause memory problems, so we decide to use beam search instead.
+     * Package-private so the benchmarks can measure a single search, bypassing the leg cache.
      */
-    private Path findPath(Point start, Point goal, double acceptableError, int beamWidth, int minMoves, List<NoFlyZone> noFlyZones) {
-        //The comparator used to determine which of two paths is better, a required argument for 
-        //priority queue since path doesn't have a default comparator. 
-        var comparator = new Comparator<Path>() {
-            @Override
-            public int compare(Path path1, Path path2) {
-                var cost1 = path1.getPositions().size();
-                var distance1 = getDistance(path1.getEndPosition(), goal) - acceptableError;
-                var heuristic1 = (int) Math.ceil(distance1 / moveDistance);
-                
-                var cost2 = path2.getPositions().size();
-                var distance2 = getDistance(path2.getEndPosition(), goal) - acceptableError;
-                var heuristic2 = (int) Math.ceil(distance2 / moveDistance);
-                
-                if (cost1 + heuristic1 < cost2 + heuristic2) {
-                    return -1;
-                } else if (cost1 + heuristic1 < cost2 + heuristic2) {
-                    return 1;
-                } else if (distance1 < distance2) {
-                    return -1;
-                } else if (distance1 > distance2) {
-                    return 1;
-                }
-                return 0;
-            }
-        };
+    Path findPath(Point start, Point goal, double acceptableError, int beamWidth, int minMoves, NoFlyZoneIndex noFlyZones) {
+        return findPath(start, goal, acceptableError, beamWidth, minMoves, noFlyZones, new PlannerMetrics.SearchCounts());
+    }
+    
+    // As above, counting what the search does in the given counts, which should be new
+    private Path findPath(Point start, Point goal, double acceptableError, int beamWidth, int minMoves, NoFlyZoneIndex noFlyZones, 
+            PlannerMetrics.SearchCounts counts) {
+        var event = new LegSearchEvent();
+        event.begin();
+        var startTime = System.nanoTime();
+        // A single search heads straight for a goal in clear sight, however far, so only hidden goals need both ends
+        var bidirectional = getDistance(start.longitude(), start.latitude(), goal) > bidirectionalDistance
+                && noFlyZones.isCrossedByMove(start.longitude(), start.latitude(), goal.longitude(), goal.latitude());
+        var path = bidirectional
+                ? bidirectionalSearch(start, goal, acceptableError, beamWidth, minMoves, noFlyZones, counts)
+                : beamSearch(start, goal, acceptableError, beamWidth, minMoves, noFlyZones, counts);
         
-        var searchSpace = new PriorityQueue<Path>(comparator);
-        searchSpace.add(new Path(start));
+        counts.nanos = System.nanoTime() - startTime;
+        if (metrics != null) {
+            metrics.recordSearch(phase, start, goal, path, counts);
+        }
+        if (event.shouldCommit()) {
+            event.phase = phase == null ? null : phase.name();
+            event.found = path != null;
+            event.moveCount = path == null ? 0 : path.getMoveCount();
+            event.nodesExpanded = counts.nodesExpanded;
+            event.candidatesGenerated = counts.candidatesGenerated;
+            event.legalityChecks = counts.legalityChecks;
+            event.noFlyZoneRejections = counts.noFlyZoneRejections;
+            event.confinementRejections = counts.confinementRejections;
+            event.beamTruncations = counts.beamTruncations;
+            event.commit();
+        }
+        return path;
+    }
+    
+    // The beam search itself, counting what it does in counts
+    private Path beamSearch(Point start, Point goal, double acceptableError, int beamWidth, int minMoves, NoFlyZoneIndex noFlyZones, 
+            PlannerMetrics.SearchCounts counts) {
+        /*
+         * Many different sequences of moves end at practically the same position, and keeping more than one of them
+         * wastes space in the beam. We divide the area into small cells and remember the fewest moves with which each
+         * cell has been expanded. Expanding a cell again, or adding a path ending in it to the beam, with at least as
+         * many moves can't find anything new. We also remember which path in the beam ends in each cell, so the beam
+         * holds at most one path per cell: a new path to the cell replaces it only if it has fewer moves. The path 
+         * replaced is left where it is in the beam and skipped when it reaches the front.
+         */
+        var duplicateCellSize = moveDistance * DUPLICATE_CELL_FRACTION;
+        var expandedMoves = new HashMap<Long, Integer>();
+        var beamPaths = new HashMap<Long, Path>();
+        
+        // This is a beam search so the search space only ever holds the best paths found so far
+        var searchSpace = new Beam(beamWidth);
+        var startPath = new Path(start, moveModel);
+        var startDistance = getDistance(start.longitude(), start.latitude(), goal);
+        // Scores use the distance around the no fly zones, while the straight line distance decides when we are done
+        var goalDistances = getVisibilityGraph(noFlyZones).getDistancesTo(goal);
+        searchSpace.offer(startPath, getScore(startPath, goalDistances.get(start.longitude(), start.latitude()), acceptableError), startDistance);
+        beamPaths.put(getCell(start.longitude(), start.latitude(), start, duplicateCellSize), startPath);
         
         while (!searchSpace.isEmpty()) {
-            var currentPath = searchSpace.poll();
+            if (deadlineActive && System.nanoTime() > deadline) {
+                throw new DeadlineExceededException();
+            }
+            var currentDistance = searchSpace.bestDistance();
+            var currentPath = searchSpace.pollBest();
+            var currentCell = getCell(currentPath.getEndLongitude(), currentPath.getEndLatitude(), start, duplicateCellSize);
+            if (beamPaths.get(currentCell) != currentPath) {
+                continue;
+            }
+            beamPaths.remove(currentCell);
             
             // If we have found a path which is better than all other paths in the search space which reaches the goal we are done
-            if (getDistance(currentPath.getEndPosition(), goal) < acceptableError && currentPath.getPositions().size() >= minMoves) {  
+            if (currentDistance < acceptableError && currentPath.getMoveCount() >= minMoves) {  
                 return currentPath;
             }
             
+            var expandedWith = expandedMoves.get(currentCell);
+            if (expandedWith != null && expandedWith <= currentPath.getMoveCount()) {
+                continue;
+            }
+            expandedMoves.put(currentCell, currentPath.getMoveCount());
+            counts.nodesExpanded++;
+            
             // Otherwise update the search space
-            for (int angle = 0; angle < 360; angle += angleStepSize) {
-                var extendedPath = currentPath.extend(angle, moveDistance);
+            for (int direction = 0; direction < moveModel.getDirectionCount(); direction++) {
+                var extendedPath = currentPath.extend(direction);
+                counts.candidatesGenerated++;
+                var cell = getCell(extendedPath.getEndLongitude(), extendedPath.getEndLatitude(), start, duplicateCellSize);
+                var previousMoves = expandedMoves.get(cell);
+                var occupant = beamPaths.get(cell);
+                if ((previousMoves != null && previousMoves <= extendedPath.getMoveCount()) || extendedPath.getMoveCount() >= maxMoves
+                        || (occupant != null && occupant.getMoveCount() <= extendedPath.getMoveCount())) {
+                    continue;
+                }
                 
-                if (checkMoveLegality(currentPath.getEndPosition(), extendedPath.getEndPosition(), noFlyZones) && 
-                        extendedPath.getPositions().size() < maxMoves) {
-                    searchSpace.add(extendedPath);
+                counts.legalityChecks++;
+                var legality = getMoveLegality(currentPath.getEndLongitude(), currentPath.getEndLatitude(), 
+                        extendedPath.getEndLongitude(), extendedPath.getEndLatitude(), noFlyZones);
+                if (legality == Legality.OUTSIDE_CONFINEMENT) {
+                    counts.confinementRejections++;
+                } else if (legality == Legality.CROSSES_NO_FLY_ZONE) {
+                    counts.noFlyZoneRejections++;
+                } else {
+                    // If the beam is full this discards whichever path is worst, possibly the one being added
+                    if (searchSpace.size() == beamWidth) {
+                        counts.beamTruncations++;
+                    }
+                    var distance = getDistance(extendedPath.getEndLongitude(), extendedPath.getEndLatitude(), goal);
+                    var distanceAround = goalDistances.get(extendedPath.getEndLongitude(), extendedPath.getEndLatitude());
+                    if (searchSpace.offer(extendedPath, getScore(extendedPath, distanceAround, acceptableError), distance)) {
+                        beamPaths.put(cell, extendedPath);
+                    }
                 } 
             }
-            
-            // This is a beam search so limit the search space to the best paths found so far
-            var beam = new PriorityQueue<Path>(comparator);
-            for (int i = 0; i < beamWidth && !searchSpace.isEmpty(); i++) {
-                beam.add(searchSpace.poll());
-            }
-            searchSpace = beam;
         }
         
         // This shouldn't happen unless there isn't a path to the goal within the acceptable error, 
@@ -278,73 +1071,316 @@ public class Drone {
         return null; 
     } 
     
+    /*
+     * Beam search from both ends of a leg, used instead of beamSearch for long legs, see setBidirectionalDistance. 
+     * One beam grows paths forward from the start. The other grows paths backward from the goal, a backward path 
+     * standing for the moves which take the drone from its end position to the goal. The two take turns expanding 
+     * their best path, each aiming for the other's end of the leg. Whenever a new path ends within acceptableError of 
+     * a position the other side has expanded, the two can be joined: the drone flies the forward path and then the 
+     * moves of the backward path, see joinPaths. The first join found is returned. Each beam only needs to cover 
+     * about half the leg, so for a long leg far fewer paths are expanded than by a single beam covering all of it.
+     */
+    private Path bidirectionalSearch(Point start, Point goal, double acceptableError, int beamWidth, int minMoves, 
+            NoFlyZoneIndex noFlyZones, PlannerMetrics.SearchCounts counts) {
+        var visibilityGraph = getVisibilityGraph(noFlyZones);
+        var forward = new Frontier(start, goal, beamWidth, visibilityGraph.getDistancesTo(goal));
+        var backward = new Frontier(goal, start, beamWidth, visibilityGraph.getDistancesTo(start));
+        var duplicateCellSize = moveDistance * DUPLICATE_CELL_FRACTION;
+        forward.offer(new Path(start, moveModel), getCell(start.longitude(), start.latitude(), start, duplicateCellSize), acceptableError);
+        backward.offer(new Path(goal, moveModel), getCell(goal.longitude(), goal.latitude(), goal, duplicateCellSize), acceptableError);
+        
+        // Both sides head straight for each other, so the first join found is taken rather than searching on for a
+        // slightly shorter one, which costs far more expansions than it saves moves
+        while (!forward.beam.isEmpty() || !backward.beam.isEmpty()) {
+            if (!forward.beam.isEmpty()) {
+                var joined = expand(forward, backward, true, start, goal, acceptableError, minMoves, noFlyZones, counts);
+                if (joined != null) {
+                    return joined;
+                }
+            }
+            if (!backward.beam.isEmpty()) {
+                var joined = expand(backward, forward, false, start, goal, acceptableError, minMoves, noFlyZones, counts);
+                if (joined != null) {
+                    return joined;
+                }
+            }
+        }
+        return null;
+    }
+    
+    // Expands the best path of one side of a bidirectional search, returning the shortest join it makes, if any
+    private Path expand(Frontier side, Frontier other, boolean isForward, Point start, Point goal, 
+            double acceptableError, int minMoves, NoFlyZoneIndex noFlyZones, PlannerMetrics.SearchCounts counts) {
+        if (deadlineActive && System.nanoTime() > deadline) {
+            throw new DeadlineExceededException();
+        }
+        var currentPath = side.beam.pollBest();
+        
+        // Skipped as for beamSearch if replaced in the beam, or if its cell has already been expanded with as few moves
+        var duplicateCellSize = moveDistance * DUPLICATE_CELL_FRACTION;
+        var currentCell = getCell(currentPath.getEndLongitude(), currentPath.getEndLatitude(), side.origin, duplicateCellSize);
+        if (side.beamPaths.get(currentCell) != currentPath) {
+            return null;
+        }
+        side.beamPaths.remove(currentCell);
+        var expandedWith = side.expandedMoves.get(currentCell);
+        if (expandedWith != null && expandedWith <= currentPath.getMoveCount()) {
+            return null;
+        }
+        side.expandedMoves.put(currentCell, currentPath.getMoveCount());
+        side.addExpanded(currentPath, start, acceptableError);
+        counts.nodesExpanded++;
+        
+        Path best = null;        
+        for (int direction = 0; direction < moveModel.getDirectionCount(); direction++) {
+            var extendedPath = currentPath.extend(direction);
+            counts.candidatesGenerated++;
+            var cell = getCell(extendedPath.getEndLongitude(), extendedPath.getEndLatitude(), side.origin, duplicateCellSize);
+            var previousMoves = side.expandedMoves.get(cell);
+            var occupant = side.beamPaths.get(cell);
+            if ((previousMoves != null && previousMoves <= extendedPath.getMoveCount()) || extendedPath.getMoveCount() >= maxMoves
+                    || (occupant != null && occupant.getMoveCount() <= extendedPath.getMoveCount())) {
+                continue;
+            }
+            
+            // A move is legal in one direction exactly when it is in the other, so backward moves are checked the same way
+            counts.legalityChecks++;
+            var legality = getMoveLegality(currentPath.getEndLongitude(), currentPath.getEndLatitude(), 
+                    extendedPath.getEndLongitude(), extendedPath.getEndLatitude(), noFlyZones);
+            if (legality == Legality.OUTSIDE_CONFINEMENT) {
+                counts.confinementRejections++;
+                continue;
+            } else if (legality == Legality.CROSSES_NO_FLY_ZONE) {
+                counts.noFlyZoneRejections++;
+                continue;
+            }
+            
+            // Try joining the new path to each path the other side has expanded near it
+            for (var otherPath : other.getExpandedNear(extendedPath, start, acceptableError)) {
+                // The joined path ends as far from the goal as the two ends are from each other
+                var total = extendedPath.getMoveCount() + otherPath.getMoveCount();
+                if ((best != null && total >= best.getMoveCount()) || MoveModel.distance(extendedPath.getEndLongitude(), 
+                        extendedPath.getEndLatitude(), otherPath.getEndLongitude(), otherPath.getEndLatitude()) >= acceptableError) {
+                    continue;
+                }
+                var joined = isForward ? joinPaths(extendedPath, otherPath, goal, acceptableError, minMoves, noFlyZones)
+                        : joinPaths(otherPath, extendedPath, goal, acceptableError, minMoves, noFlyZones);
+                if (joined != null) {
+                    best = joined;
+                }
+            }
+            
+            if (side.beam.size() == side.beamWidth) {
+                counts.beamTruncations++;
+            }
+            side.offer(extendedPath, cell, acceptableError);
+        }
+        return best;
+    }
+    
+    /*
+     * Flies the given forward path and then the moves of the given backward path, which are its moves in reverse 
+     * order and opposite direction. The backward moves take the drone from the backward path's end to the goal, so 
+     * from the forward path's end they take it to the goal shifted by the gap between the two ends. Returns null if 
+     * the shifted moves aren't legal or don't end within acceptableError of the goal, or the joined path has too many 
+     * or too few moves.
+     */
+    private Path joinPaths(Path forwardPath, Path backwardPath, Point goal, double acceptableError, int minMoves, 
+            NoFlyZoneIndex noFlyZones) {
+        var total = forwardPath.getMoveCount() + backwardPath.getMoveCount();
+        if (total >= maxMoves || total < minMoves) {
+            return null;
+        }
+        
+        var joined = forwardPath;
+        for (var node = backwardPath; node.getParent() != null; node = node.getParent()) {
+            var extendedPath = joined.extend(moveModel.getOppositeDirection(node.getLastDirection()));
+            if (!checkMoveLegality(joined.getEndLongitude(), joined.getEndLatitude(), 
+                    extendedPath.getEndLongitude(), extendedPath.getEndLatitude(), noFlyZones)) {
+                return null;
+            }
+            joined = extendedPath;
+        }
+        if (getDistance(joined.getEndLongitude(), joined.getEndLatitude(), goal) >= acceptableError) {
+            return null;
+        }
+        return joined;
+    }
+    
+    // The visibility graph for the given no fly zones, reusing the last one built if it was for the same zones
+    private synchronized VisibilityGraph getVisibilityGraph(NoFlyZoneIndex noFlyZones) {
+        if (visibilityGraph == null || visibilityGraph.getNoFlyZones() != noFlyZones) {
+            visibilityGraph = new VisibilityGraph(noFlyZones, minLongitude, maxLongitude, minLatitude, maxLatitude, 
+                    moveDistance * WAYPOINT_OFFSET_FRACTION);
+        }
+        return visibilityGraph;
+    }
+    
+    // As for the visibility graph, the grid is kept between planning runs for the same no fly zones
+    private synchronized MoveCountGrid getMoveCountGrid(NoFlyZoneIndex noFlyZones) {
+        if (moveCountGrid == null || moveCountGrid.getNoFlyZones() != noFlyZones) {
+            moveCountGrid = new MoveCountGrid(noFlyZones, moveModel, minLongitude, maxLongitude, minLatitude, maxLatitude, 
+                    moveDistance * MOVE_COUNT_CELL_FRACTION);
+        }
+        return moveCountGrid;
+    }
+    
+    /*
+     * Paths are ranked by the number of moves made plus an estimate of the number of moves still needed, 
+     * lower being better. Ties are broken by the distance to the goal. The estimate is found from the given 
+     * distance, which is the distance around the no fly zones, see VisibilityGraph.
+     */
+    private int getScore(Path path, double distance, double acceptableError) {
+        var heuristic = (int) Math.ceil((distance - acceptableError) / moveDistance);
+        return path.getMoveCount() + heuristic;
+    }
+    
+    // Identifies the cell of the given size containing a position, with cells counted from the origin
+    private long getCell(double lng, double lat, Point origin, double cellSize) {
+        var column = (long) Math.floor((lng - origin.longitude()) / cellSize);
+        var row = (long) Math.floor((lat - origin.latitude()) / cellSize);
+        return (column << 32) ^ (row & 0xffffffffL);
+    }
+    
     /* 
      * Checks whether the straight line move from the first pair of position to the second is legal 
      * Assumes the starting point is legal.
      */
-    private boolean checkMoveLegality(Point start, Point end, List<NoFlyZone> noFlyZones) {
-        var endLng = end.longitude();
-        var endLat = end.latitude();
-        
+    private boolean checkMoveLegality(double startLng, double startLat, double endLng, double endLat, NoFlyZoneIndex noFlyZones) {
+        return getMoveLegality(startLng, startLat, endLng, endLat, noFlyZones) == Legality.LEGAL;
+    }
+    
+    // As above, but giving the reason an illegal move is illegal
+    private Legality getMoveLegality(double startLng, double startLat, double endLng, double endLat, NoFlyZoneIndex noFlyZones) {
         // Exits our confinement area, illegal 
         if (endLng < minLongitude || endLng > maxLongitude || endLat < minLatitude || endLat > maxLatitude) {
-            return false;
+            return Legality.OUTSIDE_CONFINEMENT;
         }
         
         // Cross a no fly zone, illegal 
-        for (NoFlyZone noFlyZone : noFlyZones) {
-            if (noFlyZone.isCrossedByMove(start, end)) {
-                return false;
-            }
+        if (noFlyZones.isCrossedByMove(startLng, startLat, endLng, endLat)) {
+            return Legality.CROSSES_NO_FLY_ZONE;
         }
         
         // If we haven't found a reason for the move to be illegal, it is considered legal
-        return true;
+        return Legality.LEGAL;
     }
 
-    private double getDistance(Point start, Point end) {     
-        return Math.sqrt(Math.pow(start.longitude() - end.longitude(), 2) + Math.pow(start.latitude() - end.latitude(), 2));
+    private double getDistance(double startLng, double startLat, Point end) {
+        return MoveModel.distance(startLng, startLat, end.longitude(), end.latitude());
     }
-
-    /*
-     * Reduces the number of visited sensors by one, selecting the choice which is believe to reduce
-     * the number of required moves for the flight path by the most. Removes the paths which are no 
-     * longer valid due to not visiting that sensor.
-     * Does NOT compute the newly required paths
-     */
-    private int findVisitedSensorsReduction(List<NoFlyZone> noFlyZones) {
-        if (visitedSensorsList.size() <= 1) {
-            return 0;
-        } else {
-            // Index of the sensor we will no longer visit
-            var bestDropIndex = 0;
-            // The estimated cost of the new path that will be required
-            var replacementPathCost = findPath(startPosition, visitedSensorsList.get(0).getPosition(), readDistance, 1, noFlyZones).getPositions().size();
-            // How many moves we expect to save if we were to not visit the sensor at bestDropIndex
-            var bestDropSavings = pathsList.get(0).getPositions().size() + pathsList.get(1).getPositions().size()- replacementPathCost;
-                    
+    
+    private enum Legality {
+        LEGAL, OUTSIDE_CONFINEMENT, CROSSES_NO_FLY_ZONE
+    }
+    
+    // Thrown by a search still running at the deadline, abandoning whatever improvement it was part of
+    private static class DeadlineExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+    
+    // One side of a bidirectional search, growing paths from its origin towards its target
+    private class Frontier {
+        private final Point origin;
+        private final Point target;
+        private final int beamWidth;
+        private final Beam beam;
+        // Distances around the no fly zones to the target
+        private final VisibilityGraph.GoalDistances distances;
+        // Fewest moves each small cell has been expanded with, as in beamSearch
+        private final Map<Long, Integer> expandedMoves = new HashMap<>();
+        // The path in the beam ending in each small cell, as in beamSearch
+        private final Map<Long, Path> beamPaths = new HashMap<>();
+        /*
+         * The paths expanded, by the cell their end is in. Cells are twice the acceptable error across and counted 
+         * from the start, so everything within the acceptable error of a position is in the two by two block of cells 
+         * nearest it. The bounding box of the paths expanded lets most positions skip even that.
+         */
+        private final Map<Long, List<Path>> expanded = new HashMap<>();
+        private double expandedMinLng = Double.POSITIVE_INFINITY;
+        private double expandedMaxLng = Double.NEGATIVE_INFINITY;
+        private double expandedMinLat = Double.POSITIVE_INFINITY;
+        private double expandedMaxLat = Double.NEGATIVE_INFINITY;
+        
+        private Frontier(Point origin, Point target, int beamWidth, VisibilityGraph.GoalDistances distances) {
+            this.origin = origin;
+            this.target = target;
+            this.beamWidth = beamWidth;
+            this.distances = distances;
+            beam = new Beam(beamWidth);
+        }
+        
+        /*
+         * The score is the moves made plus those still needed to reach the target, so a lower bound on the moves of 
+         * any join through the path. The acceptable error is taken off once, whichever side the path is on.
+         */
+        private void offer(Path path, long cell, double acceptableError) {
+            var distanceAround = distances.get(path.getEndLongitude(), path.getEndLatitude());
+            if (beam.offer(path, getScore(path, distanceAround, acceptableError), getDistance(path.getEndLongitude(), path.getEndLatitude(), target))) {
+                beamPaths.put(cell, path);
+            }
+        }
+        
+        private void addExpanded(Path path, Point start, double acceptableError) {
+            var lng = path.getEndLongitude();
+            var lat = path.getEndLatitude();
+            expanded.computeIfAbsent(getCell(lng, lat, start, 2 * acceptableError), cell -> new ArrayList<>()).add(path);
+            expandedMinLng = Math.min(expandedMinLng, lng);
+            expandedMaxLng = Math.max(expandedMaxLng, lng);
+            expandedMinLat = Math.min(expandedMinLat, lat);
+            expandedMaxLat = Math.max(expandedMaxLat, lat);
+        }
+        
+        // The paths expanded which may end within the acceptable error of the end of the given path
+        private List<Path> getExpandedNear(Path path, Point start, double acceptableError) {
+            var lng = path.getEndLongitude();
+            var lat = path.getEndLatitude();
+            if (lng < expandedMinLng - acceptableError || lng > expandedMaxLng + acceptableError 
+                    || lat < expandedMinLat - acceptableError || lat > expandedMaxLat + acceptableError) {
+                return List.of();
+            }
             
-            // Iterate over all sensors currently being visited to find the one which not visiting maximised the number of moves saved
-            for (int i = 1; i < visitedSensorsList.size() - 1; i++) {
-                replacementPathCost = findPath(visitedSensorsList.get(i - 1).getPosition(), visitedSensorsList.get(i + 1).getPosition(), readDistance, 1, noFlyZones).getPositions().size();
-                var thisDropSavings = pathsList.get(i).getPositions().size() + pathsList.get(i + 1).getPositions().size() - replacementPathCost;
-                
-                if (thisDropSavings >= bestDropSavings) {
-                    bestDropSavings = thisDropSavings;
-                    bestDropIndex = i;
+            // The nearest cell corner to the position is between the block of cells to search
+            var cellSize = 2 * acceptableError;
+            var column = (long) Math.floor((lng - start.longitude()) / cellSize + 0.5);
+            var row = (long) Math.floor((lat - start.latitude()) / cellSize + 0.5);
+            var near = new ArrayList<Path>();
+            for (var i = column - 1; i <= column; i++) {
+                for (var j = row - 1; j <= row; j++) {
+                    var paths = expanded.get((i << 32) ^ (j & 0xffffffffL));
+                    if (paths != null) {
+                        near.addAll(paths);
+                    }
                 }
             }
-            
-            // Last sensor needs to be treated differently due to the next location being the drones starting location rather than a sensor
-            replacementPathCost = findPath(visitedSensorsList.get(visitedSensorsList.size() - 1).getPosition(), startPosition, endingDistance, 0, noFlyZones).getPositions().size();
-            var thisDropSavings = pathsList.get(pathsList.size() - 2).getPositions().size() + pathsList.get(pathsList.size() - 1).getPositions().size() - replacementPathCost;
-            
-            if (thisDropSavings >= bestDropSavings) {
-                bestDropIndex = pathsList.size() - 2;
+            return near;
+        }
+    }
+    
+    // A copy of the current flight path, so it can be put back after trying something which turns out worse
+    private class FlightPlan {
+        private final List<Sensor> sensors;
+        private final List<Path> paths;
+        private final int moveCount;
+        
+        private FlightPlan() {
+            sensors = new ArrayList<>(visitedSensorsList);
+            paths = new ArrayList<>(pathsList);
+            moveCount = getMoveCount();
+        }
+        
+        // Visiting more sensors is better, as is visiting as many in fewer moves
+        private FlightPlan orBetter(FlightPlan other) {
+            if (other.sensors.size() > sensors.size() || (other.sensors.size() == sensors.size() && other.moveCount < moveCount)) {
+                return other;
             }
-            
-            return bestDropIndex;
+            return this;
         }
-    }   
+        
+        private void restore() {
+            visitedSensorsList = new ArrayList<>(sensors);
+            pathsList = new ArrayList<>(paths);
+        }
+    }
 }
 
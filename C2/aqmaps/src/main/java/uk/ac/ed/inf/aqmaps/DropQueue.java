@@ -0,0 +1,178 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToIntBiFunction;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Chooses which sensors to stop visiting when a flight is over the move limit. The saving from dropping a sensor is
+ * the moves flown to reach it from the sensor before plus the moves on to the sensor after, less the estimated moves to
+ * go straight from the one before to the one after. The drone's starting position comes before the first sensor and
+ * after the last.
+ * Savings are held in a priority queue, so the best sensor to drop is found without looking at every sensor. Dropping
+ * a sensor only changes the savings of the sensors either side of it, so only those two are recomputed, each needing
+ * one new estimate. Until the flight is recomputed the legs joining them are not known, so estimates are used for
+ * those too. Entries made out of date are left in the queue and skipped when they reach the front.
+ */
+class DropQueue {
+
+    private static final int UNKNOWN = -1;
+
+    private final Point startPosition;
+    private final ToIntBiFunction<Point, Point> estimator;
+    private final ToIntBiFunction<Point, Point> returnEstimator;
+    private final Map<Sensor, Node> nodes;
+    private final PriorityQueue<Candidate> candidates;
+
+    /*
+     * The sensors are in the order they are visited, and paths.get(i) is the path flown to sensors.get(i), with the
+     * path back to the start last. Estimates are the number of moves from the first point to the second, and are
+     * assumed to be cheap when asked for the same points more than once. Legs back to the start are estimated with
+     * returnEstimator, since the flight ends within a different distance of the start than it reads sensors from.
+     */
+    DropQueue(List<Sensor> sensors, List<Path> paths, Point startPosition, ToIntBiFunction<Point, Point> estimator,
+            ToIntBiFunction<Point, Point> returnEstimator) {
+        this.startPosition = startPosition;
+        this.estimator = estimator;
+        this.returnEstimator = returnEstimator;
+        nodes = new IdentityHashMap<>();
+        // Largest saving first. Equal savings go to the sensor visited later, as the paths before it are kept
+        candidates = new PriorityQueue<>((a, b) -> a.savings != b.savings ? Integer.compare(b.savings, a.savings)
+                : Integer.compare(b.node.order, a.node.order));
+
+        Node previous = null;
+        for (int i = 0; i < sensors.size(); i++) {
+            var node = new Node(sensors.get(i), i);
+            node.previous = previous;
+            if (previous != null) {
+                previous.next = node;
+            }
+            nodes.put(node.sensor, node);
+            previous = node;
+        }
+        for (int i = 0; i < sensors.size(); i++) {
+            setFlownMoves(sensors.get(i), paths.get(i).getMoveCount(), paths.get(i + 1).getMoveCount());
+        }
+    }
+
+    boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    // The estimated saving from dropping the sensor which would be returned by poll. There must be a sensor left
+    int peekSavings() {
+        return front().savings;
+    }
+
+    // Removes and returns the sensor whose dropping is estimated to save the most moves
+    Sensor poll() {
+        var sensor = front().node.sensor;
+        remove(sensor);
+        return sensor;
+    }
+
+    /*
+     * Removes sensors, best first, until their estimated savings add up to at least the given number of moves. The 
+     * first sensor is always removed if any are left, but after that we stop once the best saving left isn't positive, 
+     * as dropping a sensor whose bypass is longer than the legs it replaces would only lengthen the flight.
+     */
+    List<Sensor> pollSaving(int moves) {
+        var dropped = new ArrayList<Sensor>();
+        var saved = 0;
+        while (!isEmpty() && (dropped.isEmpty() || (saved < moves && peekSavings() > 0))) {
+            saved += peekSavings();
+            dropped.add(poll());
+        }
+        return dropped;
+    }
+
+    // Stops considering a sensor, for instance when it turns out it can't be reached at all
+    void remove(Sensor sensor) {
+        var node = nodes.remove(sensor);
+        if (node == null) {
+            return;
+        }
+        // Invalidates the node's entry in the queue
+        node.version++;
+
+        if (node.previous != null) {
+            node.previous.next = node.next;
+            node.previous.movesOut = UNKNOWN;
+            update(node.previous);
+        }
+        if (node.next != null) {
+            node.next.previous = node.previous;
+            node.next.movesIn = UNKNOWN;
+            update(node.next);
+        }
+    }
+
+    // Records the moves actually flown to and from a sensor, once that part of the flight has been recomputed
+    void setFlownMoves(Sensor sensor, int movesIn, int movesOut) {
+        var node = nodes.get(sensor);
+        node.movesIn = movesIn;
+        node.movesOut = movesOut;
+        update(node);
+    }
+
+    // Discards out of date entries until the front of the queue is current
+    private Candidate front() {
+        while (true) {
+            var candidate = candidates.peek();
+            if (candidate.version == candidate.node.version) {
+                return candidate;
+            }
+            candidates.poll();
+        }
+    }
+
+    private void update(Node node) {
+        var before = node.previous == null ? startPosition : node.previous.sensor.getPosition();
+        var after = node.next == null ? startPosition : node.next.sensor.getPosition();
+        var position = node.sensor.getPosition();
+
+        var toAfter = node.next == null ? returnEstimator : estimator;
+        var movesIn = node.movesIn != UNKNOWN ? node.movesIn : estimator.applyAsInt(before, position);
+        var movesOut = node.movesOut != UNKNOWN ? node.movesOut : toAfter.applyAsInt(position, after);
+        // With no other sensors left there is nothing to bypass, the drone simply doesn't fly
+        var bypass = node.previous == null && node.next == null ? 0 : toAfter.applyAsInt(before, after);
+
+        node.version++;
+        candidates.add(new Candidate(node, movesIn + movesOut - bypass, node.version));
+    }
+
+    private static class Node {
+        private final Sensor sensor;
+        // Position in the visit order the queue was built with, which never changes
+        private final int order;
+        private Node previous;
+        private Node next;
+        // Moves flown on the legs to and from the sensor, unknown if a neighbour has been dropped since
+        private int movesIn = UNKNOWN;
+        private int movesOut = UNKNOWN;
+        private int version;
+
+        private Node(Sensor sensor, int order) {
+            this.sensor = sensor;
+            this.order = order;
+        }
+    }
+
+    private static class Candidate {
+        private final Node node;
+        private final int savings;
+        // Only the entry made with the node's current version is up to date
+        private final int version;
+
+        private Candidate(Node node, int savings, int version) {
+            this.node = node;
+            this.savings = savings;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Plans the flights of a fleet of drones on the same day, which between them visit as many of the day's sensors as
+ * they can. The sensors are first shared out between the drones using the estimated moves between every pair of
+ * sensors and starting positions, see partition. Each drone then plans its own flight with Drone.findFlightPath, all
+ * of them at once on threads of their own. Any sensor a drone had to drop is offered to a drone whose flight looks to
+ * have enough moves to spare, and the drones given sensors plan their flights again, see rebalance.
+ *
+ * Usage:
+ *   FleetPlanner dd mm yyyy port latitude longitude [latitude longitude ...] [options]
+ * One drone is planned for each starting position given. Options are --threads n (threads used by each drone, by
+ * default the processors shared between the drones), and --cache-dir dir, --clear-cache, --move-count-fields and
+ * --time-budget ms as for App. A time budget applies to each flight planned, including those planned again.
+ * The flight of the kth drone, counting from 1, is written to flightpath-dd-mm-yyyy-k.txt, and every drone's flight
+ * along with all of the sensors to readings-dd-mm-yyyy.geojson.
+ */
+public class FleetPlanner {
+
+    // Each round of offering dropped sensors to other drones plans some flights again, so only a few are tried
+    private static final int MAX_REBALANCE_ROUNDS = 3;
+
+    private final List<Drone> drones;
+    private final NoFlyZoneIndex noFlyZones;
+
+    FleetPlanner(List<Drone> drones, NoFlyZoneIndex noFlyZones) {
+        this.drones = drones;
+        this.noFlyZones = noFlyZones;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 6) {
+            printUsage();
+            System.exit(1);
+        }
+        var day = args[0];
+        var month = args[1];
+        var year = args[2];
+        var webserver = "http://localhost:" + args[3];
+        var startPositions = new ArrayList<Point>();
+        // Until --threads is given the drones share the processors between them, see below
+        var options = new PlannerOptions();
+        options.setParallelism(0);
+
+        try {
+            var i = 4;
+            // Starting positions come in pairs until the first option
+            while (i + 1 < args.length && !args[i].startsWith("--")) {
+                startPositions.add(Point.fromLngLat(Double.parseDouble(args[i + 1]), Double.parseDouble(args[i])));
+                i += 2;
+            }
+            for (; i < args.length; i++) {
+                // The fleet writes no metrics, so --metrics isn't accepted here
+                var last = args[i].equals("--metrics") ? -1 : options.parseOption(args, i);
+                if (last < 0) {
+                    throw new IllegalArgumentException("Unrecognised option " + args[i] + ".");
+                }
+                i = last;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("An argument was incorrectly formated: " + e.getMessage());
+            printUsage();
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        if (startPositions.isEmpty()) {
+            printUsage();
+            System.exit(1);
+        }
+
+        var client = App.createClient(webserver, options);
+        var noFlyZonesResponce = client.fetchNoFlyZones();
+        var mapEntries = client.parseMapData(WebserverClient.await(client.fetchMapData(day, month, year)));
+        if (mapEntries == null) {
+            System.out.println("Exiting");
+            System.exit(1);
+        }
+        var sensors = client.getSensors(mapEntries);
+        var noFlyZones = App.createNoFlyZoneIndex(client.parseNoFlyZones(WebserverClient.await(noFlyZonesResponce)));
+
+        // The estimates are found before any flight is planned, so can use every processor
+        var processors = Runtime.getRuntime().availableProcessors();
+        var threads = options.getParallelism();
+        options.setParallelism(processors);
+        var estimator = App.createDrone(startPositions.get(0), options);
+        options.setParallelism(threads > 0 ? threads : Math.max(1, processors / startPositions.size()));
+        var drones = new ArrayList<Drone>();
+        for (var startPosition : startPositions) {
+            drones.add(App.createDrone(startPosition, options));
+        }
+
+        var flights = new FleetPlanner(drones, noFlyZones).plan(sensors, estimator);
+        var visited = 0;
+        for (int k = 0; k < flights.size(); k++) {
+            var flight = flights.get(k);
+            for (var sensor : flight.getSensors()) {
+                sensor.visit();
+            }
+            visited += flight.getSensors().size();
+            System.out.println("Drone " + (k + 1) + " visits " + flight.getSensors().size() + " sensors in "
+                    + flight.getMoveCount() + " moves");
+            App.writeFlightPath(new File("flightpath-" + day + "-" + month + "-" + year + "-" + (k + 1) + ".txt"),
+                    flight.getStartPosition(), flight.getPaths(), flight.getSensors());
+        }
+        System.out.println("The fleet visits " + visited + " of " + sensors.size() + " sensors");
+        writeReadings(new File("readings-" + day + "-" + month + "-" + year + ".geojson"), flights, sensors);
+    }
+
+    /*
+     * Plans a flight for each drone, in the same order as the drones, which between them visit as many of the given
+     * sensors as possible. The estimator finds the estimated moves used to share out the sensors.
+     */
+    List<Flight> plan(List<Sensor> sensors, Drone estimator) throws InterruptedException {
+        // Sensors first and then the drones' starting positions, the same order as in the table of estimates
+        var positions = new ArrayList<Point>();
+        for (var sensor : sensors) {
+            positions.add(sensor.getPosition());
+        }
+        for (var drone : drones) {
+            positions.add(drone.getStartPosition());
+        }
+        var estimates = estimator.getMoveEstimatesBetween(positions, noFlyZones);
+
+        var assignments = new ArrayList<List<Sensor>>();
+        for (var assigned : partition(estimates, sensors.size(), drones.size())) {
+            var assignment = new ArrayList<Sensor>();
+            for (var index : assigned) {
+                assignment.add(sensors.get(index));
+            }
+            assignments.add(assignment);
+        }
+        var flights = planAll(assignments);
+        rebalance(sensors, estimates, assignments, flights);
+        return flights;
+    }
+
+    /*
+     * Shares out the sensors between the drones, returning the indices of the sensors given to each. The estimates
+     * cover the sensors followed by the drones' starting positions. Each drone has a round trip from its starting
+     * position through the sensors given to it so far, and a load which is the estimated moves of that trip.
+     * Repeatedly, of all the ways to add a sensor not yet given out to a drone's trip where it adds fewest moves, we
+     * take the one which leaves that drone with the lowest load. Drones near many sensors are given them until their
+     * load grows past that of drones further away, so the sensors end up in clusters with similar loads.
+     */
+    static List<List<Integer>> partition(int[][] estimates, int sensorCount, int droneCount) {
+        var trips = new ArrayList<List<Integer>>();
+        for (int k = 0; k < droneCount; k++) {
+            trips.add(new ArrayList<>(List.of(sensorCount + k)));
+        }
+        // Unreachable sensors are estimated at a large number of moves, so loads could overflow an int
+        var loads = new long[droneCount];
+        var assigned = new boolean[sensorCount];
+        // Where each sensor would be added to each drone's trip, and how many moves it would add there
+        var insertionIndex = new int[sensorCount][droneCount];
+        var insertionCost = new int[sensorCount][droneCount];
+        for (int k = 0; k < droneCount; k++) {
+            for (int s = 0; s < sensorCount; s++) {
+                findInsertion(estimates, trips.get(k), s, k, insertionIndex, insertionCost);
+            }
+        }
+
+        for (int step = 0; step < sensorCount; step++) {
+            var bestSensor = -1;
+            var bestDrone = -1;
+            for (int s = 0; s < sensorCount; s++) {
+                if (assigned[s]) {
+                    continue;
+                }
+                for (int k = 0; k < droneCount; k++) {
+                    if (bestSensor == -1 || loads[k] + insertionCost[s][k] < loads[bestDrone] + insertionCost[bestSensor][bestDrone]) {
+                        bestSensor = s;
+                        bestDrone = k;
+                    }
+                }
+            }
+
+            trips.get(bestDrone).add(insertionIndex[bestSensor][bestDrone], bestSensor);
+            loads[bestDrone] += insertionCost[bestSensor][bestDrone];
+            assigned[bestSensor] = true;
+            // Only the trip which has changed needs its insertions finding again
+            for (int s = 0; s < sensorCount; s++) {
+                if (!assigned[s]) {
+                    findInsertion(estimates, trips.get(bestDrone), s, bestDrone, insertionIndex, insertionCost);
+                }
+            }
+        }
+
+        // Leave out the starting positions
+        var partition = new ArrayList<List<Integer>>();
+        for (var trip : trips) {
+            partition.add(new ArrayList<>(trip.subList(1, trip.size())));
+        }
+        return partition;
+    }
+
+    // Finds where the sensor adds fewest moves to the round trip, which is made up of indices into the estimates
+    private static void findInsertion(int[][] estimates, List<Integer> trip, int sensor, int drone, int[][] insertionIndex,
+            int[][] insertionCost) {
+        var bestIndex = 0;
+        var bestCost = Integer.MAX_VALUE;
+        for (int i = 0; i < trip.size(); i++) {
+            var before = trip.get(i);
+            var after = trip.get((i + 1) % trip.size());
+            var cost = estimates[before][sensor] + estimates[sensor][after] - estimates[before][after];
+            if (cost < bestCost) {
+                bestIndex = i + 1;
+                bestCost = cost;
+            }
+        }
+        insertionIndex[sensor][drone] = bestIndex;
+        insertionCost[sensor][drone] = bestCost;
+    }
+
+    /*
+     * Offers each sensor no drone visits to the drone it is estimated to leave with the most moves to spare, among
+     * those it fits into and hasn't already been offered to. The drones offered sensors plan their flights again,
+     * keeping the new flight only if it visits more sensors. Sensors dropped by the new flights are offered in the
+     * next round.
+     */
+    private void rebalance(List<Sensor> sensors, int[][] estimates, List<List<Sensor>> assignments, List<Flight> flights)
+            throws InterruptedException {
+        var indices = new IdentityHashMap<Sensor, Integer>();
+        for (int s = 0; s < sensors.size(); s++) {
+            indices.put(sensors.get(s), s);
+        }
+        // A drone has already had the chance to visit every sensor given to it
+        var offered = new ArrayList<Map<Sensor, Boolean>>();
+        for (var assignment : assignments) {
+            var sensorsOffered = new IdentityHashMap<Sensor, Boolean>();
+            for (var sensor : assignment) {
+                sensorsOffered.put(sensor, true);
+            }
+            offered.add(sensorsOffered);
+        }
+
+        for (int round = 0; round < MAX_REBALANCE_ROUNDS; round++) {
+            var visited = new IdentityHashMap<Sensor, Boolean>();
+            for (var flight : flights) {
+                for (var sensor : flight.getSensors()) {
+                    visited.put(sensor, true);
+                }
+            }
+            var spareMoves = new int[drones.size()];
+            var additions = new ArrayList<List<Sensor>>();
+            for (int k = 0; k < drones.size(); k++) {
+                spareMoves[k] = drones.get(k).getMaxMoves() - flights.get(k).getMoveCount();
+                additions.add(new ArrayList<>());
+            }
+
+            var anyOffered = false;
+            for (var sensor : sensors) {
+                if (visited.containsKey(sensor)) {
+                    continue;
+                }
+                var bestDrone = -1;
+                var bestCost = 0;
+                for (int k = 0; k < drones.size(); k++) {
+                    if (offered.get(k).containsKey(sensor)) {
+                        continue;
+                    }
+                    var cost = getInsertionCost(estimates, flights.get(k), indices, sensors.size() + k, indices.get(sensor));
+                    if (cost <= spareMoves[k] && (bestDrone == -1 || spareMoves[k] - cost > spareMoves[bestDrone] - bestCost)) {
+                        bestDrone = k;
+                        bestCost = cost;
+                    }
+                }
+                if (bestDrone != -1) {
+                    additions.get(bestDrone).add(sensor);
+                    offered.get(bestDrone).put(sensor, true);
+                    spareMoves[bestDrone] -= bestCost;
+                    anyOffered = true;
+                }
+            }
+            if (!anyOffered) {
+                return;
+            }
+
+            // Only the drones offered sensors are planned again, any others are left as they are
+            var replanned = new ArrayList<List<Sensor>>();
+            for (int k = 0; k < drones.size(); k++) {
+                if (additions.get(k).isEmpty()) {
+                    replanned.add(null);
+                } else {
+                    var flightSensors = new ArrayList<Sensor>(flights.get(k).getSensors());
+                    flightSensors.addAll(additions.get(k));
+                    replanned.add(flightSensors);
+                }
+            }
+            var newFlights = planAll(replanned);
+            for (int k = 0; k < drones.size(); k++) {
+                var newFlight = newFlights.get(k);
+                if (newFlight != null && newFlight.getSensors().size() > flights.get(k).getSensors().size()) {
+                    flights.set(k, newFlight);
+                }
+            }
+        }
+    }
+
+    // Estimated moves added by visiting the sensor where it adds fewest in the flight from the given starting position
+    private static int getInsertionCost(int[][] estimates, Flight flight, Map<Sensor, Integer> indices, int start, int sensor) {
+        var bestCost = Integer.MAX_VALUE;
+        var before = start;
+        for (int i = 0; i <= flight.getSensors().size(); i++) {
+            var after = i == flight.getSensors().size() ? start : indices.get(flight.getSensors().get(i));
+            bestCost = Math.min(bestCost, estimates[before][sensor] + estimates[sensor][after] - estimates[before][after]);
+            before = after;
+        }
+        return bestCost;
+    }
+
+    /*
+     * Plans a flight for each drone through the sensors at the same index, all at once on a thread for each drone.
+     * Drones with null in place of their sensors aren't planned, and are given a null flight.
+     */
+    private List<Flight> planAll(List<List<Sensor>> assignments) throws InterruptedException {
+        var executor = Executors.newFixedThreadPool(drones.size());
+        var results = new ArrayList<Future<Flight>>();
+        for (int k = 0; k < drones.size(); k++) {
+            var drone = drones.get(k);
+            var assignment = assignments.get(k);
+            Callable<Flight> task = () -> {
+                if (assignment == null) {
+                    return null;
+                }
+                drone.findFlightPath(assignment, noFlyZones);
+                return new Flight(drone);
+            };
+            results.add(executor.submit(task));
+        }
+
+        var flights = new ArrayList<Flight>();
+        try {
+            for (int k = 0; k < results.size(); k++) {
+                try {
+                    flights.add(results.get(k).get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Planning failed for drone " + (k + 1), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return flights;
+    }
+
+    // The flights of every drone followed by all of the sensors, assuming they have already been updated
+    private static void writeReadings(File file, List<Flight> flights, List<Sensor> sensors) throws IOException {
+        try (var output = new GeoJsonWriter(file)) {
+            for (var flight : flights) {
+                output.writeFlightPath(flight.getStartPosition(), flight.getPaths());
+            }
+            for (var sensor : sensors) {
+                output.writeFeature(sensor.toGeojsonFeature());
+            }
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: FleetPlanner dd mm yyyy port latitude longitude [latitude longitude ...] [--threads n] "
+                + "[--cache-dir dir] [--clear-cache] [--move-count-fields] [--time-budget ms]");
+    }
+
+    // A copy of the flight a drone has planned, which stays the same when the drone plans another
+    static class Flight {
+        private final Point startPosition;
+        private final List<Sensor> sensors;
+        private final List<Path> paths;
+        private final int moveCount;
+
+        Flight(Drone drone) {
+            startPosition = drone.getStartPosition();
+            sensors = new ArrayList<>(drone.getVisitedSensorsList());
+            paths = new ArrayList<>(drone.getPathsList());
+            var moves = 0;
+            for (var path : paths) {
+                moves += path.getMoveCount();
+            }
+            moveCount = moves;
+        }
+
+        Point getStartPosition() {
+            return startPosition;
+        }
+
+        List<Sensor> getSensors() {
+            return sensors;
+        }
+
+        List<Path> getPaths() {
+            return paths;
+        }
+
+        int getMoveCount() {
+            return moveCount;
+        }
+    }
+}
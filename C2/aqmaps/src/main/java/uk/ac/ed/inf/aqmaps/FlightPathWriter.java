@@ -0,0 +1,68 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Writes the moves of a flight, one line per move, in the format
+ *   line number,start longitude,start latitude,angle,end longitude,end latitude,sensor read or null
+ * Lines are written a field at a time into a buffer, so no string is built for each line and the file is only
+ * written to when the buffer fills.
+ */
+public class FlightPathWriter implements Closeable {
+
+    private final BufferedWriter output;
+    private int lineNumber;
+    private Point previousPosition;
+
+    public FlightPathWriter(File file, Point startPosition) throws IOException {
+        this(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8), startPosition);
+    }
+
+    public FlightPathWriter(Writer output, Point startPosition) {
+        this.output = output instanceof BufferedWriter ? (BufferedWriter) output : new BufferedWriter(output);
+        lineNumber = 1;
+        previousPosition = startPosition;
+    }
+
+    // Writes the moves of a path, the last of which reads the given sensor. The sensor is null for the path back to start
+    public void writePath(Path path, Sensor sensor) throws IOException {
+        // These two lists always have the same size
+        var positions = path.getPositions();
+        var angles = path.getMoveAngles();
+
+        for (int j = 0; j < positions.size(); j++) {
+            var position = positions.get(j);
+            output.write(Integer.toString(lineNumber));
+            writeField(Double.toString(previousPosition.longitude()));
+            writeField(Double.toString(previousPosition.latitude()));
+            writeField(Integer.toString(angles.get(j)));
+            writeField(Double.toString(position.longitude()));
+            writeField(Double.toString(position.latitude()));
+            
+            // Only the last move of a path reads a sensor
+            writeField(j == positions.size() - 1 && sensor != null ? sensor.getWhatThreeWords() : "null");
+            output.write('\n');
+
+            lineNumber++;
+            previousPosition = position;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+
+    private void writeField(String value) throws IOException {
+        output.write(',');
+        output.write(value);
+    }
+}
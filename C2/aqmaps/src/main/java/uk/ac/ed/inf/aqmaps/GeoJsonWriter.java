@@ -0,0 +1,75 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+import com.mapbox.geojson.Feature;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.utils.GeoJsonUtils;
+
+/*
+ * Writes a GeoJSON feature collection one feature at a time through a buffer, rather than building the whole
+ * collection and its JSON in memory first. The drone's flight is written straight from its paths without making a
+ * list of every position. Output is exactly what FeatureCollection.toJson gives for the same features, including
+ * coordinates being rounded to 7 decimal places.
+ */
+public class GeoJsonWriter implements Closeable {
+
+    private final JsonWriter json;
+
+    public GeoJsonWriter(File file) throws IOException {
+        this(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    public GeoJsonWriter(Writer output) throws IOException {
+        json = new JsonWriter(output instanceof BufferedWriter ? output : new BufferedWriter(output));
+        json.beginObject();
+        json.name("type").value("FeatureCollection");
+        json.name("features").beginArray();
+    }
+
+    public void writeFeature(Feature feature) throws IOException {
+        json.jsonValue(feature.toJson());
+    }
+
+    // Writes the flight made up of the given paths from the start position as a feature with a LineString geometry
+    public void writeFlightPath(Point startPosition, List<Path> paths) throws IOException {
+        json.beginObject();
+        json.name("type").value("Feature");
+        json.name("geometry").beginObject();
+        json.name("type").value("LineString");
+        json.name("coordinates").beginArray();
+        writeCoordinates(startPosition);
+        for (var path : paths) {
+            for (var position : path.getPositions()) {
+                writeCoordinates(position);
+            }
+        }
+        json.endArray();
+        json.endObject();
+        json.name("properties").beginObject().endObject();
+        json.endObject();
+    }
+
+    // Finishes the collection and closes the file
+    @Override
+    public void close() throws IOException {
+        json.endArray();
+        json.endObject();
+        json.close();
+    }
+
+    private void writeCoordinates(Point position) throws IOException {
+        json.beginArray();
+        json.value(GeoJsonUtils.trim(position.longitude()));
+        json.value(GeoJsonUtils.trim(position.latitude()));
+        json.endArray();
+    }
+}
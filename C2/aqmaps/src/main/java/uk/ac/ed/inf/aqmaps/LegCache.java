@@ -0,0 +1,95 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Remembers the paths found between pairs of points so the same search doesn't need to be run more than once.
+ * Legs are identified by their exact start and goal coordinates along with the acceptable error and minimum number
+ * of moves the path was searched for, since all of these change which path the search finds.
+ * Nothing is discarded during a planning run, the whole cache is emptied between runs instead. Searches running on
+ * different threads finish in any order, so if legs were discarded as the cache filled which ones went would depend
+ * on that order, and a leg searched for again can come back as a different path. A run only ever searches for legs
+ * between its sensors and starting position, besides the legs flown, so the cache stays within a small multiple of
+ * the square of the number of sensors. All methods are synchronized so the cache can be shared by searches running
+ * on different threads.
+ */
+public class LegCache {
+
+    private final Map<Leg, CachedLeg> legs;
+
+    public LegCache() {
+        legs = new HashMap<>();
+    }
+
+    // Returns null if the leg isn't known. A known leg may still hold a null path, meaning the search found no path
+    public synchronized CachedLeg lookup(Point start, Point goal, double acceptableError, int minMoves) {
+        return legs.get(new Leg(start, goal, acceptableError, minMoves));
+    }
+
+    public synchronized void store(Point start, Point goal, double acceptableError, int minMoves, Path path) {
+        legs.put(new Leg(start, goal, acceptableError, minMoves), new CachedLeg(path));
+    }
+
+    public synchronized int size() {
+        return legs.size();
+    }
+
+    public synchronized void clear() {
+        legs.clear();
+    }
+
+    // The result of a search, which may be null if no path was found
+    public static class CachedLeg {
+        private final Path path;
+
+        private CachedLeg(Path path) {
+            this.path = path;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+    }
+
+    private static class Leg {
+        private final double startLng;
+        private final double startLat;
+        private final double goalLng;
+        private final double goalLat;
+        private final double acceptableError;
+        private final int minMoves;
+
+        private Leg(Point start, Point goal, double acceptableError, int minMoves) {
+            this.startLng = start.longitude();
+            this.startLat = start.latitude();
+            this.goalLng = goal.longitude();
+            this.goalLat = goal.latitude();
+            this.acceptableError = acceptableError;
+            this.minMoves = minMoves;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Leg)) {
+                return false;
+            }
+            var leg = (Leg) other;
+            return Double.compare(startLng, leg.startLng) == 0 && Double.compare(startLat, leg.startLat) == 0 &&
+                    Double.compare(goalLng, leg.goalLng) == 0 && Double.compare(goalLat, leg.goalLat) == 0 &&
+                    Double.compare(acceptableError, leg.acceptableError) == 0 && minMoves == leg.minMoves;
+        }
+
+        @Override
+        public int hashCode() {
+            var hash = Double.hashCode(startLng);
+            hash = 31 * hash + Double.hashCode(startLat);
+            hash = 31 * hash + Double.hashCode(goalLng);
+            hash = 31 * hash + Double.hashCode(goalLat);
+            hash = 31 * hash + Double.hashCode(acceptableError);
+            return 31 * hash + minMoves;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package uk.ac.ed.inf.aqmaps;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * A JDK Flight Recorder event for each beam search, holding the same counts as PlannerMetrics.SearchCounts. Only
+ * committed while a recording has the event enabled, which otherwise costs next to nothing.
+ */
+@Name("uk.ac.ed.inf.aqmaps.LegSearch")
+@Label("Leg Search")
+@Category({"Aqmaps", "Planner"})
+@Description("A beam search for a path between two points")
+class LegSearchEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Found")
+    boolean found;
+
+    @Label("Moves")
+    int moveCount;
+
+    @Label("Nodes Expanded")
+    int nodesExpanded;
+
+    @Label("Candidates Generated")
+    int candidatesGenerated;
+
+    @Label("Legality Checks")
+    int legalityChecks;
+
+    @Label("No Fly Zone Rejections")
+    int noFlyZoneRejections;
+
+    @Label("Confinement Rejections")
+    int confinementRejections;
+
+    @Label("Beam Truncations")
+    int beamTruncations;
+}
@@ -0,0 +1,192 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.Arrays;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Divides the confinement area into square cells and links each cell to the cells the drone reaches by making each of
+ * its moves from the cell's centre. Moves which leave the confinement area or cross a no fly zone are left out. The
+ * legality of every move is checked once here, after which any number of fields can be found using only the links.
+ * A field gives, for every cell, roughly how many moves it takes to get from there to within a given distance of a
+ * goal. It is found by a breadth first search backwards along the links, starting from every cell whose centre is
+ * close enough to the goal. Positions are moved to the centre of their cell after every move, so counts can be a move
+ * or so out, but finding a field costs about the same as a single beam search. A position asked about is only counted
+ * from a centre it can see: beside a wall the centre of its own cell can be inside the zone or on the far side, which
+ * would count the moves from somewhere else entirely. The nearest visible centre of the cells around it is used
+ * instead. Moves within the search still end at the centre of whichever cell
+ * they end in, as a sensor can be read through a wall from a position whose centre is behind it.
+ */
+class MoveCountGrid {
+
+    // Count given to cells from which the goal can't be reached
+    static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final NoFlyZoneIndex noFlyZones;
+    private final double minLng;
+    private final double minLat;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    // For each cell, the cells from which a single move reaches it, cell c's being from predecessors[starts[c]] up
+    // to predecessors[starts[c + 1]]
+    private final int[] starts;
+    private final int[] predecessors;
+
+    MoveCountGrid(NoFlyZoneIndex noFlyZones, MoveModel moveModel, double minLng, double maxLng, double minLat, double maxLat,
+            double cellSize) {
+        this.noFlyZones = noFlyZones;
+        this.minLng = minLng;
+        this.minLat = minLat;
+        this.cellSize = cellSize;
+        columns = Math.max(1, (int) Math.ceil((maxLng - minLng) / cellSize));
+        rows = Math.max(1, (int) Math.ceil((maxLat - minLat) / cellSize));
+
+        // Where each move from each cell ends up, or -1 if the move is illegal
+        var cells = columns * rows;
+        var directions = moveModel.getDirectionCount();
+        var targets = new int[cells * directions];
+        var counts = new int[cells + 1];
+        for (int cell = 0; cell < cells; cell++) {
+            var lng = getCentreLongitude(cell);
+            var lat = getCentreLatitude(cell);
+            for (int direction = 0; direction < directions; direction++) {
+                var endLng = lng + moveModel.getStepLongitude(direction);
+                var endLat = lat + moveModel.getStepLatitude(direction);
+                var target = -1;
+                if (endLng >= minLng && endLng <= maxLng && endLat >= minLat && endLat <= maxLat
+                        && !noFlyZones.isCrossedByMove(lng, lat, endLng, endLat)) {
+                    target = getCell(endLng, endLat);
+                    counts[target]++;
+                }
+                targets[cell * directions + direction] = target;
+            }
+        }
+
+        // Turn the links around, so the search can follow them backwards from the goal
+        starts = new int[cells + 1];
+        for (int cell = 0; cell < cells; cell++) {
+            starts[cell + 1] = starts[cell] + counts[cell];
+        }
+        predecessors = new int[starts[cells]];
+        var filled = Arrays.copyOf(starts, cells);
+        for (int cell = 0; cell < cells; cell++) {
+            for (int direction = 0; direction < directions; direction++) {
+                var target = targets[cell * directions + direction];
+                if (target != -1) {
+                    predecessors[filled[target]++] = cell;
+                }
+            }
+        }
+    }
+
+    NoFlyZoneIndex getNoFlyZones() {
+        return noFlyZones;
+    }
+
+    // The moves needed from each cell to get within acceptableError of the goal
+    Field getField(Point goal, double acceptableError) {
+        var moveCounts = new int[columns * rows];
+        Arrays.fill(moveCounts, UNREACHABLE);
+        var queue = new int[moveCounts.length];
+        var head = 0;
+        var tail = 0;
+
+        // Every cell whose centre is close enough to the goal, only looking at the cells which could be
+        var firstColumn = Math.max(0, (int) Math.floor((goal.longitude() - acceptableError - minLng) / cellSize));
+        var lastColumn = Math.min(columns - 1, (int) Math.floor((goal.longitude() + acceptableError - minLng) / cellSize));
+        var firstRow = Math.max(0, (int) Math.floor((goal.latitude() - acceptableError - minLat) / cellSize));
+        var lastRow = Math.min(rows - 1, (int) Math.floor((goal.latitude() + acceptableError - minLat) / cellSize));
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                var cell = row * columns + column;
+                if (MoveModel.distance(getCentreLongitude(cell), getCentreLatitude(cell), goal.longitude(), goal.latitude()) < acceptableError) {
+                    moveCounts[cell] = 0;
+                    queue[tail++] = cell;
+                }
+            }
+        }
+        // The goal is closer to the edge of its cell than any centre, so start from the cell it is in
+        var goalCell = getCell(goal.longitude(), goal.latitude());
+        if (tail == 0 && goalCell != -1) {
+            moveCounts[goalCell] = 0;
+            queue[tail++] = goalCell;
+        }
+
+        while (head < tail) {
+            var cell = queue[head++];
+            for (int i = starts[cell]; i < starts[cell + 1]; i++) {
+                var predecessor = predecessors[i];
+                if (moveCounts[predecessor] == UNREACHABLE) {
+                    moveCounts[predecessor] = moveCounts[cell] + 1;
+                    queue[tail++] = predecessor;
+                }
+            }
+        }
+        return new Field(moveCounts);
+    }
+
+    /*
+     * The cell a position is counted as being in, which is the cell containing it if the line to its centre crosses no
+     * zone, and otherwise the neighbouring cell with the nearest centre which can be seen. -1 if there is none.
+     */
+    private int getVisibleCell(double lng, double lat) {
+        var cell = getCell(lng, lat);
+        if (cell == -1 || !noFlyZones.isCrossedByMove(lng, lat, getCentreLongitude(cell), getCentreLatitude(cell))) {
+            return cell;
+        }
+
+        var column = cell % columns;
+        var row = cell / columns;
+        var nearest = -1;
+        var nearestDistance = Double.POSITIVE_INFINITY;
+        for (int i = Math.max(0, row - 1); i <= Math.min(rows - 1, row + 1); i++) {
+            for (int j = Math.max(0, column - 1); j <= Math.min(columns - 1, column + 1); j++) {
+                var neighbour = i * columns + j;
+                var distance = MoveModel.distance(lng, lat, getCentreLongitude(neighbour), getCentreLatitude(neighbour));
+                if (neighbour != cell && distance < nearestDistance
+                        && !noFlyZones.isCrossedByMove(lng, lat, getCentreLongitude(neighbour), getCentreLatitude(neighbour))) {
+                    nearest = neighbour;
+                    nearestDistance = distance;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    // The cell containing a position, or -1 if it is outside the grid
+    private int getCell(double lng, double lat) {
+        var column = (int) Math.floor((lng - minLng) / cellSize);
+        var row = (int) Math.floor((lat - minLat) / cellSize);
+        // The far edges of the confinement area belong to the last cells
+        column = column == columns && lng - minLng <= columns * cellSize ? columns - 1 : column;
+        row = row == rows && lat - minLat <= rows * cellSize ? rows - 1 : row;
+        if (column < 0 || column >= columns || row < 0 || row >= rows) {
+            return -1;
+        }
+        return row * columns + column;
+    }
+
+    private double getCentreLongitude(int cell) {
+        return minLng + (cell % columns + 0.5) * cellSize;
+    }
+
+    private double getCentreLatitude(int cell) {
+        return minLat + (cell / columns + 0.5) * cellSize;
+    }
+
+    // The approximate moves to one goal from anywhere in the grid
+    class Field {
+        private final int[] moveCounts;
+
+        private Field(int[] moveCounts) {
+            this.moveCounts = moveCounts;
+        }
+
+        // UNREACHABLE if the position is outside the grid or the goal can't be reached from it
+        int getMoveCount(double lng, double lat) {
+            var cell = getVisibleCell(lng, lat);
+            return cell == -1 ? UNREACHABLE : moveCounts[cell];
+        }
+    }
+}
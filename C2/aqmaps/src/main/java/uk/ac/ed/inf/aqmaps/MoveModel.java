@@ -0,0 +1,78 @@
+package uk.ac.ed.inf.aqmaps;
+
+/*
+ * Describes the moves available to the drone. Every move has the same length and its angle is a multiple of the angle
+ * step size, so there are only a small number of distinct moves. We number them by direction, direction d being the
+ * move at angle d * angleStepSize, and compute the change in longitude and latitude of each once up front rather
+ * than evaluating the trigonometric functions every time a move is made.
+ */
+public class MoveModel {
+
+    private final double moveDistance;
+    private final int angleStepSize;
+    private final double[] stepLongitudes;
+    private final double[] stepLatitudes;
+
+    public MoveModel(double moveDistance, int angleStepSize) {
+        if (angleStepSize <= 0 || 360 % angleStepSize != 0) {
+            throw new IllegalArgumentException("The angle step size must divide 360");
+        }
+        if (360 / angleStepSize > Byte.MAX_VALUE) {
+            // Paths store their directions as bytes
+            throw new IllegalArgumentException("The angle step size must allow at most " + Byte.MAX_VALUE + " directions");
+        }
+        this.moveDistance = moveDistance;
+        this.angleStepSize = angleStepSize;
+
+        var directions = 360 / angleStepSize;
+        stepLongitudes = new double[directions];
+        stepLatitudes = new double[directions];
+        for (int direction = 0; direction < directions; direction++) {
+            // Computed in exactly the same way as moves always have been, so positions are unchanged by using the table
+            var angle = direction * angleStepSize;
+            stepLongitudes[direction] = Math.cos(angle * Math.PI / 180.0) * moveDistance;
+            stepLatitudes[direction] = Math.sin(angle * Math.PI / 180.0) * moveDistance;
+        }
+    }
+
+    public double getMoveDistance() {
+        return moveDistance;
+    }
+
+    public int getAngleStepSize() {
+        return angleStepSize;
+    }
+
+    public int getDirectionCount() {
+        return stepLongitudes.length;
+    }
+
+    public int getAngle(int direction) {
+        return direction * angleStepSize;
+    }
+
+    // The direction of a move at the given angle, which must be a multiple of the angle step size
+    public int getDirection(int angle) {
+        return Math.floorMod(angle, 360) / angleStepSize;
+    }
+
+    // The direction which undoes a move in the given direction. Only exact when there are an even number of directions
+    public int getOppositeDirection(int direction) {
+        return (direction + stepLongitudes.length / 2) % stepLongitudes.length;
+    }
+
+    public double getStepLongitude(int direction) {
+        return stepLongitudes[direction];
+    }
+
+    public double getStepLatitude(int direction) {
+        return stepLatitudes[direction];
+    }
+
+    // Straight line distance between two positions, treating longitude and latitude as x and y coordinates
+    public static double distance(double lng1, double lat1, double lng2, double lat2) {
+        var lngDifference = lng1 - lng2;
+        var latDifference = lat1 - lat2;
+        return Math.sqrt(lngDifference * lngDifference + latDifference * latDifference);
+    }
+}
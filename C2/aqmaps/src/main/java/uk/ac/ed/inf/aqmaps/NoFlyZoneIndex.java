@@ -0,0 +1,173 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Holds the edges of a collection of no fly zones in a uniform grid so that checking whether a move crosses any no fly
+ * zone only needs to look at the edges near the move, rather than every edge of every zone.
+ * Each edge is placed in every cell its bounding box touches, and a move is checked against the edges in the cells its
+ * own bounding box touches. A move can only cross an edge if their bounding boxes overlap, so this gives exactly the
+ * same answers as checking every no fly zone in turn. The edges of every zone are compiled together into a single
+ * CompiledEdges, which checks a move against all the edges of a cell at once.
+ * The index is never modified after construction, so BatchPlanner and PlanningServer share one between their workers.
+ */
+public class NoFlyZoneIndex {
+
+    // Grids with more cells than this have their cell size increased, to bound the memory used by very large areas
+    private static final int MAX_CELLS = 1 << 20;
+
+    private final List<NoFlyZone> noFlyZones;
+    private final double floatOffset;
+
+    // The edges of every zone, one zone after another
+    private final CompiledEdges edges;
+
+    // The grid covers the bounding box of all the edges, cells holds the indices of the edges within each cell
+    private final double gridMinLng;
+    private final double gridMinLat;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final int[][] cells;
+
+    public NoFlyZoneIndex(List<NoFlyZone> noFlyZones, double cellSize) {
+        this(noFlyZones, cellSize, NoFlyZone.DEFAULT_FLOAT_OFFSET);
+    }
+
+    public NoFlyZoneIndex(List<NoFlyZone> noFlyZones, double cellSize, double floatOffset) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        this.noFlyZones = List.copyOf(noFlyZones);
+        this.floatOffset = floatOffset;
+
+        var boundaries = new ArrayList<List<Point>>();
+        for (NoFlyZone noFlyZone : noFlyZones) {
+            boundaries.add(noFlyZone.getBoundaryPoints());
+        }
+        edges = new CompiledEdges(boundaries);
+        var edgeCount = edges.size();
+
+        var minLng = Double.POSITIVE_INFINITY;
+        var maxLng = Double.NEGATIVE_INFINITY;
+        var minLat = Double.POSITIVE_INFINITY;
+        var maxLat = Double.NEGATIVE_INFINITY;
+        for (int edge = 0; edge < edgeCount; edge++) {
+            minLng = Math.min(minLng, edges.getMinLng(edge));
+            maxLng = Math.max(maxLng, edges.getMaxLng(edge));
+            minLat = Math.min(minLat, edges.getMinLat(edge));
+            maxLat = Math.max(maxLat, edges.getMaxLat(edge));
+        }
+
+        if (edgeCount == 0) {
+            // Nothing to index, every move is legal as far as the no fly zones are concerned
+            gridMinLng = 0;
+            gridMinLat = 0;
+            this.cellSize = cellSize;
+            columns = 0;
+            rows = 0;
+            cells = new int[0][];
+            return;
+        }
+
+        // Grow the cells until the grid is a reasonable size
+        while (((maxLng - minLng) / cellSize + 1) * ((maxLat - minLat) / cellSize + 1) > MAX_CELLS) {
+            cellSize *= 2;
+        }
+        gridMinLng = minLng;
+        gridMinLat = minLat;
+        this.cellSize = cellSize;
+        columns = (int) ((maxLng - minLng) / cellSize) + 1;
+        rows = (int) ((maxLat - minLat) / cellSize) + 1;
+
+        // Count the edges in each cell first so each cell's array can be allocated at the correct size
+        var cellCounts = new int[columns * rows];
+        for (int i = 0; i < edgeCount; i++) {
+            forEachCell(i, cell -> cellCounts[cell]++);
+        }
+        cells = new int[columns * rows][];
+        for (int cell = 0; cell < cells.length; cell++) {
+            cells[cell] = new int[cellCounts[cell]];
+            cellCounts[cell] = 0;
+        }
+        for (int i = 0; i < edgeCount; i++) {
+            var edgeIndex = i;
+            forEachCell(i, cell -> cells[cell][cellCounts[cell]++] = edgeIndex);
+        }
+    }
+
+    public List<NoFlyZone> getNoFlyZones() {
+        return noFlyZones;
+    }
+
+    /*
+     * Checks if the straight line move from start to end crosses the edge of any of the no fly zones.
+     * Gives the same result as calling NoFlyZone.isCrossedByMove on each zone with the same float offset.
+     */
+    public boolean isCrossedByMove(double startLng, double startLat, double endLng, double endLat) {
+        if (cells.length == 0) {
+            return false;
+        }
+
+        // The bounding box of the move, widened to account for the float offset allowed when checking each edge
+        var margin = CompiledEdges.getMargin(floatOffset);
+        var moveMinLng = Math.min(startLng, endLng) - margin;
+        var moveMaxLng = Math.max(startLng, endLng) + margin;
+        var moveMinLat = Math.min(startLat, endLat) - margin;
+        var moveMaxLat = Math.max(startLat, endLat) + margin;
+
+        var firstColumn = column(moveMinLng);
+        var lastColumn = column(moveMaxLng);
+        var firstRow = row(moveMinLat);
+        var lastRow = row(moveMaxLat);
+
+        // Entirely outside the grid, so there are no edges nearby
+        if (moveMaxLng < gridMinLng - margin || moveMinLng > gridMinLng + columns * cellSize + margin ||
+                moveMaxLat < gridMinLat - margin || moveMinLat > gridMinLat + rows * cellSize + margin) {
+            return false;
+        }
+
+        // A long move covers many cells, each of which may hold the same edges, so it is quicker to check every edge once
+        if ((lastRow - firstRow + 1) * (lastColumn - firstColumn + 1) > edges.size()) {
+            return edges.isCrossedByMove(startLng, startLat, endLng, endLat, floatOffset);
+        }
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                if (edges.isCrossedByMove(cells[row * columns + column], startLng, startLat, endLng, endLat, floatOffset)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // Calls the action with every cell which the (widened) bounding box of the given edge touches
+    private void forEachCell(int edge, IntConsumer action) {
+        var margin = CompiledEdges.getMargin(floatOffset);
+        var firstColumn = column(edges.getMinLng(edge) - margin);
+        var lastColumn = column(edges.getMaxLng(edge) + margin);
+        var firstRow = row(edges.getMinLat(edge) - margin);
+        var lastRow = row(edges.getMaxLat(edge) + margin);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                action.accept(row * columns + column);
+            }
+        }
+    }
+
+    // Cell coordinates are clamped to the grid, so anything beyond the edge of the grid falls in the outermost cells
+    private int column(double lng) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor((lng - gridMinLng) / cellSize)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - gridMinLat) / cellSize)));
+    }
+}
@@ -1,52 +1,114 @@
 package uk.ac.ed.inf.aqmaps;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import com.mapbox.geojson.Point;
 
+/*
+ * A path is stored as a chain of moves, each of which only records its own end position and direction along with a
+ * reference to the path it extends. This means extending a path is constant time and paths share their common
+ * history, which matters since the beam search creates and discards a very large number of them.
+ * The full lists of positions and angles are only built if they are requested, which should only happen for
+ * paths we actually intend to use.
+ */
 public class Path {
-    private Point start;
+    private final MoveModel moveModel;
+    private final Path parent;
+    private final double endLng;
+    private final double endLat;
+    // The direction of the last move as numbered by the move model, which allows at most Byte.MAX_VALUE directions
+    private final byte direction;
+    private final int moveCount;
+
+    // Built on first request, null until then
     private List<Point> movePositions;
     private List<Integer> moveAngles;
-    
-    public Path(Point position) {
-        this.start = position;
-        movePositions = new ArrayList<>();
-        moveAngles = new ArrayList<>();
+
+    public Path(Point position, MoveModel moveModel) {
+        this.moveModel = moveModel;
+        parent = null;
+        endLng = position.longitude();
+        endLat = position.latitude();
+        direction = 0;
+        moveCount = 0;
     }
-    
+
     // Note that this constructor is private, it is intended to be accessed through the extend method
-    private Path(int angle, double distance, Path parent) {
-        var endLng = parent.getEndPosition().longitude() + Math.cos(angle * Math.PI / 180.0) * distance;
-        var endLat = parent.getEndPosition().latitude() + Math.sin(angle * Math.PI / 180.0) * distance;
-        
-        movePositions = new ArrayList<>();
-        movePositions.addAll(parent.movePositions);
-        movePositions.add(Point.fromLngLat(endLng, endLat));
-        
-        moveAngles = new ArrayList<>();
-        moveAngles.addAll(parent.moveAngles);
-        moveAngles.add(angle);
-    }
-    
-    
-    public Path extend(int angle, double distance) {
-        return new Path(angle, distance, this);
-    }
-    
+    private Path(int direction, Path parent) {
+        this.moveModel = parent.moveModel;
+        this.parent = parent;
+        this.endLng = parent.endLng + moveModel.getStepLongitude(direction);
+        this.endLat = parent.endLat + moveModel.getStepLatitude(direction);
+        this.direction = (byte) direction;
+        this.moveCount = parent.moveCount + 1;
+    }
+
+
+    // Makes one more move in the given direction, see MoveModel for how directions are numbered
+    public Path extend(int direction) {
+        return new Path(direction, this);
+    }
+
     public List<Point> getPositions() {
+        if (movePositions == null) {
+            buildMoveLists();
+        }
         return movePositions;
     }
-    
+
     public List<Integer> getMoveAngles() {
+        if (moveAngles == null) {
+            buildMoveLists();
+        }
         return moveAngles;
     }
-    
-    // The end position of a path is either the last element of move positions or the starting position if no moves have been made
+
+    // The number of moves made, equal to the size of the positions and angles lists without needing to build them
+    public int getMoveCount() {
+        return moveCount;
+    }
+
+    // The end position of a path is the position reached by the last move, or the starting position if no moves have been made
     public Point getEndPosition() {
-        if (movePositions.size() == 0) {
-            return start;
+        return Point.fromLngLat(endLng, endLat);
+    }
+
+    public double getEndLongitude() {
+        return endLng;
+    }
+
+    public double getEndLatitude() {
+        return endLat;
+    }
+
+    public MoveModel getMoveModel() {
+        return moveModel;
+    }
+
+    // The path this one extends by a single move, or null if no moves have been made
+    public Path getParent() {
+        return parent;
+    }
+
+    // Direction of the last move made, only meaningful if at least one move has been made
+    public int getLastDirection() {
+        return direction;
+    }
+
+    // Walks back through the chain of moves to the start, then reverses so the lists are in the order the moves are made
+    private void buildMoveLists() {
+        var positions = new ArrayList<Point>(moveCount);
+        var angles = new ArrayList<Integer>(moveCount);
+
+        for (var node = this; node.parent != null; node = node.parent) {
+            positions.add(Point.fromLngLat(node.endLng, node.endLat));
+            angles.add(moveModel.getAngle(node.direction));
         }
-        return movePositions.get(movePositions.size() - 1);
-    }    
+
+        Collections.reverse(positions);
+        Collections.reverse(angles);
+        movePositions = positions;
+        moveAngles = angles;
+    }
 }
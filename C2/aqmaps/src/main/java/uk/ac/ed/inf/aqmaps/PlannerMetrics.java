@@ -0,0 +1,263 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.GsonBuilder;
+import com.mapbox.geojson.Point;
+
+/*
+ * Records where the time goes while a Drone plans a flight: what each beam search did, and how long each phase of
+ * planning took. Only collected if set on the drone with Drone.setMetrics. Each search counts into its own
+ * SearchCounts and hands them over once finished, so the only cost while searching is a few increments of local
+ * counters, and nothing at all is recorded if no metrics are set. Methods are synchronized as searches may be run on
+ * several threads at once.
+ * The same counts are also available as JDK Flight Recorder events, see LegSearchEvent and PlanningPhaseEvent.
+ */
+public class PlannerMetrics {
+
+    public enum Phase {
+        // Building the table of estimated moves between every pair of sensors
+        MOVE_ESTIMATES,
+        // Choosing the order to visit the sensors from the table of estimates
+        TOUR_OPTIMIZATION,
+        // Searching for the legs actually flown
+        FLIGHT_PATH,
+        // Choosing which sensors to drop when the flight is over the move limit
+        SENSOR_DROPPING,
+        // With a time budget, flying the best visit order found so far again with wider beams
+        LEG_IMPROVEMENT,
+        // With a time budget, fitting dropped sensors back into the best flight found so far
+        SENSOR_REINSERTION,
+        // With a time budget, exchanging dropped sensors for visited ones where that saves moves
+        SENSOR_EXCHANGE
+    }
+
+    // Declared in the order they are written out, with the individual searches last
+    private long runNanos;
+    private int moveCount;
+    private int visitedSensorCount;
+    private int dropRounds;
+    private int sensorsDropped;
+    private int legCacheHits;
+    private int reversedLegs;
+    private final Map<Phase, Long> phaseNanos;
+    private final SearchCounts totals;
+    private final List<LegSearch> legSearches;
+
+    public PlannerMetrics() {
+        phaseNanos = new EnumMap<>(Phase.class);
+        totals = new SearchCounts();
+        legSearches = new ArrayList<>();
+    }
+
+    // Forgets everything recorded, done by the drone at the start of each planning run
+    public synchronized void clear() {
+        phaseNanos.clear();
+        totals.clear();
+        legSearches.clear();
+        runNanos = 0;
+        legCacheHits = 0;
+        reversedLegs = 0;
+        dropRounds = 0;
+        sensorsDropped = 0;
+        moveCount = 0;
+        visitedSensorCount = 0;
+    }
+
+    // Time spent in the given phase, in nanoseconds
+    public synchronized long getPhaseNanos(Phase phase) {
+        return phaseNanos.getOrDefault(phase, 0L);
+    }
+
+    // Time spent planning the whole flight, in nanoseconds
+    public synchronized long getRunNanos() {
+        return runNanos;
+    }
+
+    // The counts of all beam searches added together
+    public synchronized SearchCounts getTotals() {
+        return totals.copy();
+    }
+
+    // Every beam search run, in the order they finished
+    public synchronized List<LegSearch> getLegSearches() {
+        return Collections.unmodifiableList(new ArrayList<>(legSearches));
+    }
+
+    // Legs taken from the leg cache rather than searched for
+    public synchronized int getLegCacheHits() {
+        return legCacheHits;
+    }
+
+    // Legs found by flying a known leg in the opposite direction rather than searching
+    public synchronized int getReversedLegs() {
+        return reversedLegs;
+    }
+
+    // Number of times the flight path was recomputed after dropping sensors
+    public synchronized int getDropRounds() {
+        return dropRounds;
+    }
+
+    public synchronized int getSensorsDropped() {
+        return sensorsDropped;
+    }
+
+    public synchronized int getMoveCount() {
+        return moveCount;
+    }
+
+    public synchronized int getVisitedSensorCount() {
+        return visitedSensorCount;
+    }
+
+    synchronized void addPhaseNanos(Phase phase, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+    }
+
+    synchronized void recordSearch(Phase phase, Point start, Point goal, Path path, SearchCounts counts) {
+        totals.add(counts);
+        legSearches.add(new LegSearch(phase, start, goal, path, counts));
+    }
+
+    synchronized void recordLegCacheHit() {
+        legCacheHits++;
+    }
+
+    synchronized void recordReversedLeg() {
+        reversedLegs++;
+    }
+
+    synchronized void recordDropRound(int sensorsDropped) {
+        dropRounds++;
+        this.sensorsDropped += sensorsDropped;
+    }
+
+    synchronized void recordRun(long runNanos, int moveCount, int visitedSensorCount) {
+        this.runNanos = runNanos;
+        this.moveCount = moveCount;
+        this.visitedSensorCount = visitedSensorCount;
+    }
+
+    // Writes everything recorded as JSON, the summary first and then each search
+    public synchronized void writeSummary(File file) throws IOException {
+        Files.writeString(file.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(this));
+    }
+
+    /*
+     * What a single beam search did. Candidates are the paths made by extending an expanded path by one move, and
+     * each candidate not already beaten by a path reaching the same position has its legality checked. A legal
+     * candidate offered to a full beam truncates it, as either it or the worst path in the beam is discarded.
+     */
+    public static class SearchCounts {
+        int nodesExpanded;
+        int candidatesGenerated;
+        int legalityChecks;
+        int noFlyZoneRejections;
+        int confinementRejections;
+        int beamTruncations;
+        long nanos;
+
+        public int getNodesExpanded() {
+            return nodesExpanded;
+        }
+
+        public int getCandidatesGenerated() {
+            return candidatesGenerated;
+        }
+
+        public int getLegalityChecks() {
+            return legalityChecks;
+        }
+
+        public int getNoFlyZoneRejections() {
+            return noFlyZoneRejections;
+        }
+
+        public int getConfinementRejections() {
+            return confinementRejections;
+        }
+
+        public int getBeamTruncations() {
+            return beamTruncations;
+        }
+
+        // Wall time of the search, in nanoseconds
+        public long getNanos() {
+            return nanos;
+        }
+
+        private void add(SearchCounts other) {
+            nodesExpanded += other.nodesExpanded;
+            candidatesGenerated += other.candidatesGenerated;
+            legalityChecks += other.legalityChecks;
+            noFlyZoneRejections += other.noFlyZoneRejections;
+            confinementRejections += other.confinementRejections;
+            beamTruncations += other.beamTruncations;
+            nanos += other.nanos;
+        }
+
+        private void clear() {
+            nodesExpanded = 0;
+            candidatesGenerated = 0;
+            legalityChecks = 0;
+            noFlyZoneRejections = 0;
+            confinementRejections = 0;
+            beamTruncations = 0;
+            nanos = 0;
+        }
+
+        private SearchCounts copy() {
+            var copy = new SearchCounts();
+            copy.add(this);
+            return copy;
+        }
+    }
+
+    // The counts of one search along with the leg it searched for. Positions are {longitude, latitude}
+    public static class LegSearch extends SearchCounts {
+        // Null if the search wasn't made while planning a flight, for instance by a benchmark
+        private final Phase phase;
+        private final double[] start;
+        private final double[] goal;
+        private final boolean found;
+        private final int moveCount;
+
+        private LegSearch(Phase phase, Point start, Point goal, Path path, SearchCounts counts) {
+            this.phase = phase;
+            this.start = new double[] {start.longitude(), start.latitude()};
+            this.goal = new double[] {goal.longitude(), goal.latitude()};
+            found = path != null;
+            moveCount = path == null ? 0 : path.getMoveCount();
+            super.add(counts);
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public Point getStart() {
+            return Point.fromLngLat(start[0], start[1]);
+        }
+
+        public Point getGoal() {
+            return Point.fromLngLat(goal[0], goal[1]);
+        }
+
+        public boolean isFound() {
+            return found;
+        }
+
+        // Moves in the path found, 0 if none was found
+        public int getMoveCount() {
+            return moveCount;
+        }
+    }
+}
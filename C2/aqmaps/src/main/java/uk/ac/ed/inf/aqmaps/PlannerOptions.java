@@ -0,0 +1,115 @@
+package uk.ac.ed.inf.aqmaps;
+
+/*
+ * The planning options given on the command line, shared by App, BatchPlanner, FleetPlanner and PlanningServer, which
+ * all read them with parseOption. Each day's drone is set up from these by App.createDrone, and the webserver client
+ * by App.createClient.
+ */
+class PlannerOptions {
+
+    // Number of threads each drone uses for its path searches
+    private int parallelism = 1;
+    // Whether to write a summary of where planning spent its time alongside the other output files
+    private boolean recordMetrics = false;
+    // Whether to estimate moves between sensors from move count fields, see Drone.setMoveCountFieldEstimates
+    private boolean moveCountFields = false;
+    // Milliseconds each day's planning may take, 0 meaning no limit, see Drone.setTimeBudget
+    private long timeBudget = 0;
+    // Directory to keep What3Words locations and no fly zones in between runs, null for no cache
+    private String cacheDirectory = null;
+    // Whether to empty the cache before running
+    private boolean clearCache = false;
+
+    /*
+     * Reads the option at args[index] if it is one every planner accepts: --threads n, --cache-dir dir, --clear-cache,
+     * --metrics, --move-count-fields or --time-budget ms. Returns the index of the option's last argument, so the
+     * caller carries on after it, or -1 if it isn't one of these. Throws IllegalArgumentException, with a message for
+     * the user, if the option's value is missing or isn't allowed.
+     */
+    int parseOption(String[] args, int index) {
+        switch (args[index]) {
+            case "--threads":
+                parallelism = (int) parsePositive(args, index, Integer.MAX_VALUE);
+                return index + 1;
+            case "--cache-dir":
+                cacheDirectory = getValue(args, index);
+                return index + 1;
+            case "--clear-cache":
+                clearCache = true;
+                return index;
+            case "--metrics":
+                recordMetrics = true;
+                return index;
+            case "--move-count-fields":
+                moveCountFields = true;
+                return index;
+            case "--time-budget":
+                timeBudget = parsePositive(args, index, Long.MAX_VALUE);
+                return index + 1;
+            default:
+                return -1;
+        }
+    }
+
+    // The value given after the option at args[index]
+    static String getValue(String[] args, int index) {
+        if (index + 1 >= args.length) {
+            throw new IllegalArgumentException(args[index] + " needs a value.");
+        }
+        return args[index + 1];
+    }
+
+    // The value given after the option at args[index], which must be a whole number from 1 to max
+    static long parsePositive(String[] args, int index, long max) {
+        var value = getValue(args, index);
+        try {
+            var number = Long.parseLong(value);
+            if (number >= 1 && number <= max) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below along with values out of range
+        }
+        throw new IllegalArgumentException(args[index] + " was given " + value + ", please enter a positive whole number.");
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    boolean getRecordMetrics() {
+        return recordMetrics;
+    }
+
+    void setRecordMetrics(boolean recordMetrics) {
+        this.recordMetrics = recordMetrics;
+    }
+
+    boolean getMoveCountFields() {
+        return moveCountFields;
+    }
+
+    void setMoveCountFields(boolean moveCountFields) {
+        this.moveCountFields = moveCountFields;
+    }
+
+    long getTimeBudget() {
+        return timeBudget;
+    }
+
+    void setTimeBudget(long timeBudget) {
+        this.timeBudget = timeBudget;
+    }
+
+    String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    boolean getClearCache() {
+        return clearCache;
+    }
+}
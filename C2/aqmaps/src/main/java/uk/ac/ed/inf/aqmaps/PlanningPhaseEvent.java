@@ -0,0 +1,17 @@
+package uk.ac.ed.inf.aqmaps;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// A JDK Flight Recorder event spanning one phase of planning a flight, see PlannerMetrics.Phase
+@Name("uk.ac.ed.inf.aqmaps.PlanningPhase")
+@Label("Planning Phase")
+@Category({"Aqmaps", "Planner"})
+@Description("One phase of planning a flight path")
+class PlanningPhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    String phase;
+}
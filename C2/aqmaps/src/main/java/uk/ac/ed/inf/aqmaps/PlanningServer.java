@@ -0,0 +1,368 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.stream.JsonWriter;
+import com.mapbox.geojson.Point;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Plans flights on request over HTTP, staying up between requests so a plan doesn't pay for starting the JVM,
+ * fetching the no fly zones and building everything made from them. The no fly zones are fetched and indexed once at
+ * startup. Each worker thread keeps its own Drone, which keeps the visibility graph and move count grid built for the
+ * no fly zones from one flight to the next. The sensors for a day are fetched the first time the day is asked for and
+ * kept while the day is among the most recently asked for, with each request given its own copies since planning
+ * updates them.
+ *
+ * Usage:
+ *   PlanningServer port webserverPort [options]
+ * Options are --workers n (flights planned at once, by default one per processor), --queue n (requests which can wait
+ * for a worker before more are turned away, by default four per worker), --threads n (threads used by each flight, by
+ * default 1), and --cache-dir dir, --clear-cache, --move-count-fields and --time-budget ms as for App.
+ *
+ * Requests:
+ *   GET /plan?date=dd-mm-yyyy&latitude=lat&longitude=lng
+ *     Plans the day's flight from the given starting position. Answers with a JSON object giving the number of
+ *     sensors visited and moves made, the contents of the flight path file as "flightpath", and the readings GeoJSON
+ *     as "readings". A bad request gets 400, a day with no data 404, and a request turned away because the workers
+ *     are busy and the queue is full gets 503.
+ *   GET /stats
+ *     How many requests have been answered with each outcome, how long planned requests took from arriving to being
+ *     answered, and how many have been planned per second since startup.
+ */
+public class PlanningServer {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+    private static final int DEFAULT_QUEUE_PER_WORKER = 4;
+    // Number of days whose sensors are kept, the least recently asked for being dropped first
+    static final int DAYS_KEPT = 64;
+
+    private final WebserverClient client;
+    private final NoFlyZoneIndex noFlyZones;
+    private final PlannerOptions options;
+    private final ThreadPoolExecutor workers;
+    // Each worker's drone, created by its first request
+    private final ThreadLocal<Drone> drones = new ThreadLocal<>();
+    /*
+     * The sensors of the days most recently asked for, only ever copied so never visited themselves. Kept in access 
+     * order so the least recently used day is the one dropped. Looking a day up changes that order, so every access 
+     * is synchronized.
+     */
+    private final Map<String, List<Sensor>> sensorsByDate = Collections.synchronizedMap(
+            new LinkedHashMap<String, List<Sensor>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<Sensor>> eldest) {
+                    return size() > DAYS_KEPT;
+                }
+            });
+    private final ServiceStats stats = new ServiceStats();
+    private HttpServer server;
+
+    PlanningServer(WebserverClient client, NoFlyZoneIndex noFlyZones, PlannerOptions options, int workerCount, int queueCapacity) {
+        this.client = client;
+        this.noFlyZones = noFlyZones;
+        this.options = options;
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            printUsage();
+            System.exit(1);
+        }
+        var port = 0;
+        var webserver = "http://localhost:" + args[1];
+        var workerCount = Runtime.getRuntime().availableProcessors();
+        var queueCapacity = -1;
+        var options = new PlannerOptions();
+
+        try {
+            port = Integer.parseInt(args[0]);
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].equals("--workers")) {
+                    workerCount = (int) PlannerOptions.parsePositive(args, i++, Integer.MAX_VALUE);
+                } else if (args[i].equals("--queue")) {
+                    queueCapacity = (int) PlannerOptions.parsePositive(args, i++, Integer.MAX_VALUE);
+                } else {
+                    // Requests write no metrics, so --metrics isn't accepted here
+                    var last = args[i].equals("--metrics") ? -1 : options.parseOption(args, i);
+                    if (last < 0) {
+                        throw new IllegalArgumentException("Unrecognised option " + args[i] + ".");
+                    }
+                    i = last;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("An argument was incorrectly formated: " + e.getMessage());
+            printUsage();
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        if (queueCapacity < 0) {
+            queueCapacity = workerCount * DEFAULT_QUEUE_PER_WORKER;
+        }
+
+        // Everything shared between requests is set up before the first is accepted
+        var client = App.createClient(webserver, options);
+        var noFlyZones = App.createNoFlyZoneIndex(client.parseNoFlyZones(WebserverClient.await(client.fetchNoFlyZones())));
+
+        var planningServer = new PlanningServer(client, noFlyZones, options, workerCount, queueCapacity);
+        planningServer.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(planningServer::stop));
+        System.out.println("Planning flights on port " + port + " with " + workerCount + " workers");
+    }
+
+    void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/plan", this::handlePlan);
+        server.createContext("/stats", this::handleStats);
+        // Requests spend almost all their time waiting for a worker to plan them, so these threads do little
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    // The port requests are accepted on, which is chosen by the system if start was given 0
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        workers.shutdownNow();
+    }
+
+    private void handlePlan(HttpExchange exchange) throws IOException {
+        var arrivalTime = System.nanoTime();
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                stats.badRequests.increment();
+                send(exchange, 405, "Only GET requests are accepted");
+                return;
+            }
+
+            var parameters = getParameters(exchange);
+            LocalDate date;
+            Point startPosition;
+            try {
+                if (!parameters.containsKey("date") || !parameters.containsKey("latitude") || !parameters.containsKey("longitude")) {
+                    throw new IllegalArgumentException("date, latitude and longitude are all needed");
+                }
+                date = LocalDate.parse(parameters.get("date"), DATE_FORMAT);
+                startPosition = Point.fromLngLat(Double.parseDouble(parameters.get("longitude")),
+                        Double.parseDouble(parameters.get("latitude")));
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                stats.badRequests.increment();
+                send(exchange, 400, "Please give the date as dd-mm-yyyy and the starting position as decimal numbers: "
+                        + e.getMessage());
+                return;
+            }
+            var day = String.format("%02d", date.getDayOfMonth());
+            var month = String.format("%02d", date.getMonthValue());
+            var year = String.valueOf(date.getYear());
+
+            Future<String> result;
+            try {
+                result = workers.submit(() -> plan(day, month, year, startPosition));
+            } catch (RejectedExecutionException e) {
+                stats.rejected.increment();
+                send(exchange, 503, "All workers are busy, please try again later");
+                return;
+            }
+
+            try {
+                var responce = result.get();
+                if (responce == null) {
+                    stats.notFound.increment();
+                    send(exchange, 404, "There is no data for " + day + "-" + month + "-" + year);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                send(exchange, 200, responce);
+                stats.recordPlanned(System.nanoTime() - arrivalTime);
+            } catch (ExecutionException e) {
+                System.out.println("Error: planning failed for " + day + "-" + month + "-" + year + ": " + e.getCause());
+                stats.failed.increment();
+                send(exchange, 500, "Planning failed");
+            } catch (InterruptedException e) {
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+                stats.failed.increment();
+                send(exchange, 500, "Planning was interrupted");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            send(exchange, 200, stats.toJson(workers));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Plans a flight on a worker, returning the JSON to answer with, or null if there is no data for the day
+    private String plan(String day, String month, String year, Point startPosition) throws IOException, InterruptedException {
+        var sensors = getSensors(day, month, year);
+        if (sensors == null) {
+            return null;
+        }
+        var drone = drones.get();
+        if (drone == null) {
+            drone = App.createDrone(startPosition, options);
+            drones.set(drone);
+        } else {
+            drone.setStartPosition(startPosition);
+        }
+        drone.findFlightPath(sensors, noFlyZones);
+        drone.updateSensors();
+
+        var flightPath = new StringWriter();
+        try (var output = new FlightPathWriter(flightPath, startPosition)) {
+            App.writePaths(output, drone.getPathsList(), drone.getVisitedSensorsList());
+        }
+        var readings = new StringWriter();
+        try (var output = new GeoJsonWriter(readings)) {
+            App.writeReadings(output, sensors, drone);
+        }
+        var moves = 0;
+        for (var path : drone.getPathsList()) {
+            moves += path.getMoveCount();
+        }
+
+        var responce = new StringWriter();
+        try (var json = new JsonWriter(responce)) {
+            json.beginObject();
+            json.name("sensorsVisited").value(drone.getVisitedSensorsList().size());
+            json.name("moves").value(moves);
+            json.name("flightpath").value(flightPath.toString());
+            json.name("readings").jsonValue(readings.toString());
+            json.endObject();
+        }
+        return responce.toString();
+    }
+
+    // Copies of the day's sensors, which are fetched the first time the day is asked for. Null if there is no data
+    private List<Sensor> getSensors(String day, String month, String year) throws IOException, InterruptedException {
+        var date = day + "-" + month + "-" + year;
+        var sensors = sensorsByDate.get(date);
+        if (sensors == null) {
+            // Two requests for a new day at once may both fetch it, which does no harm
+            var mapEntries = client.parseMapData(WebserverClient.await(client.fetchMapData(day, month, year)));
+            if (mapEntries == null) {
+                return null;
+            }
+            sensors = client.getSensors(mapEntries);
+            sensorsByDate.putIfAbsent(date, sensors);
+        }
+
+        var copies = new ArrayList<Sensor>();
+        for (var sensor : sensors) {
+            copies.add(new Sensor(sensor));
+        }
+        return copies;
+    }
+
+    private static Map<String, String> getParameters(HttpExchange exchange) {
+        var parameters = new HashMap<String, String>();
+        var query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (var pair : query.split("&")) {
+            var split = pair.indexOf('=');
+            if (split > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, split), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (var output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: PlanningServer port webserverPort [--workers n] [--queue n] [--threads n] [--cache-dir dir] "
+                + "[--clear-cache] [--move-count-fields] [--time-budget ms]");
+    }
+
+    // Counts of how requests have been answered, which can be updated from any thread
+    private static class ServiceStats {
+        private final long startTime = System.nanoTime();
+        private final LongAdder planned = new LongAdder();
+        private final LongAdder notFound = new LongAdder();
+        private final LongAdder badRequests = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        // From a request arriving to it being answered, for planned requests only
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        private void recordPlanned(long nanos) {
+            planned.increment();
+            latencyNanos.add(nanos);
+            maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        private String toJson(ThreadPoolExecutor workers) throws IOException {
+            var seconds = (System.nanoTime() - startTime) / 1e9;
+            var plannedCount = planned.sum();
+            var responce = new StringWriter();
+            try (var json = new JsonWriter(responce)) {
+                json.beginObject();
+                json.name("uptimeSeconds").value(seconds);
+                json.name("planned").value(plannedCount);
+                json.name("notFound").value(notFound.sum());
+                json.name("badRequests").value(badRequests.sum());
+                json.name("rejected").value(rejected.sum());
+                json.name("failed").value(failed.sum());
+                json.name("planning").value(workers.getActiveCount());
+                json.name("queued").value(workers.getQueue().size());
+                json.name("meanLatencyMillis").value(plannedCount == 0 ? 0 : latencyNanos.sum() / 1e6 / plannedCount);
+                json.name("maxLatencyMillis").value(maxLatencyNanos.get() / 1e6);
+                json.name("plannedPerSecond").value(plannedCount / seconds);
+                json.endObject();
+            }
+            return responce.toString();
+        }
+    }
+}
@@ -31,6 +31,12 @@ public class Sensor {
         this(position, batteryLife, 10.0, reading, whatThreeWords, "", "#aaaaaa", "medium");
     }
     
+    // A copy of the sensor as it is now, which can be visited without changing the original
+    public Sensor(Sensor sensor) {
+        this(sensor.position, sensor.batteryLife, sensor.minimumReliableBattery, sensor.reading, sensor.whatThreeWords, 
+                sensor.markerSymbol, sensor.markerColor, sensor.markerSize);
+    }
+    
     public Point getPosition() {
         return position;
     }
@@ -0,0 +1,325 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.ArrayDeque;
+
+/*
+ * Finds a short round trip through every point of a symmetric table of distances, as an order of the table's indices.
+ * We start from a nearest neighbour tour and improve it with 2-opt moves, which reverse part of the tour, and Or-opt
+ * moves, which move a run of up to three points elsewhere in the tour, possibly reversed. Or-opt moves are the kind of
+ * 3-opt move which matters most in practice, and unlike general 3-opt can be searched in time linear in the neighbours.
+ * Only moves joining a point to one of its nearest neighbours are considered, which is where almost all improvements
+ * are found. Each point also has a "don't look" bit: once no move from a point improves the tour we stop trying it
+ * until one of the tour edges next to it changes. Together these make a pass over the tour cost about O(n k) for
+ * k neighbours rather than the O(n^2) of checking every pair.
+ */
+public class TourOptimizer {
+
+    // Number of nearest neighbours each point considers joining to
+    private static final int NEIGHBOUR_COUNT = 10;
+    // Longest run of points moved by an Or-opt move
+    private static final int MAX_SEGMENT_LENGTH = 3;
+
+    private final int[][] distances;
+    private final int size;
+    private final int[][] neighbours;
+    // The point at each position of the tour, and the position of each point in the tour
+    private final int[] tour;
+    private final int[] positions;
+    private final ArrayDeque<Integer> active;
+    private final boolean[] isActive;
+
+    private TourOptimizer(int[][] distances) {
+        this.distances = distances;
+        size = distances.length;
+        neighbours = findNeighbours();
+        tour = new int[size];
+        positions = new int[size];
+        active = new ArrayDeque<>();
+        isActive = new boolean[size];
+    }
+
+    /*
+     * Returns the indices of the table in the order to visit them. The order is a cycle starting from an arbitrary
+     * index, and distances[i][j] must equal distances[j][i]. The same table always gives the same order.
+     */
+    public static int[] findTour(int[][] distances) {
+        var optimizer = new TourOptimizer(distances);
+        optimizer.buildNearestNeighbourTour();
+        // With three or fewer points every tour is the same length
+        if (optimizer.size > 3) {
+            optimizer.improve();
+        }
+        return optimizer.tour;
+    }
+
+    // Length of the round trip visiting the indices in the given order
+    public static long getLength(int[][] distances, int[] order) {
+        long length = 0;
+        for (int i = 0; i < order.length; i++) {
+            length += distances[order[i]][order[(i + 1) % order.length]];
+        }
+        return length;
+    }
+
+    // The closest points to each point, nearest first with ties going to the lower index
+    private int[][] findNeighbours() {
+        var count = Math.min(NEIGHBOUR_COUNT, size - 1);
+        var result = new int[size][count];
+        for (int i = 0; i < size; i++) {
+            var nearest = result[i];
+            var found = 0;
+            for (int j = 0; j < size; j++) {
+                if (j == i || (found == count && distances[i][j] >= distances[i][nearest[count - 1]])) {
+                    continue;
+                }
+                // Insertion into the short sorted list, dropping the furthest if it is full
+                var k = found < count ? found++ : count - 1;
+                while (k > 0 && distances[i][nearest[k - 1]] > distances[i][j]) {
+                    nearest[k] = nearest[k - 1];
+                    k--;
+                }
+                nearest[k] = j;
+            }
+        }
+        return result;
+    }
+
+    // Starting from the last index, repeatedly go to the closest point not yet visited
+    private void buildNearestNeighbourTour() {
+        var visited = new boolean[size];
+        var current = size - 1;
+        for (int i = 0; i < size; i++) {
+            tour[i] = current;
+            positions[current] = i;
+            visited[current] = true;
+
+            var next = -1;
+            for (int j = 0; j < size; j++) {
+                if (!visited[j] && (next == -1 || distances[current][j] < distances[current][next])) {
+                    next = j;
+                }
+            }
+            current = next;
+        }
+    }
+
+    private void improve() {
+        for (var point : tour) {
+            activate(point);
+        }
+
+        while (!active.isEmpty()) {
+            var point = active.poll();
+            isActive[point] = false;
+            // Any move found changes the edges around this point, so it is looked at again
+            if (tryTwoOpt(point) || tryOrOpt(point)) {
+                activate(point);
+            }
+        }
+    }
+
+    private void activate(int point) {
+        if (!isActive[point]) {
+            isActive[point] = true;
+            active.add(point);
+        }
+    }
+
+    private int next(int point) {
+        return tour[positions[point] + 1 == size ? 0 : positions[point] + 1];
+    }
+
+    private int previous(int point) {
+        return tour[positions[point] == 0 ? size - 1 : positions[point] - 1];
+    }
+
+    private long distance(int i, int j) {
+        return distances[i][j];
+    }
+
+    /*
+     * Looks for a 2-opt move replacing the edge from a to one of its tour neighbours b with an edge from a to a near
+     * neighbour c. Only c closer to a than b can give an improvement, and the neighbours are sorted, so we stop there.
+     */
+    private boolean tryTwoOpt(int a) {
+        for (int forward = 0; forward < 2; forward++) {
+            var b = forward == 0 ? next(a) : previous(a);
+            for (var c : neighbours[a]) {
+                var gainFromFirst = distance(a, b) - distance(a, c);
+                if (gainFromFirst <= 0) {
+                    break;
+                }
+                var d = forward == 0 ? next(c) : previous(c);
+                if (c == b || d == a) {
+                    continue;
+                }
+
+                if (gainFromFirst + distance(c, d) - distance(b, d) > 0) {
+                    // Edges a-b and c-d become a-c and b-d, which means reversing the part of the tour between them
+                    if (forward == 0) {
+                        reverseShorter(positions[b], positions[c]);
+                    } else {
+                        reverseShorter(positions[a], positions[d]);
+                    }
+                    activate(a);
+                    activate(b);
+                    activate(c);
+                    activate(d);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Looks for an Or-opt move of a run of points which starts or ends at the given point
+    private boolean tryOrOpt(int point) {
+        for (int length = 1; length <= MAX_SEGMENT_LENGTH && length <= size - 3; length++) {
+            // The run starting at the point and going forward through the tour
+            var end = point;
+            for (int i = 1; i < length; i++) {
+                end = next(end);
+            }
+            if (tryMoveSegment(point, end, length)) {
+                return true;
+            }
+
+            // The run ending at the point, which is the same as above if it holds a single point
+            if (length > 1) {
+                var start = point;
+                for (int i = 1; i < length; i++) {
+                    start = previous(start);
+                }
+                if (tryMoveSegment(start, point, length)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Tries moving the run of points from start forward to end between a pair of adjacent points x and y elsewhere in
+     * the tour. The run must then be joined to x or y by one of its own ends, so only x or y near to start or end are
+     * tried. The first move found which shortens the tour is made.
+     */
+    private boolean tryMoveSegment(int start, int end, int length) {
+        var before = previous(start);
+        var after = next(end);
+        var removalGain = distance(before, start) + distance(end, after) - distance(before, after);
+        if (removalGain <= 0) {
+            return false;
+        }
+
+        for (int side = 0; side < 2; side++) {
+            var joined = side == 0 ? start : end;
+            for (var c : neighbours[joined]) {
+                if (distance(joined, c) >= removalGain) {
+                    break;
+                }
+                if (isInSegment(c, start, length)) {
+                    continue;
+                }
+
+                // Try both edges of the tour next to c
+                for (int edge = 0; edge < 2; edge++) {
+                    var x = edge == 0 ? c : previous(c);
+                    var y = edge == 0 ? next(c) : c;
+                    if (isInSegment(x, start, length) || isInSegment(y, start, length)) {
+                        continue;
+                    }
+
+                    var keptCost = distance(x, start) + distance(end, y) - distance(x, y);
+                    var reversedCost = distance(x, end) + distance(start, y) - distance(x, y);
+                    if (keptCost < removalGain || reversedCost < removalGain) {
+                        var reversed = reversedCost < keptCost;
+                        moveSegment(start, end, length, x, y, reversed);
+                        activate(before);
+                        activate(after);
+                        activate(start);
+                        activate(end);
+                        activate(x);
+                        activate(y);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isInSegment(int point, int start, int length) {
+        var offset = positions[point] - positions[start];
+        if (offset < 0) {
+            offset += size;
+        }
+        return offset < length;
+    }
+
+    /*
+     * Moves the run from start to end between x and y, where y follows x. This is done with reversals, working on
+     * whichever side of the tour between the run and its new place is shorter:
+     * if the tour reads start..end, A, y with A ending at x, reversing the whole of (run, A) then A alone gives A, run
+     * reversed. Otherwise it reads x, B, start..end with B starting at y, and reversing (B, run) then B alone gives
+     * run reversed, B. In either case the run is reversed once more if it should keep its direction.
+     */
+    private void moveSegment(int start, int end, int length, int x, int y, boolean reversed) {
+        var lengthA = positions[x] - positions[end];
+        if (lengthA < 0) {
+            lengthA += size;
+        }
+        var lengthB = positions[start] - positions[y];
+        if (lengthB < 0) {
+            lengthB += size;
+        }
+
+        if (lengthA <= lengthB) {
+            var first = positions[start];
+            reverse(first, positions[x]);
+            reverse(first, (first + lengthA - 1) % size);
+            if (!reversed) {
+                reverse((first + lengthA) % size, (first + lengthA + length - 1) % size);
+            }
+        } else {
+            var first = positions[y];
+            reverse(first, positions[end]);
+            reverse((first + length) % size, (first + length + lengthB - 1) % size);
+            if (!reversed) {
+                reverse(first, (first + length - 1) % size);
+            }
+        }
+    }
+
+    /*
+     * Reversing the part of the tour from i to j gives the same round trip as reversing everything else, just travelled
+     * the other way, so we reverse whichever is shorter.
+     */
+    private void reverseShorter(int i, int j) {
+        var length = j - i;
+        if (length < 0) {
+            length += size;
+        }
+        if (2 * (length + 1) > size) {
+            reverse(j + 1 == size ? 0 : j + 1, i == 0 ? size - 1 : i - 1);
+        } else {
+            reverse(i, j);
+        }
+    }
+
+    // Reverses the part of the tour from position i forward to position j, wrapping around the end of the array
+    private void reverse(int i, int j) {
+        var length = j - i;
+        if (length < 0) {
+            length += size;
+        }
+        for (int swaps = (length + 1) / 2; swaps > 0; swaps--) {
+            var temp = tour[i];
+            tour[i] = tour[j];
+            tour[j] = temp;
+            positions[tour[i]] = i;
+            positions[tour[j]] = j;
+            i = i + 1 == size ? 0 : i + 1;
+            j = j == 0 ? size - 1 : j - 1;
+        }
+    }
+}
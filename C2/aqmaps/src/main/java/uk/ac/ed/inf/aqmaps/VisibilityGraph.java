@@ -0,0 +1,241 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Gives the length of the shortest way from a position to a goal which goes around the no fly zones rather than
+ * through them, used as the beam search's estimate of the moves still needed. The straight line distance badly
+ * underestimates this for a goal behind a building, which fills the beam with paths pressed against the near wall.
+ * A shortest way around polygons only ever bends at their convex corners, so those corners are the only places it
+ * needs to go through. We put a waypoint just outside each convex corner, as well as just inside each corner of the
+ * confinement area, leaving out any which fall outside the confinement area or inside another zone. Waypoints are
+ * joined when the straight line between them crosses no zone, which is checked once when the graph is built.
+ * For each goal, Dijkstra's algorithm over the waypoints gives the length of the shortest way from each waypoint to
+ * the goal, see GoalDistances. This is only done once the search reaches a position which can't see the goal, which
+ * for a leg across open space is never.
+ */
+class VisibilityGraph {
+
+    private final NoFlyZoneIndex noFlyZones;
+    private final double[] waypointLng;
+    private final double[] waypointLat;
+    // Straight line distance between each pair of waypoints which can see each other, infinite if they can't
+    private final double[][] distances;
+
+    /*
+     * Waypoints are placed the given distance from the corners. This should be small compared to a move, but large
+     * enough that a line from a waypoint isn't taken to cross the edges meeting at its corner.
+     */
+    VisibilityGraph(NoFlyZoneIndex noFlyZones, double minLng, double maxLng, double minLat, double maxLat, double offset) {
+        this.noFlyZones = noFlyZones;
+
+        var lngs = new ArrayList<Double>();
+        var lats = new ArrayList<Double>();
+        var boundaries = new ArrayList<List<Point>>();
+        for (var noFlyZone : noFlyZones.getNoFlyZones()) {
+            boundaries.add(noFlyZone.getBoundaryPoints());
+        }
+        for (var boundary : boundaries) {
+            // The first and last points are equal, so there is one corner for each point but the last
+            var corners = boundary.size() - 1;
+            var orientation = Math.signum(getSignedArea(boundary));
+            for (int i = 0; i < corners; i++) {
+                var previous = boundary.get((i + corners - 1) % corners);
+                var corner = boundary.get(i);
+                var next = boundary.get((i + 1) % corners);
+
+                // Reflex and straight corners are never on a shortest way around the zone
+                var turn = (corner.longitude() - previous.longitude()) * (next.latitude() - corner.latitude())
+                        - (corner.latitude() - previous.latitude()) * (next.longitude() - corner.longitude());
+                if (turn * orientation <= 0) {
+                    continue;
+                }
+
+                // Away from the zone along the line halfway between the two edges meeting at the corner
+                var awayLng = unitLng(corner, previous) + unitLng(corner, next);
+                var awayLat = unitLat(corner, previous) + unitLat(corner, next);
+                var length = Math.hypot(awayLng, awayLat);
+                lngs.add(corner.longitude() + offset * awayLng / length);
+                lats.add(corner.latitude() + offset * awayLat / length);
+            }
+        }
+        lngs.addAll(List.of(minLng + offset, maxLng - offset, maxLng - offset, minLng + offset));
+        lats.addAll(List.of(minLat + offset, minLat + offset, maxLat - offset, maxLat - offset));
+
+        var keptLngs = new ArrayList<Double>();
+        var keptLats = new ArrayList<Double>();
+        for (int i = 0; i < lngs.size(); i++) {
+            var lng = lngs.get(i);
+            var lat = lats.get(i);
+            if (lng >= minLng && lng <= maxLng && lat >= minLat && lat <= maxLat && !isInside(boundaries, lng, lat)) {
+                keptLngs.add(lng);
+                keptLats.add(lat);
+            }
+        }
+        waypointLng = keptLngs.stream().mapToDouble(Double::doubleValue).toArray();
+        waypointLat = keptLats.stream().mapToDouble(Double::doubleValue).toArray();
+
+        distances = new double[waypointLng.length][waypointLng.length];
+        for (int i = 0; i < waypointLng.length; i++) {
+            for (int j = i + 1; j < waypointLng.length; j++) {
+                var distance = isVisible(waypointLng[i], waypointLat[i], waypointLng[j], waypointLat[j])
+                        ? MoveModel.distance(waypointLng[i], waypointLat[i], waypointLng[j], waypointLat[j])
+                        : Double.POSITIVE_INFINITY;
+                distances[i][j] = distance;
+                distances[j][i] = distance;
+            }
+        }
+    }
+
+    NoFlyZoneIndex getNoFlyZones() {
+        return noFlyZones;
+    }
+
+    int size() {
+        return waypointLng.length;
+    }
+
+    // The distances to the given goal. Nothing is worked out until a position which can't see the goal is asked about
+    GoalDistances getDistancesTo(Point goal) {
+        return new GoalDistances(goal);
+    }
+
+    // Finds the length of the shortest way to the goal from every waypoint
+    private double[] findWaypointDistances(Point goal) {
+        var size = waypointLng.length;
+        var toGoal = new double[size];
+        var done = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            toGoal[i] = isVisible(waypointLng[i], waypointLat[i], goal.longitude(), goal.latitude())
+                    ? MoveModel.distance(waypointLng[i], waypointLat[i], goal.longitude(), goal.latitude())
+                    : Double.POSITIVE_INFINITY;
+        }
+
+        // There are few waypoints and most pairs can see each other, so a simple scan for the nearest beats a heap
+        for (int round = 0; round < size; round++) {
+            var nearest = -1;
+            for (int i = 0; i < size; i++) {
+                if (!done[i] && (nearest == -1 || toGoal[i] < toGoal[nearest])) {
+                    nearest = i;
+                }
+            }
+            if (toGoal[nearest] == Double.POSITIVE_INFINITY) {
+                break;
+            }
+            done[nearest] = true;
+            for (int i = 0; i < size; i++) {
+                if (!done[i] && toGoal[nearest] + distances[nearest][i] < toGoal[i]) {
+                    toGoal[i] = toGoal[nearest] + distances[nearest][i];
+                }
+            }
+        }
+        return toGoal;
+    }
+
+    private boolean isVisible(double lng1, double lat1, double lng2, double lat2) {
+        return !noFlyZones.isCrossedByMove(lng1, lat1, lng2, lat2);
+    }
+
+    private static double unitLng(Point from, Point to) {
+        return (from.longitude() - to.longitude()) / MoveModel.distance(from.longitude(), from.latitude(), to.longitude(), to.latitude());
+    }
+
+    private static double unitLat(Point from, Point to) {
+        return (from.latitude() - to.latitude()) / MoveModel.distance(from.longitude(), from.latitude(), to.longitude(), to.latitude());
+    }
+
+    // Positive if the boundary goes anticlockwise
+    private static double getSignedArea(List<Point> boundary) {
+        var area = 0.0;
+        for (int i = 0; i < boundary.size() - 1; i++) {
+            area += boundary.get(i).longitude() * boundary.get(i + 1).latitude()
+                    - boundary.get(i + 1).longitude() * boundary.get(i).latitude();
+        }
+        return area / 2;
+    }
+
+    // Whether the position is inside any of the boundaries, counting how many edges a line to the east crosses
+    private static boolean isInside(List<List<Point>> boundaries, double lng, double lat) {
+        for (var boundary : boundaries) {
+            var inside = false;
+            for (int i = 0; i < boundary.size() - 1; i++) {
+                var p = boundary.get(i);
+                var q = boundary.get(i + 1);
+                if ((p.latitude() > lat) != (q.latitude() > lat) && lng < p.longitude()
+                        + (lat - p.latitude()) * (q.longitude() - p.longitude()) / (q.latitude() - p.latitude())) {
+                    inside = !inside;
+                }
+            }
+            if (inside) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The length of the shortest way to one goal from anywhere. From a position which can see the goal this is the
+     * straight line distance. Otherwise it is the shortest of the ways through a waypoint the position can see, the
+     * distance to the waypoint plus the waypoint's distance to the goal. Checking the waypoints in order of that sum,
+     * which doesn't need any visibility checks, means the first visible one gives the answer, and that is usually
+     * found after checking only one or two.
+     */
+    class GoalDistances {
+        private final Point goal;
+        // Null until first needed
+        private double[] toGoal;
+        private double[] through;
+
+        private GoalDistances(Point goal) {
+            this.goal = goal;
+        }
+
+        // Falls back to the straight line distance if no waypoint leads to the goal
+        double get(double lng, double lat) {
+            var distance = find(lng, lat);
+            if (distance == Double.POSITIVE_INFINITY) {
+                return MoveModel.distance(lng, lat, goal.longitude(), goal.latitude());
+            }
+            return distance;
+        }
+        
+        // Whether there is any way from the position to the goal which doesn't cross a no fly zone
+        boolean isReachable(double lng, double lat) {
+            return find(lng, lat) != Double.POSITIVE_INFINITY;
+        }
+        
+        // Infinite if no waypoint leads to the goal
+        private double find(double lng, double lat) {
+            if (isVisible(lng, lat, goal.longitude(), goal.latitude())) {
+                return MoveModel.distance(lng, lat, goal.longitude(), goal.latitude());
+            }
+
+            if (toGoal == null) {
+                toGoal = findWaypointDistances(goal);
+                through = new double[toGoal.length];
+            }
+            for (int i = 0; i < toGoal.length; i++) {
+                through[i] = MoveModel.distance(lng, lat, waypointLng[i], waypointLat[i]) + toGoal[i];
+            }
+            for (int checked = 0; checked < through.length; checked++) {
+                var best = 0;
+                for (int i = 1; i < through.length; i++) {
+                    if (through[i] < through[best]) {
+                        best = i;
+                    }
+                }
+                if (through[best] == Double.POSITIVE_INFINITY) {
+                    break;
+                }
+                if (isVisible(lng, lat, waypointLng[best], waypointLat[best])) {
+                    return through[best];
+                }
+                through[best] = Double.POSITIVE_INFINITY;
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+}
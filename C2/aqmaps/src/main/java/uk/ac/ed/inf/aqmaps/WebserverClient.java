@@ -0,0 +1,225 @@
+package uk.ac.ed.inf.aqmaps;
+
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/*
+ * Fetches the data required for planning from the webserver. A single HTTP client and JSON parser are shared by all
+ * requests. Requests are sent asynchronously so many can be waiting on the webserver at once, but at most
+ * maxInFlight at a time so we don't overwhelm it. Responses are always processed in the order the requests were made,
+ * so results and error messages come out in the same order as if each request was made in turn.
+ * If given a DiskCache, known What3Words locations are taken from it without a request, and the no fly zones are
+ * requested conditionally and only parsed if they have changed since they were cached.
+ */
+public class WebserverClient {
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    private final String webserver;
+    private final HttpClient client;
+    private final Gson gson;
+    private final Semaphore inFlight;
+    // Null if no cache is used
+    private DiskCache cache;
+
+    public WebserverClient(String webserver) {
+        this(webserver, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public WebserverClient(String webserver, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one request must be allowed at a time");
+        }
+        this.webserver = webserver;
+        this.client = HttpClient.newHttpClient();
+        this.gson = new Gson();
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public String getWebserver() {
+        return webserver;
+    }
+
+    public DiskCache getCache() {
+        return cache;
+    }
+
+    public void setCache(DiskCache cache) {
+        this.cache = cache;
+    }
+
+    // Starts fetching the given path from the webserver, waiting first if too many requests are already in flight
+    public CompletableFuture<HttpResponse<String>> fetch(String path) throws InterruptedException {
+        return fetch(HttpRequest.newBuilder().uri(URI.create(webserver + path)).build());
+    }
+
+    public CompletableFuture<HttpResponse<String>> fetch(HttpRequest request) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            return client.sendAsync(request, BodyHandlers.ofString()).whenComplete((responce, error) -> inFlight.release());
+        } catch (RuntimeException e) {
+            // The request was never sent, so nothing else will give the permit back
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    // Waits for a fetch to finish, reporting failures in the same way as a blocking request would
+    public static HttpResponse<String> await(CompletableFuture<HttpResponse<String>> responce) throws IOException, InterruptedException {
+        try {
+            return responce.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("A request to the webserver failed", e.getCause());
+        }
+    }
+
+    public CompletableFuture<HttpResponse<String>> fetchMapData(String day, String month, String year) throws InterruptedException {
+        return fetch("/maps/" + year + "/" + month + "/" + day + "/air-quality-data.json");
+    }
+
+    public CompletableFuture<HttpResponse<String>> fetchNoFlyZones() throws InterruptedException {
+        var request = HttpRequest.newBuilder().uri(URI.create(webserver + "/buildings/no-fly-zones.geojson"));
+        
+        // If we have cached no fly zones, the webserver can tell us they are unchanged instead of sending them again.
+        // The validators are null when nothing is cached
+        if (cache != null) {
+            var eTag = cache.getNoFlyZonesETag();
+            if (eTag != null) {
+                request.header("If-None-Match", eTag);
+            }
+            var lastModified = cache.getNoFlyZonesLastModified();
+            if (lastModified != null) {
+                request.header("If-Modified-Since", lastModified);
+            }
+        }
+        return fetch(request.build());
+    }
+
+    public CompletableFuture<HttpResponse<String>> fetchWhat3Words(String location) throws InterruptedException {
+        return fetch("/words/" + location.replace('.', '/') + "/details.json");
+    }
+
+    // Returns null if the map for the given date couldn't be read, having informed the user
+    public List<MapData> parseMapData(HttpResponse<String> responce) {
+        // Informing the user if there is a problem reading the specified map
+        if (responce.statusCode() != 200) {
+            System.out.println("Error: Unable to read required data for the specified date.\n"
+                    + "Please insure the date was entered in the correct format\n"
+                    + "HTTP status code: " + responce.statusCode());
+            return null;
+        }
+
+        var listType = new TypeToken<List<MapData>>() {}.getType();
+        return gson.fromJson(responce.body(), listType);
+    }
+
+    public List<NoFlyZone> parseNoFlyZones(HttpResponse<String> responce) throws IOException {
+        String contentHash = null;
+        if (cache != null) {
+            // 304 means not modified, the only way we could receive it is if we sent the validators from the cache
+            var cached = responce.statusCode() == 304 ? cache.getNoFlyZones(null) : null;
+            if (cached != null) {
+                return cached;
+            } else if (responce.statusCode() == 200) {
+                contentHash = DiskCache.hash(responce.body());
+                cached = cache.getNoFlyZones(contentHash);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+        
+        var noFlyZones = new ArrayList<NoFlyZone>();
+
+        if (responce.statusCode() != 200) {
+            System.out.println("Error: A problem has occured in reading the no-fly zones from " + webserver + "\n."
+                    + "HTTP status code: " + responce.statusCode() + "\n"
+                    + "Attempting to run with no no-fly zones\n.");
+        } else {
+            var buildings = FeatureCollection.fromJson(responce.body()).features();
+
+            for (int i = 0; i < buildings.size(); i++) {
+                try {
+                    var boundary = (Polygon) buildings.get(i).geometry();
+                    noFlyZones.add(new NoFlyZone(boundary));
+                } catch (Exception e) {
+                    System.out.println("Error: no fly zone number " + i + " could not be interpreted. \nThis entry will be skipped");
+                }
+            }
+            
+            if (cache != null) {
+                cache.putNoFlyZones(noFlyZones, contentHash, responce.headers().firstValue("ETag").orElse(null), 
+                        responce.headers().firstValue("Last-Modified").orElse(null));
+            }
+        }
+
+        return noFlyZones;
+    }
+
+    /*
+     * Looks up the position of each sensor. All lookups are started before any are waited for, and the sensors are
+     * returned in the same order as the map entries. Entries whose lookup fails are reported and skipped.
+     */
+    public List<Sensor> getSensors(List<MapData> mapEntries) throws IOException, InterruptedException {
+        // Null entries are locations we already know from the cache, so don't need to request
+        var responces = new ArrayList<CompletableFuture<HttpResponse<String>>>();
+        for (var entry : mapEntries) {
+            if (cache != null && cache.getWhat3Words(entry.getLocation()) != null) {
+                responces.add(null);
+            } else {
+                responces.add(fetchWhat3Words(entry.getLocation()));
+            }
+        }
+
+        var sensors = new ArrayList<Sensor>();
+        for (int i = 0; i < mapEntries.size(); i++) {
+            var entry = mapEntries.get(i);
+            
+            if (responces.get(i) == null) {
+                var position = cache.getWhat3Words(entry.getLocation());
+                sensors.add(new Sensor(Point.fromLngLat(position[0], position[1]), 
+                        entry.getBattery(), entry.getReading(), entry.getLocation()));
+                continue;
+            }
+            
+            var responce = await(responces.get(i));
+
+            if (responce.statusCode() != 200) {
+                System.out.println("Error: unable to find data for the sensor at " + entry.getLocation() + ".\n"
+                        + "HTTP status code: " + responce.statusCode() + "\nThis entry will be skipped.");
+            } else {
+                var sensorInfo = gson.fromJson(responce.body(), What3WordsData.class);
+
+                sensors.add(new Sensor(Point.fromLngLat(sensorInfo.getLng(), sensorInfo.getLat()),
+                        entry.getBattery(), entry.getReading(), entry.getLocation()));
+                if (cache != null) {
+                    cache.putWhat3Words(entry.getLocation(), sensorInfo.getLng(), sensorInfo.getLat());
+                }
+            }
+        }
+        
+        if (cache != null) {
+            cache.save();
+        }
+
+        return sensors;
+    }
+}
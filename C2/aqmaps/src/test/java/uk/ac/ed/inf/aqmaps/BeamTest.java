@@ -0,0 +1,145 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Paths are only told apart by identity here, the beam never looks inside them. Lower scores come first, equal scores
+ * are ordered by distance, and a full beam only takes a path strictly better than its worst.
+ */
+public class BeamTest {
+
+    @Test
+    public void equalScoresGoToTheCloserPath() {
+        var beam = new Beam(10);
+        var far = newPath();
+        var near = newPath();
+        var middle = newPath();
+        var lowScore = newPath();
+        beam.offer(far, 5, 0.3);
+        beam.offer(near, 5, 0.1);
+        beam.offer(middle, 5, 0.2);
+        beam.offer(lowScore, 4, 0.9);
+        assertSame(lowScore, beam.pollBest());
+        assertEquals(0.1, beam.bestDistance(), 0);
+        assertSame(near, beam.pollBest());
+        assertSame(middle, beam.pollBest());
+        assertSame(far, beam.pollBest());
+        assertTrue(beam.isEmpty());
+    }
+
+    @Test
+    public void fullBeamOnlyTakesStrictlyBetterPaths() {
+        var beam = new Beam(2);
+        assertTrue(beam.offer(newPath(), 1, 0.5));
+        assertTrue(beam.offer(newPath(), 3, 0.5));
+        // The same as the worst, or worse, is turned away
+        assertFalse(beam.offer(newPath(), 3, 0.5));
+        assertFalse(beam.offer(newPath(), 4, 0.1));
+        var better = newPath();
+        assertTrue(beam.offer(better, 3, 0.4));
+        assertEquals(2, beam.size());
+        beam.pollBest();
+        assertSame(better, beam.pollBest());
+    }
+
+    @Test
+    public void beamOfOneHoldsTheBestSoFar() {
+        var beam = new Beam(1);
+        var first = newPath();
+        assertTrue(beam.offer(first, 10, 0.5));
+        assertFalse(beam.offer(newPath(), 10, 0.5));
+        assertFalse(beam.offer(newPath(), 11, 0.0));
+        var second = newPath();
+        assertTrue(beam.offer(second, 10, 0.4));
+        assertEquals(1, beam.size());
+        assertSame(second, beam.pollBest());
+
+        // Once the best is taken anything fits again
+        var third = newPath();
+        assertTrue(beam.offer(third, 99, 9));
+        assertSame(third, beam.pollBest());
+        assertTrue(beam.isEmpty());
+    }
+
+    @Test
+    public void takingTheBestMakesRoom() {
+        var beam = new Beam(3);
+        for (int score = 1; score <= 3; score++) {
+            beam.offer(newPath(), score, 0);
+        }
+        assertFalse(beam.offer(newPath(), 4, 0));
+        beam.pollBest();
+        var worse = newPath();
+        assertTrue(beam.offer(worse, 4, 0));
+        beam.pollBest();
+        beam.pollBest();
+        assertSame(worse, beam.pollBest());
+    }
+
+    /*
+     * Offers and takes mixed at random. Whenever a full beam takes a path, the one it discards must be the worst it
+     * held, and every path taken must be the best it held, so both ends of the heap are checked after every change.
+     */
+    @Test
+    public void bothEndsStayCorrectWhenMixingOffersAndPolls() {
+        var random = new Random(7);
+        for (var capacity : new int[] {1, 2, 3, 5, 16, 100}) {
+            var beam = new Beam(capacity);
+            var held = new IdentityHashMap<Path, double[]>();
+            for (int i = 0; i < 20000; i++) {
+                if (random.nextInt(3) == 0 && !held.isEmpty()) {
+                    var best = extreme(held, true);
+                    assertEquals(held.get(best)[1], beam.bestDistance(), 0);
+                    assertSame(best, beam.pollBest());
+                    held.remove(best);
+                } else {
+                    // Scores from a small range so many tie, distances all but certain to differ
+                    var path = newPath();
+                    var key = new double[] {random.nextInt(20), random.nextDouble()};
+                    var worst = held.size() == capacity ? extreme(held, false) : null;
+                    var kept = beam.offer(path, (int) key[0], key[1]);
+                    assertEquals(worst == null || isBetter(key, held.get(worst)), kept);
+                    if (kept) {
+                        held.remove(worst);
+                        held.put(path, key);
+                    }
+                }
+                assertEquals(held.size(), beam.size());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new Beam(0);
+    }
+
+    // The best or worst path held, by score then distance
+    private static Path extreme(IdentityHashMap<Path, double[]> held, boolean best) {
+        Path result = null;
+        for (var entry : held.entrySet()) {
+            if (result == null || isBetter(entry.getValue(), held.get(result)) == best) {
+                result = entry.getKey();
+            }
+        }
+        return result;
+    }
+
+    private static boolean isBetter(double[] key, double[] other) {
+        return key[0] < other[0] || (key[0] == other[0] && key[1] < other[1]);
+    }
+
+    private static Path newPath() {
+        return new Path(Point.fromLngLat(-3.1884, 55.9444), new MoveModel(0.0003, 10));
+    }
+}
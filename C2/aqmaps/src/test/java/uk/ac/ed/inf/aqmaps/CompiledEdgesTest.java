@@ -0,0 +1,129 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * CompiledEdges should give exactly the same answer as NoFlyZone.isEdgeCrossedByMove, which defines crossing an edge,
+ * for every float offset. Besides random moves, points are snapped to a coarse grid so that moves and edges are often
+ * parallel, collinear, of no length, or end exactly on each other, and are nudged by about the float offset so the
+ * bounding box margin is exercised.
+ */
+public class CompiledEdgesTest {
+
+    private static final double CENTRE_LNG = -3.1884;
+    private static final double CENTRE_LAT = 55.9444;
+    private static final double GRID = 0.0001;
+    private static final double[] FLOAT_OFFSETS = {0, NoFlyZone.DEFAULT_FLOAT_OFFSET, 1e-7, GRID / 2};
+
+    @Test
+    public void matchesSingleEdges() {
+        var random = new Random(18);
+        for (var floatOffset : FLOAT_OFFSETS) {
+            for (int i = 0; i < 50000; i++) {
+                var edge = degeneratePoints(random, 2, floatOffset);
+                var move = degeneratePoints(random, 2, floatOffset);
+                var compiled = new CompiledEdges(List.of(List.of(edge[0], edge[1])));
+                var expected = NoFlyZone.isEdgeCrossedByMove(move[0].longitude(), move[0].latitude(), move[1].longitude(),
+                        move[1].latitude(), edge[0].longitude(), edge[0].latitude(), edge[1].longitude(), edge[1].latitude(), floatOffset);
+                assertEquals("offset " + floatOffset + " edge " + List.of(edge) + " move " + List.of(move), expected,
+                        compiled.isCrossedByMove(move[0].longitude(), move[0].latitude(), move[1].longitude(), move[1].latitude(), floatOffset));
+            }
+        }
+    }
+
+    @Test
+    public void matchesWholeBoundaries() {
+        var random = new Random(19);
+        for (int map = 0; map < 20; map++) {
+            var noFlyZones = NoFlyZoneIndexTest.randomZones(random, 1 + random.nextInt(8));
+            var boundaries = new ArrayList<List<Point>>();
+            for (var noFlyZone : noFlyZones) {
+                boundaries.add(noFlyZone.getBoundaryPoints());
+            }
+            var compiled = new CompiledEdges(boundaries);
+            for (var floatOffset : FLOAT_OFFSETS) {
+                for (int i = 0; i < 2000; i++) {
+                    var move = NoFlyZoneIndexTest.randomMove(random, noFlyZones);
+                    var edges = randomSubset(random, compiled.size());
+                    assertEquals(isCrossedByAny(boundaries, null, move, floatOffset),
+                            compiled.isCrossedByMove(move[0], move[1], move[2], move[3], floatOffset));
+                    assertEquals(isCrossedByAny(boundaries, edges, move, floatOffset),
+                            compiled.isCrossedByMove(edges, move[0], move[1], move[2], move[3], floatOffset));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void boundaryOfOnePointHasNoEdges() {
+        var point = Point.fromLngLat(CENTRE_LNG, CENTRE_LAT);
+        var compiled = new CompiledEdges(List.of(List.of(point), List.of()));
+        assertEquals(0, compiled.size());
+        assertFalse(compiled.isCrossedByMove(CENTRE_LNG - GRID, CENTRE_LAT, CENTRE_LNG + GRID, CENTRE_LAT, NoFlyZone.DEFAULT_FLOAT_OFFSET));
+    }
+
+    // Whether the oracle says the move crosses any of the given edges, numbered as CompiledEdges does, or any edge if null
+    private static boolean isCrossedByAny(List<List<Point>> boundaries, int[] edges, double[] move, double floatOffset) {
+        var all = new ArrayList<Point[]>();
+        for (var boundary : boundaries) {
+            for (int i = 0; i < boundary.size() - 1; i++) {
+                all.add(new Point[] {boundary.get(i), boundary.get(i + 1)});
+            }
+        }
+        var count = edges == null ? all.size() : edges.length;
+        for (int i = 0; i < count; i++) {
+            var edge = all.get(edges == null ? i : edges[i]);
+            if (NoFlyZone.isEdgeCrossedByMove(move[0], move[1], move[2], move[3], edge[0].longitude(), edge[0].latitude(),
+                    edge[1].longitude(), edge[1].latitude(), floatOffset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] randomSubset(Random random, int size) {
+        var edges = new ArrayList<Integer>();
+        for (int edge = 0; edge < size; edge++) {
+            if (random.nextInt(3) == 0) {
+                edges.add(edge);
+            }
+        }
+        return edges.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /*
+     * Points on a five by five grid, so lines through them are often parallel or the same, sometimes nudged by up to
+     * twice the float offset, and sometimes the same point twice.
+     */
+    private static Point[] degeneratePoints(Random random, int count, double floatOffset) {
+        var points = new Point[count];
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && random.nextInt(10) == 0) {
+                points[i] = points[i - 1];
+                continue;
+            }
+            var lng = CENTRE_LNG + (random.nextInt(5) - 2) * GRID;
+            var lat = CENTRE_LAT + (random.nextInt(5) - 2) * GRID;
+            var nudge = random.nextInt(4);
+            if (nudge == 0) {
+                lng += (random.nextInt(5) - 2) * floatOffset;
+            } else if (nudge == 1) {
+                lat += (random.nextInt(5) - 2) * floatOffset;
+            } else if (nudge == 2) {
+                lng += (random.nextDouble() - 0.5) * GRID;
+                lat += (random.nextDouble() - 0.5) * GRID;
+            }
+            points[i] = Point.fromLngLat(lng, lat);
+        }
+        return points;
+    }
+}
@@ -0,0 +1,269 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+/*
+ * Each run is a new client with a new DiskCache on the same directory, as separate runs of App would be, fetching from
+ * a FakeWebserver.
+ */
+public class DiskCacheTest {
+
+    private static final String ZONES = zones(-3.1858, 55.9464, -3.1848, 55.9474);
+    private static final String OTHER_ZONES = zones(-3.1838, 55.9484, -3.1828, 55.9494);
+    private static final String E_TAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2020 07:28:00 GMT";
+    private static final String NO_FLY_ZONES_FILE = "no-fly-zones.json";
+    private static final String WHAT_THREE_WORDS_FILE = "what3words.json";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeWebserver webserver;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        webserver = new FakeWebserver();
+        directory = folder.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() {
+        webserver.close();
+    }
+
+    @Test
+    public void revalidatesNoFlyZonesWithTheirETag() throws IOException, InterruptedException {
+        webserver.setNoFlyZones(ZONES, E_TAG, LAST_MODIFIED);
+        var fetched = fetchNoFlyZones(newClient());
+        assertNull(webserver.getLastIfNoneMatch());
+
+        // Told they haven't changed, the zones come from the cache
+        var cached = fetchNoFlyZones(newClient());
+        assertEquals(E_TAG, webserver.getLastIfNoneMatch());
+        assertEquals(LAST_MODIFIED, webserver.getLastIfModifiedSince());
+        assertEquals(getBoundaries(fetched), getBoundaries(cached));
+        assertEquals(List.of(corners(-3.1858, 55.9464, -3.1848, 55.9474)), getBoundaries(cached));
+    }
+
+    @Test
+    public void revalidatesNoFlyZonesWithOnlyLastModified() throws IOException, InterruptedException {
+        webserver.setNoFlyZones(ZONES, null, LAST_MODIFIED);
+        fetchNoFlyZones(newClient());
+
+        var cached = fetchNoFlyZones(newClient());
+        assertNull(webserver.getLastIfNoneMatch());
+        assertEquals(LAST_MODIFIED, webserver.getLastIfModifiedSince());
+        assertEquals(List.of(corners(-3.1858, 55.9464, -3.1848, 55.9474)), getBoundaries(cached));
+    }
+
+    @Test
+    public void changedNoFlyZonesAreParsedAndCached() throws IOException, InterruptedException {
+        webserver.setNoFlyZones(ZONES, E_TAG, LAST_MODIFIED);
+        fetchNoFlyZones(newClient());
+
+        webserver.setNoFlyZones(OTHER_ZONES, "\"v2\"", LAST_MODIFIED);
+        var changed = fetchNoFlyZones(newClient());
+        assertEquals(E_TAG, webserver.getLastIfNoneMatch());
+        assertEquals(List.of(corners(-3.1838, 55.9484, -3.1828, 55.9494)), getBoundaries(changed));
+
+        // The new zones replace the old, along with their validators and hash
+        var cache = new DiskCache(directory);
+        assertEquals("\"v2\"", cache.getNoFlyZonesETag());
+        assertNull(cache.getNoFlyZones(DiskCache.hash(ZONES)));
+        assertEquals(List.of(corners(-3.1838, 55.9484, -3.1828, 55.9494)), getBoundaries(cache.getNoFlyZones(DiskCache.hash(OTHER_ZONES))));
+    }
+
+    /*
+     * Without validators the webserver always sends the zones, and whether they changed is told by their SHA-256 hash.
+     * Zones cached under the hash of what was sent are used as they are, however different the sent zones look.
+     */
+    @Test
+    public void contentWithTheCachedHashIsNotParsedAgain() throws IOException, InterruptedException {
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", DiskCache.hash("abc"));
+        webserver.setNoFlyZones(ZONES, null, null);
+        var cache = new DiskCache(directory);
+        cache.putNoFlyZones(createZones(OTHER_ZONES), DiskCache.hash(OTHER_ZONES), null, null);
+        assertEquals(List.of(corners(-3.1858, 55.9464, -3.1848, 55.9474)), getBoundaries(fetchNoFlyZones(newClient())));
+
+        cache = new DiskCache(directory);
+        cache.putNoFlyZones(createZones(OTHER_ZONES), DiskCache.hash(ZONES), null, null);
+        assertEquals(List.of(corners(-3.1838, 55.9484, -3.1828, 55.9494)), getBoundaries(fetchNoFlyZones(newClient())));
+        assertNull(webserver.getLastIfNoneMatch());
+        assertNull(webserver.getLastIfModifiedSince());
+    }
+
+    @Test
+    public void damagedNoFlyZonesAreFetchedAgain() throws IOException, InterruptedException {
+        webserver.setNoFlyZones(ZONES, E_TAG, LAST_MODIFIED);
+        var start = "{\"version\":1,\"contentHash\":\"" + DiskCache.hash(ZONES) + "\",\"eTag\":\"" + E_TAG.replace("\"", "\\\"")
+                + "\",\"lastModified\":\"" + LAST_MODIFIED + "\",\"boundaries\":";
+        var damaged = List.of(
+                // Cut off part way through
+                start + "[[[-3.1858,55.9464],[-3.1848",
+                // A position with one coordinate
+                start + "[[[-3.1858,55.9464],[-3.1848],[-3.1848,55.9474],[-3.1858,55.9464]]]}",
+                start + "null}",
+                start + "[null]}",
+                // A ring which isn't closed, and one too short to be a polygon
+                start + "[[[-3.1858,55.9464],[-3.1848,55.9464],[-3.1848,55.9474],[-3.1858,55.9474]]]}",
+                start + "[[[-3.1858,55.9464],[-3.1848,55.9464],[-3.1858,55.9464]]]}",
+                start + "[[[-3.1858,55.9464],[-3.1848,55.9464],[-3.1848,\"x\"],[-3.1858,55.9464]]]}",
+                // A layout from another version
+                start.replace("\"version\":1", "\"version\":0") + "[]}");
+        for (var contents : damaged) {
+            Files.writeString(new File(directory, NO_FLY_ZONES_FILE).toPath(), contents);
+            var cache = new DiskCache(directory);
+            assertNull(contents, cache.getNoFlyZonesETag());
+            assertNull(contents, cache.getNoFlyZones(null));
+
+            // Nothing is revalidated, so the zones are sent and the file written again
+            var client = new WebserverClient(webserver.getUrl());
+            client.setCache(cache);
+            assertEquals(contents, List.of(corners(-3.1858, 55.9464, -3.1848, 55.9474)), getBoundaries(fetchNoFlyZones(client)));
+            assertNull(contents, webserver.getLastIfNoneMatch());
+            assertEquals(E_TAG, new DiskCache(directory).getNoFlyZonesETag());
+        }
+    }
+
+    @Test
+    public void cachesWhat3WordsLocations() throws IOException, InterruptedException {
+        var sensors = getSensors(newClient());
+        assertEquals(FakeWebserver.SENSORS.size(), sensors.size());
+        assertEquals(1, webserver.getRequestCount("/words/first/fake/sensor/details.json"));
+
+        // Known locations aren't asked for again
+        assertEquals(getPositions(sensors), getPositions(getSensors(newClient())));
+        assertEquals(1, webserver.getRequestCount("/words/first/fake/sensor/details.json"));
+    }
+
+    @Test
+    public void damagedWhat3WordsLocationsAreFetchedAgain() throws IOException, InterruptedException {
+        var damaged = List.of(
+                "{\"version\":1,\"locations\":{\"first.fake.sensor\":[-3.1868]}}",
+                "{\"version\":1,\"locations\":{\"first.fake.sensor\":null}}",
+                "{\"version\":1,\"locations\":null}",
+                "{\"version\":1,\"locations\":[1,2]}",
+                "{\"version\":1,\"locations\":{\"first.fake.sensor\":[-3.1868,");
+        var expected = getPositions(getSensors(newClient()));
+        var requests = 1;
+        for (var contents : damaged) {
+            Files.writeString(new File(directory, WHAT_THREE_WORDS_FILE).toPath(), contents);
+            assertNull(contents, new DiskCache(directory).getWhat3Words("first.fake.sensor"));
+            assertEquals(contents, expected, getPositions(getSensors(newClient())));
+            assertEquals(contents, ++requests, webserver.getRequestCount("/words/first/fake/sensor/details.json"));
+            assertNotNull(contents, new DiskCache(directory).getWhat3Words("first.fake.sensor"));
+        }
+    }
+
+    @Test
+    public void clearCacheEmptiesTheDirectory() throws IOException, InterruptedException {
+        webserver.setNoFlyZones(ZONES, E_TAG, LAST_MODIFIED);
+        var client = newClient();
+        fetchNoFlyZones(client);
+        getSensors(client);
+        assertTrue(new File(directory, NO_FLY_ZONES_FILE).isFile());
+        assertTrue(new File(directory, WHAT_THREE_WORDS_FILE).isFile());
+
+        // Without --clear-cache App keeps what is there
+        assertNotNull(App.createClient(webserver.getUrl(), parseOptions("--cache-dir", directory.getPath())).getCache().getNoFlyZonesETag());
+
+        client = App.createClient(webserver.getUrl(), parseOptions("--cache-dir", directory.getPath(), "--clear-cache"));
+        assertFalse(new File(directory, NO_FLY_ZONES_FILE).exists());
+        assertFalse(new File(directory, WHAT_THREE_WORDS_FILE).exists());
+        assertNull(client.getCache().getNoFlyZonesETag());
+        assertNull(client.getCache().getNoFlyZones(null));
+        assertNull(client.getCache().getWhat3Words("first.fake.sensor"));
+
+        // Everything is fetched again
+        fetchNoFlyZones(client);
+        assertNull(webserver.getLastIfNoneMatch());
+        getSensors(client);
+        assertEquals(2, webserver.getRequestCount("/words/first/fake/sensor/details.json"));
+    }
+
+    private WebserverClient newClient() throws IOException {
+        var client = new WebserverClient(webserver.getUrl());
+        client.setCache(new DiskCache(directory));
+        return client;
+    }
+
+    private static PlannerOptions parseOptions(String... args) {
+        var options = new PlannerOptions();
+        for (int i = 0; i < args.length; i++) {
+            i = options.parseOption(args, i);
+            assertTrue(i >= 0);
+        }
+        return options;
+    }
+
+    private static List<NoFlyZone> fetchNoFlyZones(WebserverClient client) throws IOException, InterruptedException {
+        return client.parseNoFlyZones(WebserverClient.await(client.fetchNoFlyZones()));
+    }
+
+    private static List<Sensor> getSensors(WebserverClient client) throws IOException, InterruptedException {
+        return client.getSensors(client.parseMapData(WebserverClient.await(client.fetchMapData("01", "01", "2020"))));
+    }
+
+    private static List<NoFlyZone> createZones(String zones) {
+        try {
+            var webserver = new FakeWebserver();
+            try {
+                webserver.setNoFlyZones(zones, null, null);
+                return fetchNoFlyZones(new WebserverClient(webserver.getUrl()));
+            } finally {
+                webserver.close();
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static List<List<Point>> getBoundaries(List<NoFlyZone> zones) {
+        var boundaries = new ArrayList<List<Point>>();
+        for (var zone : zones) {
+            boundaries.add(zone.getBoundaryPoints());
+        }
+        return boundaries;
+    }
+
+    // Sensors are compared by location and position, the map entries being the same each run
+    private static List<String> getPositions(List<Sensor> sensors) {
+        var positions = new ArrayList<String>();
+        for (var sensor : sensors) {
+            positions.add(sensor.getWhatThreeWords() + " " + sensor.getPosition().longitude() + " " + sensor.getPosition().latitude());
+        }
+        return positions;
+    }
+
+    // A rectangle just north east of the drone's usual start, as the webserver would write it
+    private static List<Point> corners(double west, double south, double east, double north) {
+        return List.of(Point.fromLngLat(west, south), Point.fromLngLat(east, south), Point.fromLngLat(east, north),
+                Point.fromLngLat(west, north), Point.fromLngLat(west, south));
+    }
+
+    private static String zones(double west, double south, double east, double north) {
+        var polygon = Polygon.fromLngLats(List.of(corners(west, south, east, north)));
+        return "{\"type\":\"FeatureCollection\",\"features\":[{\"type\":\"Feature\",\"properties\":{},\"geometry\":"
+                + polygon.toJson() + "}]}";
+    }
+}
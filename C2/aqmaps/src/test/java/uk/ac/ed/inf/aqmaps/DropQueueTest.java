@@ -0,0 +1,238 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToIntBiFunction;
+
+import org.junit.Test;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * Sensors sit on the line of latitude through the start, a whole number of units from it, so estimates are easy to
+ * reason about. The queue is checked against working out every saving from scratch after each change.
+ */
+public class DropQueueTest {
+
+    private static final MoveModel MOVE_MODEL = new MoveModel(0.0003, 10);
+    private static final double UNIT = 0.001;
+    private static final Point START = Point.fromLngLat(0, 0);
+
+    // An entry of the model the queue is checked against, with -1 for a leg not known since a neighbour was dropped
+    private static class Entry {
+        private final Sensor sensor;
+        private final int order;
+        private int movesIn;
+        private int movesOut;
+
+        private Entry(Sensor sensor, int order, int movesIn, int movesOut) {
+            this.sensor = sensor;
+            this.order = order;
+            this.movesIn = movesIn;
+            this.movesOut = movesOut;
+        }
+    }
+
+    @Test
+    public void matchesRecomputingEverySaving() {
+        var random = new Random(13);
+        for (int run = 0; run < 200; run++) {
+            var count = 1 + random.nextInt(25);
+            var sensors = new ArrayList<Sensor>();
+            var paths = new ArrayList<Path>();
+            for (int i = 0; i < count; i++) {
+                sensors.add(sensor(random.nextInt(40) - 20));
+            }
+            // Flown legs are usually a bit longer than estimated but sometimes shorter, so some savings are negative
+            ToIntBiFunction<Point, Point> estimator = DropQueueTest::estimate;
+            for (int i = 0; i <= count; i++) {
+                var from = i == 0 ? START : sensors.get(i - 1).getPosition();
+                var to = i == count ? START : sensors.get(i).getPosition();
+                paths.add(path(Math.max(0, estimate(from, to) + random.nextInt(8) - 2)));
+            }
+
+            var queue = new DropQueue(sensors, paths, START, estimator, estimator);
+            var model = new ArrayList<Entry>();
+            for (int i = 0; i < count; i++) {
+                model.add(new Entry(sensors.get(i), i, paths.get(i).getMoveCount(), paths.get(i + 1).getMoveCount()));
+            }
+
+            while (!model.isEmpty()) {
+                var action = random.nextInt(4);
+                if (action == 0) {
+                    var entry = model.get(random.nextInt(model.size()));
+                    entry.movesIn = random.nextInt(30);
+                    entry.movesOut = random.nextInt(30);
+                    queue.setFlownMoves(entry.sensor, entry.movesIn, entry.movesOut);
+                } else if (action == 1) {
+                    removeFromModel(model, random.nextInt(model.size()), queue);
+                } else {
+                    var best = 0;
+                    for (int i = 1; i < model.size(); i++) {
+                        var savings = savings(model, i);
+                        var bestSavings = savings(model, best);
+                        // Ties go to the sensor visited later
+                        if (savings > bestSavings || (savings == bestSavings && model.get(i).order > model.get(best).order)) {
+                            best = i;
+                        }
+                    }
+                    assertEquals(savings(model, best), queue.peekSavings());
+                    var expected = model.get(best).sensor;
+                    removeFromModel(model, best, null);
+                    assertSame(expected, queue.poll());
+                }
+                assertEquals(model.isEmpty(), queue.isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void stopsOnceDroppingWouldLengthenTheFlight() {
+        // Neighbouring sensors are one move apart but any longer hop is estimated at ten moves a unit, so every
+        // bypass costs more than the two flown legs it replaces
+        var sensors = new ArrayList<Sensor>();
+        for (int i = 1; i <= 5; i++) {
+            sensors.add(sensor(i));
+        }
+        var queue = new DropQueue(sensors, paths(1, 1, 1, 1, 1, 1), START, DropQueueTest::hopEstimate, DropQueueTest::hopEstimate);
+        var dropped = queue.pollSaving(100);
+        assertEquals(1, dropped.size());
+        // Every sensor but the last saves -18, the later of equal savings is dropped
+        assertSame(sensors.get(3), dropped.get(0));
+    }
+
+    @Test
+    public void keepsDroppingWhileSavingMoves() {
+        var sensors = new ArrayList<Sensor>();
+        for (int i = 1; i <= 5; i++) {
+            sensors.add(sensor(i));
+        }
+        // The legs either side of the third sensor are long, so dropping it saves 60 moves, and then its neighbours'
+        // bypasses are longer than their legs
+        var queue = new DropQueue(sensors, paths(1, 1, 40, 40, 1, 1), START, DropQueueTest::hopEstimate, DropQueueTest::hopEstimate);
+        assertEquals(60, queue.peekSavings());
+        assertEquals(List.of(sensors.get(2)), queue.pollSaving(100));
+        assertEquals(-9, queue.peekSavings());
+
+        // With everything saving moves it stops as soon as enough are saved
+        sensors.clear();
+        for (int i = 1; i <= 5; i++) {
+            sensors.add(sensor(i));
+        }
+        queue = new DropQueue(sensors, paths(30, 30, 30, 30, 30, 30), START, DropQueueTest::hopEstimate, DropQueueTest::hopEstimate);
+        assertEquals(2, queue.pollSaving(60).size());
+    }
+
+    @Test
+    public void equalSavingsGoToTheLaterSensor() {
+        var sensors = List.of(sensor(1), sensor(2), sensor(3));
+        // Every sensor saves 2, dropping the last then leaves the middle one saving 3
+        var queue = new DropQueue(sensors, paths(2, 2, 2, 2), START, DropQueueTest::estimate, DropQueueTest::estimate);
+        assertEquals(2, queue.peekSavings());
+        assertSame(sensors.get(2), queue.poll());
+        assertEquals(3, queue.peekSavings());
+        assertSame(sensors.get(1), queue.poll());
+    }
+
+    @Test
+    public void removingTheBestRecomputesItsNeighbours() {
+        var sensors = List.of(sensor(1), sensor(2), sensor(3));
+        // Savings start at 0, 4 and 6
+        var queue = new DropQueue(sensors, paths(1, 1, 5, 3), START, DropQueueTest::estimate, DropQueueTest::estimate);
+        assertEquals(6, queue.peekSavings());
+        queue.remove(sensors.get(2));
+        // The middle sensor's way home is now estimated at 2 moves, and bypassing it costs 1
+        assertEquals(2, queue.peekSavings());
+        assertSame(sensors.get(1), queue.poll());
+        // Removing a sensor twice, or one already dropped, changes nothing
+        queue.remove(sensors.get(1));
+        queue.remove(sensors.get(2));
+        assertEquals(2, queue.peekSavings());
+        assertSame(sensors.get(0), queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void legsHomeUseTheReturnEstimate() {
+        var sensors = List.of(sensor(1), sensor(2), sensor(3));
+        // Getting home from anywhere is estimated at one move less, as the flight can end further from the start
+        ToIntBiFunction<Point, Point> returnEstimator = (start, goal) -> Math.max(0, estimate(start, goal) - 1);
+        var queue = new DropQueue(sensors, paths(1, 1, 1, 2), START, DropQueueTest::estimate, returnEstimator);
+        // Only the last sensor bypasses straight home: 1 + 2 - (2 - 1)
+        assertEquals(2, queue.peekSavings());
+        assertSame(sensors.get(2), queue.poll());
+        // The middle sensor's unknown leg home and its bypass both use the return estimate: 1 + (2 - 1) - (1 - 1)
+        assertEquals(2, queue.peekSavings());
+        assertSame(sensors.get(1), queue.poll());
+    }
+
+    @Test
+    public void lastSensorSavesItsWholeFlight() {
+        var sensor = sensor(3);
+        var queue = new DropQueue(List.of(sensor), paths(7, 8), START, DropQueueTest::estimate, DropQueueTest::estimate);
+        assertEquals(15, queue.peekSavings());
+        assertEquals(List.of(sensor), queue.pollSaving(1));
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.pollSaving(1).isEmpty());
+    }
+
+    // Removes an entry, marking the legs next to it unknown as the queue does, and removes it from the queue if given
+    private static void removeFromModel(List<Entry> model, int index, DropQueue queue) {
+        var entry = model.remove(index);
+        if (index > 0) {
+            model.get(index - 1).movesOut = -1;
+        }
+        if (index < model.size()) {
+            model.get(index).movesIn = -1;
+        }
+        if (queue != null) {
+            queue.remove(entry.sensor);
+        }
+    }
+
+    private static int savings(List<Entry> model, int index) {
+        var entry = model.get(index);
+        var before = index == 0 ? START : model.get(index - 1).sensor.getPosition();
+        var after = index == model.size() - 1 ? START : model.get(index + 1).sensor.getPosition();
+        var position = entry.sensor.getPosition();
+        var movesIn = entry.movesIn >= 0 ? entry.movesIn : estimate(before, position);
+        var movesOut = entry.movesOut >= 0 ? entry.movesOut : estimate(position, after);
+        var bypass = model.size() == 1 ? 0 : estimate(before, after);
+        return movesIn + movesOut - bypass;
+    }
+
+    private static int estimate(Point start, Point goal) {
+        return (int) Math.round(Math.abs(goal.longitude() - start.longitude()) / UNIT);
+    }
+
+    private static int hopEstimate(Point start, Point goal) {
+        var units = estimate(start, goal);
+        return units == 1 ? 1 : units * 10;
+    }
+
+    private static Sensor sensor(int units) {
+        return new Sensor(Point.fromLngLat(units * UNIT, 0), 50.0, "100.0", "sensor.at." + units);
+    }
+
+    private static List<Path> paths(int... moves) {
+        var paths = new ArrayList<Path>();
+        for (var count : moves) {
+            paths.add(path(count));
+        }
+        return paths;
+    }
+
+    // Only the number of moves of a flown path matters to the queue
+    private static Path path(int moves) {
+        var path = new Path(START, MOVE_MODEL);
+        for (int i = 0; i < moves; i++) {
+            path = path.extend(0);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,181 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Stands in for the webserver on a port of its own. Every date has the same few sensors a short way from the drone's
+ * usual start, unless marked missing. The no fly zones can be changed and given validators, and a conditional request
+ * matching them is answered with 304 as a real webserver would. Requests are counted by path, and map requests can be
+ * held until released to keep a planner busy.
+ */
+class FakeWebserver implements AutoCloseable {
+
+    static final double START_LNG = -3.1878;
+    static final double START_LAT = 55.9444;
+    // What3Words locations and their positions as {longitude, latitude}
+    static final Map<String, double[]> SENSORS = Map.of(
+            "first.fake.sensor", new double[] {START_LNG + 0.001, START_LAT},
+            "second.fake.sensor", new double[] {START_LNG + 0.001, START_LAT + 0.001},
+            "third.fake.sensor", new double[] {START_LNG, START_LAT + 0.001});
+    static final String NO_ZONES = "{\"type\":\"FeatureCollection\",\"features\":[]}";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private final Set<String> missingDates = ConcurrentHashMap.newKeySet();
+    private volatile String noFlyZones = NO_ZONES;
+    private volatile String eTag;
+    private volatile String lastModified;
+    private volatile String lastIfNoneMatch;
+    private volatile String lastIfModifiedSince;
+    // While held, map requests count down mapRequestArrived and then wait for mapGate to open
+    private volatile CountDownLatch mapGate;
+    private volatile CountDownLatch mapRequestArrived;
+
+    FakeWebserver() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        // Held requests mustn't stop others being answered
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    int getRequestCount(String path) {
+        var count = requestCounts.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    static String getMapPath(String day, String month, String year) {
+        return "/maps/" + year + "/" + month + "/" + day + "/air-quality-data.json";
+    }
+
+    void setMissing(String day, String month, String year) {
+        missingDates.add(getMapPath(day, month, year));
+    }
+
+    void setNoFlyZones(String noFlyZones, String eTag, String lastModified) {
+        this.noFlyZones = noFlyZones;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    // The validators sent with the last request for the no fly zones, null where none was sent
+    String getLastIfNoneMatch() {
+        return lastIfNoneMatch;
+    }
+
+    String getLastIfModifiedSince() {
+        return lastIfModifiedSince;
+    }
+
+    // Makes map requests wait until released, returning a latch counted down by the given number of them arriving
+    CountDownLatch holdMaps(int arrivals) {
+        mapRequestArrived = new CountDownLatch(arrivals);
+        mapGate = new CountDownLatch(1);
+        return mapRequestArrived;
+    }
+
+    void releaseMaps() {
+        var gate = mapGate;
+        mapGate = null;
+        if (gate != null) {
+            gate.countDown();
+        }
+    }
+
+    @Override
+    public void close() {
+        releaseMaps();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            var path = exchange.getRequestURI().getPath();
+            requestCounts.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+            if (path.startsWith("/maps/")) {
+                handleMap(exchange, path);
+            } else if (path.startsWith("/words/")) {
+                var location = path.substring("/words/".length(), path.length() - "/details.json".length()).replace('/', '.');
+                var position = SENSORS.get(location);
+                if (position == null) {
+                    send(exchange, 404, "");
+                } else {
+                    send(exchange, 200, "{\"coordinates\": {\"lng\": " + position[0] + ", \"lat\": " + position[1] + "}}");
+                }
+            } else if (path.equals("/buildings/no-fly-zones.geojson")) {
+                handleNoFlyZones(exchange);
+            } else {
+                send(exchange, 404, "");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMap(HttpExchange exchange, String path) throws IOException, InterruptedException {
+        var gate = mapGate;
+        if (gate != null) {
+            mapRequestArrived.countDown();
+            gate.await();
+        }
+        if (missingDates.contains(path)) {
+            send(exchange, 404, "");
+            return;
+        }
+        var entries = new StringBuilder("[");
+        for (var location : SENSORS.keySet()) {
+            entries.append(entries.length() > 1 ? ", " : "");
+            entries.append("{\"location\": \"").append(location).append("\", \"battery\": 90.0, \"reading\": \"100.0\"}");
+        }
+        send(exchange, 200, entries.append("]").toString());
+    }
+
+    // Like a real webserver, If-None-Match decides when it is sent, and otherwise If-Modified-Since
+    private void handleNoFlyZones(HttpExchange exchange) throws IOException {
+        var headers = exchange.getRequestHeaders();
+        lastIfNoneMatch = headers.getFirst("If-None-Match");
+        lastIfModifiedSince = headers.getFirst("If-Modified-Since");
+        var notModified = lastIfNoneMatch != null ? lastIfNoneMatch.equals(eTag)
+                : lastIfModifiedSince != null && lastIfModifiedSince.equals(lastModified);
+        if (eTag != null) {
+            exchange.getResponseHeaders().set("ETag", eTag);
+        }
+        if (lastModified != null) {
+            exchange.getResponseHeaders().set("Last-Modified", lastModified);
+        }
+        if (notModified) {
+            exchange.sendResponseHeaders(304, -1);
+        } else {
+            send(exchange, 200, noFlyZones);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (var output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+/*
+ * Fields stand in for beam searches when estimating the moves between sensors, so they should seldom say a leg needs
+ * more moves than beam search flies it in. Positions are moved to cell centres after every move, so a field can't
+ * always be a lower bound, but it should never be more than a move over, and only rarely that.
+ */
+public class MoveCountGridTest {
+
+    private static final MoveModel MOVE_MODEL = new MoveModel(App.MOVE_DISTANCE, 10);
+    private static final double CELL_SIZE = App.MOVE_DISTANCE * 0.5;
+
+    @Test
+    public void seldomMoreThanBeamSearch() {
+        var random = new Random(20);
+        var legs = 0;
+        var over = 0;
+        for (int map = 0; map < 12; map++) {
+            var noFlyZones = App.createNoFlyZoneIndex(NoFlyZoneIndexTest.randomZones(random, 1 + random.nextInt(8)));
+            var grid = new MoveCountGrid(noFlyZones, MOVE_MODEL, App.MINIMUM_LONGITUDE, App.MAXIMUM_LONGITUDE,
+                    App.MINIMUM_LATITUDE, App.MAXIMUM_LATITUDE, CELL_SIZE);
+            for (int i = 0; i < 10; i++) {
+                var start = VisibilityGraphTest.randomPosition(random);
+                var goal = VisibilityGraphTest.randomPosition(random);
+                var path = VisibilityGraphTest.fly(start, goal, noFlyZones);
+                // Reading a sensor through a wall is left out, the field's goal cells can be on the wrong side of it
+                if (path == null || !VisibilityGraphTest.canSee(noFlyZones, path.getEndPosition(), goal)) {
+                    continue;
+                }
+                legs++;
+                var moveCount = grid.getField(goal, App.READ_DISTANCE).getMoveCount(start.longitude(), start.latitude());
+                assertTrue("leg " + start + " to " + goal + " counted " + moveCount + " but flown in " + path.getMoveCount(),
+                        moveCount <= path.getMoveCount() + 1);
+                over += moveCount > path.getMoveCount() ? 1 : 0;
+            }
+        }
+        assertTrue(legs > 100);
+        assertTrue(over + " of " + legs + " legs counted more moves than flown", over * 20 <= legs);
+    }
+
+    /*
+     * A position just outside a wall whose cell's centre is inside the zone. The goal is two moves away across open
+     * space, but from the centre the drone would first have to get out of the zone on its far side.
+     */
+    @Test
+    public void countsFromACentreThePositionCanSee() {
+        var zone = Polygon.fromLngLats(List.of(List.of(Point.fromLngLat(0.0011, 0.0005), Point.fromLngLat(0.002, 0.0005),
+                Point.fromLngLat(0.002, 0.0025), Point.fromLngLat(0.0011, 0.0025), Point.fromLngLat(0.0011, 0.0005))));
+        var noFlyZones = App.createNoFlyZoneIndex(List.of(new NoFlyZone(zone)));
+        var grid = new MoveCountGrid(noFlyZones, MOVE_MODEL, 0, 0.003, 0, 0.003, CELL_SIZE);
+        var field = grid.getField(Point.fromLngLat(0.0002, 0.0015), App.READ_DISTANCE);
+
+        // The cell from 0.00105 to 0.0012 has its centre at 0.001125, inside the zone
+        assertEquals(2, field.getMoveCount(0.001, 0.0015));
+        assertEquals(2, field.getMoveCount(0.00107, 0.0015));
+    }
+}
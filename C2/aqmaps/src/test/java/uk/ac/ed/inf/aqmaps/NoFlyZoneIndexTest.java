@@ -0,0 +1,133 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+/*
+ * The index should give exactly the same answer as checking every edge of every zone in turn, for any cell size.
+ * Zones are random star shaped polygons, so some corners are reflex, along with axis aligned rectangles, whose
+ * horizontal and vertical edges are the ones most likely to be missed by a cell boundary.
+ */
+public class NoFlyZoneIndexTest {
+
+    private static final double CENTRE_LNG = -3.1884;
+    private static final double CENTRE_LAT = 55.9444;
+    private static final double MOVE_DISTANCE = 0.0003;
+
+    @Test
+    public void matchesCheckingEveryEdge() {
+        var random = new Random(3);
+        for (int map = 0; map < 20; map++) {
+            var noFlyZones = randomZones(random, 1 + random.nextInt(8));
+            for (var cellSize : new double[] {MOVE_DISTANCE / 4, MOVE_DISTANCE, MOVE_DISTANCE * 10, 1}) {
+                var index = new NoFlyZoneIndex(noFlyZones, cellSize);
+                for (int i = 0; i < 2000; i++) {
+                    var move = randomMove(random, noFlyZones);
+                    assertEquals("map " + map + " cell size " + cellSize + " move " + List.of(move[0], move[1], move[2], move[3]),
+                            isCrossedByAnyEdge(noFlyZones, move), index.isCrossedByMove(move[0], move[1], move[2], move[3]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesEachZoneInTurn() {
+        var random = new Random(4);
+        var noFlyZones = randomZones(random, 6);
+        var index = new NoFlyZoneIndex(noFlyZones, MOVE_DISTANCE);
+        for (int i = 0; i < 20000; i++) {
+            var move = randomMove(random, noFlyZones);
+            var crossed = false;
+            for (var noFlyZone : noFlyZones) {
+                crossed |= noFlyZone.isCrossedByMove(move[0], move[1], move[2], move[3]);
+            }
+            assertEquals(crossed, index.isCrossedByMove(move[0], move[1], move[2], move[3]));
+        }
+    }
+
+    @Test
+    public void emptyIndexAllowsEveryMove() {
+        var index = new NoFlyZoneIndex(List.of(), MOVE_DISTANCE);
+        assertFalse(index.isCrossedByMove(CENTRE_LNG, CENTRE_LAT, CENTRE_LNG + MOVE_DISTANCE, CENTRE_LAT));
+    }
+
+    // The definition of crossing a zone, see NoFlyZone.isEdgeCrossedByMove
+    private static boolean isCrossedByAnyEdge(List<NoFlyZone> noFlyZones, double[] move) {
+        for (var noFlyZone : noFlyZones) {
+            var boundary = noFlyZone.getBoundaryPoints();
+            for (int i = 0; i < boundary.size() - 1; i++) {
+                if (NoFlyZone.isEdgeCrossedByMove(move[0], move[1], move[2], move[3], boundary.get(i).longitude(),
+                        boundary.get(i).latitude(), boundary.get(i + 1).longitude(), boundary.get(i + 1).latitude(),
+                        NoFlyZone.DEFAULT_FLOAT_OFFSET)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static List<NoFlyZone> randomZones(Random random, int count) {
+        var noFlyZones = new ArrayList<NoFlyZone>();
+        for (int i = 0; i < count; i++) {
+            var centreLng = CENTRE_LNG + (random.nextDouble() - 0.5) * 0.008;
+            var centreLat = CENTRE_LAT + (random.nextDouble() - 0.5) * 0.0035;
+            var points = new ArrayList<Point>();
+            if (random.nextBoolean()) {
+                var halfWidth = 0.0001 + random.nextDouble() * 0.0006;
+                var halfHeight = 0.0001 + random.nextDouble() * 0.0004;
+                points.add(Point.fromLngLat(centreLng - halfWidth, centreLat - halfHeight));
+                points.add(Point.fromLngLat(centreLng + halfWidth, centreLat - halfHeight));
+                points.add(Point.fromLngLat(centreLng + halfWidth, centreLat + halfHeight));
+                points.add(Point.fromLngLat(centreLng - halfWidth, centreLat + halfHeight));
+            } else {
+                var corners = 3 + random.nextInt(8);
+                for (int corner = 0; corner < corners; corner++) {
+                    var angle = 2 * Math.PI * corner / corners;
+                    var radius = 0.0001 + random.nextDouble() * 0.0006;
+                    points.add(Point.fromLngLat(centreLng + radius * Math.cos(angle), centreLat + radius * Math.sin(angle)));
+                }
+            }
+            points.add(points.get(0));
+            noFlyZones.add(new NoFlyZone(Polygon.fromLngLats(List.of(points))));
+        }
+        return noFlyZones;
+    }
+
+    /*
+     * A move as {start longitude, start latitude, end longitude, end latitude}. Mostly drone moves from random
+     * positions, but also long moves, moves of no length, and moves from a corner along or beside an edge.
+     */
+    static double[] randomMove(Random random, List<NoFlyZone> noFlyZones) {
+        var kind = random.nextInt(10);
+        if (kind < 2) {
+            var boundary = noFlyZones.get(random.nextInt(noFlyZones.size())).getBoundaryPoints();
+            var corner = random.nextInt(boundary.size() - 1);
+            var start = boundary.get(corner);
+            var next = boundary.get(corner + 1);
+            // Along the edge, part of the way along it, or past its end
+            var fraction = kind == 0 ? 1 : random.nextDouble() * 2;
+            return new double[] {start.longitude(), start.latitude(), start.longitude() + fraction * (next.longitude() - start.longitude()),
+                    start.latitude() + fraction * (next.latitude() - start.latitude())};
+        }
+
+        var startLng = CENTRE_LNG + (random.nextDouble() - 0.5) * 0.01;
+        var startLat = CENTRE_LAT + (random.nextDouble() - 0.5) * 0.005;
+        if (kind == 2) {
+            return new double[] {startLng, startLat, startLng, startLat};
+        } else if (kind == 3) {
+            return new double[] {startLng, startLat, CENTRE_LNG + (random.nextDouble() - 0.5) * 0.01,
+                    CENTRE_LAT + (random.nextDouble() - 0.5) * 0.005};
+        }
+        var angle = Math.toRadians(10 * random.nextInt(36));
+        return new double[] {startLng, startLat, startLng + MOVE_DISTANCE * Math.cos(angle), startLat + MOVE_DISTANCE * Math.sin(angle)};
+    }
+}
@@ -0,0 +1,136 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mapbox.geojson.Feature;
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.LineString;
+import com.mapbox.geojson.Point;
+
+/*
+ * GeoJsonWriter and FlightPathWriter replaced building the whole output in memory, and their output should be exactly
+ * what the code they replaced gave. Each test writes a small fixed flight both ways and compares the text.
+ */
+public class OutputWritersTest {
+
+    private static final MoveModel MOVE_MODEL = new MoveModel(0.0003, 10);
+    private static final Point START = Point.fromLngLat(-3.1878, 55.9444);
+
+    @Test
+    public void readingsMatchFeatureCollectionToJson() throws IOException {
+        var paths = flight();
+        var sensors = sensors();
+        var output = new StringWriter();
+        try (var writer = new GeoJsonWriter(output)) {
+            writer.writeFlightPath(START, paths);
+            for (var sensor : sensors) {
+                writer.writeFeature(sensor.toGeojsonFeature());
+            }
+        }
+
+        // As App.writeReadings used to build it
+        var features = new ArrayList<Feature>();
+        features.add(Feature.fromGeometry(LineString.fromLngLats(getPositions(START, paths))));
+        for (var sensor : sensors) {
+            features.add(sensor.toGeojsonFeature());
+        }
+        assertEquals(FeatureCollection.fromFeatures(features).toJson(), output.toString());
+    }
+
+    @Test
+    public void severalFlightsMatchFeatureCollectionToJson() throws IOException {
+        // Two drones, one of which never left the start, as FleetPlanner writes them
+        var second = Point.fromLngLat(-3.1868, 55.9454);
+        var output = new StringWriter();
+        try (var writer = new GeoJsonWriter(output)) {
+            writer.writeFlightPath(START, flight());
+            writer.writeFlightPath(second, List.of());
+        }
+
+        var features = List.of(Feature.fromGeometry(LineString.fromLngLats(getPositions(START, flight()))),
+                Feature.fromGeometry(LineString.fromLngLats(List.of(second))));
+        assertEquals(FeatureCollection.fromFeatures(features).toJson(), output.toString());
+        // An empty collection is still a valid one
+        output = new StringWriter();
+        new GeoJsonWriter(output).close();
+        assertEquals(FeatureCollection.fromFeatures(new ArrayList<Feature>()).toJson(), output.toString());
+    }
+
+    @Test
+    public void flightPathMatchesTheOldLineFormat() throws IOException {
+        var paths = flight();
+        var sensors = sensors();
+        var output = new StringWriter();
+        try (var writer = new FlightPathWriter(output, START)) {
+            App.writePaths(writer, paths, sensors);
+        }
+
+        // As App.writeFlightPath used to write it, a string per line
+        var expected = new StringBuilder();
+        var lineNumber = 1;
+        var previousPosition = START;
+        for (int i = 0; i < paths.size(); i++) {
+            var positions = paths.get(i).getPositions();
+            var angles = paths.get(i).getMoveAngles();
+            for (int j = 0; j < positions.size(); j++) {
+                expected.append(lineNumber + "," + previousPosition.longitude() + "," + previousPosition.latitude() + ","
+                        + angles.get(j) + "," + positions.get(j).longitude() + "," + positions.get(j).latitude());
+                if (j == positions.size() - 1 && i != paths.size() - 1) {
+                    expected.append("," + sensors.get(i).getWhatThreeWords() + "\n");
+                } else {
+                    expected.append(",null\n");
+                }
+                lineNumber++;
+                previousPosition = positions.get(j);
+            }
+        }
+        assertEquals(expected.toString(), output.toString());
+
+        var lines = output.toString().split("\n");
+        assertEquals(8, lines.length);
+        assertEquals("1,-3.1878,55.9444,0,-3.1875,55.9444,null", lines[0]);
+        assertEquals("first.fake.sensor", lines[2].substring(lines[2].lastIndexOf(',') + 1));
+        assertEquals("second.fake.sensor", lines[4].substring(lines[4].lastIndexOf(',') + 1));
+    }
+
+    // Three moves to the first sensor, two to the second and three back, turning through angles of every kind
+    private static List<Path> flight() {
+        var paths = new ArrayList<Path>();
+        var position = START;
+        for (var directions : new int[][] {{0, 3, 9}, {18, 35}, {22, 27, 31}}) {
+            var path = new Path(position, MOVE_MODEL);
+            for (var direction : directions) {
+                path = path.extend(direction);
+            }
+            paths.add(path);
+            position = path.getEndPosition();
+        }
+        return paths;
+    }
+
+    // A sensor read normally, one with a low battery and one never visited, whose properties stay null
+    private static List<Sensor> sensors() {
+        var first = new Sensor(Point.fromLngLat(-3.1872, 55.9448), 90.0, "100.0", "first.fake.sensor");
+        var second = new Sensor(Point.fromLngLat(-3.1875, 55.9449), 5.0, "200.0", "second.fake.sensor");
+        var third = new Sensor(Point.fromLngLat(-3.1858, 55.9464), 90.0, "30.0", "third.fake.sensor");
+        first.visit();
+        second.visit();
+        return List.of(first, second, third);
+    }
+
+    private static List<Point> getPositions(Point start, List<Path> paths) {
+        var positions = new ArrayList<Point>();
+        positions.add(start);
+        for (var path : paths) {
+            positions.addAll(path.getPositions());
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,181 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.mapbox.geojson.FeatureCollection;
+
+/*
+ * Runs the server on a free port in front of a FakeWebserver and talks to it over HTTP, as a client would.
+ */
+public class PlanningServerTest {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+
+    private FakeWebserver webserver;
+    private PlanningServer server;
+    private HttpClient http;
+
+    @Before
+    public void setUp() throws IOException {
+        webserver = new FakeWebserver();
+        http = HttpClient.newHttpClient();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+        webserver.close();
+    }
+
+    @Test
+    public void plansTheRequestedDay() throws IOException, InterruptedException {
+        startServer(1, 4);
+        var responce = get(planPath("01-01-2020"));
+        assertEquals(200, responce.statusCode());
+        assertEquals("application/json", responce.headers().firstValue("Content-Type").orElse(null));
+
+        var plan = JsonParser.parseString(responce.body()).getAsJsonObject();
+        assertEquals(3, plan.get("sensorsVisited").getAsInt());
+        var moves = plan.get("moves").getAsInt();
+        assertTrue(moves > 0 && moves <= App.MAX_MOVES);
+        // One line per move, three of which read a sensor
+        var lines = plan.get("flightpath").getAsString().split("\n");
+        assertEquals(moves, lines.length);
+        var readings = 0;
+        for (var line : lines) {
+            readings += line.endsWith(",null") ? 0 : 1;
+        }
+        assertEquals(3, readings);
+        // A marker for each sensor and the line flown
+        var features = FeatureCollection.fromJson(plan.get("readings").toString()).features();
+        assertEquals(4, features.size());
+    }
+
+    @Test
+    public void answersBadRequestsAndMissingDays() throws IOException, InterruptedException {
+        webserver.setMissing("02", "01", "2020");
+        startServer(1, 4);
+        assertEquals(404, get(planPath("02-01-2020")).statusCode());
+        assertEquals(400, get(planPath("2020-01-02")).statusCode());
+        assertEquals(400, get("/plan?date=02-01-2020&latitude=55.9444").statusCode());
+        var post = HttpRequest.newBuilder(uri(planPath("01-01-2020"))).POST(HttpRequest.BodyPublishers.noBody()).build();
+        assertEquals(405, http.send(post, BodyHandlers.ofString()).statusCode());
+
+        var stats = getStats();
+        assertEquals(0, stats.get("planned").getAsLong());
+        assertEquals(1, stats.get("notFound").getAsLong());
+        assertEquals(3, stats.get("badRequests").getAsLong());
+        assertEquals(0, stats.get("rejected").getAsLong());
+    }
+
+    /*
+     * With one worker held up fetching its day and the one place in the queue taken, a third request is turned away
+     * straight away. Once the webserver answers, the first two are planned as normal.
+     */
+    @Test
+    public void turnsRequestsAwayWhenTheQueueIsFull() throws Exception {
+        startServer(1, 1);
+        var arrived = webserver.holdMaps(1);
+        var first = getAsync(planPath("03-01-2020"));
+        assertTrue(arrived.await(10, TimeUnit.SECONDS));
+        var second = getAsync(planPath("04-01-2020"));
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (getStats().get("queued").getAsInt() < 1) {
+            assertTrue("the second request was never queued", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+
+        var third = get(planPath("05-01-2020"));
+        assertEquals(503, third.statusCode());
+        var stats = getStats();
+        assertEquals(1, stats.get("planning").getAsInt());
+        assertEquals(1, stats.get("rejected").getAsLong());
+
+        webserver.releaseMaps();
+        assertEquals(200, first.get(10, TimeUnit.SECONDS).statusCode());
+        assertEquals(200, second.get(10, TimeUnit.SECONDS).statusCode());
+        stats = getStats();
+        assertEquals(2, stats.get("planned").getAsLong());
+        assertEquals(0, stats.get("queued").getAsInt());
+    }
+
+    /*
+     * Each day's sensors are fetched once while the day is among the last DAYS_KEPT asked for. Asking for a day again
+     * makes it the most recently used, so the next new day pushes out the one asked for longest ago instead.
+     */
+    @Test
+    public void keepsTheMostRecentlyUsedDays() throws IOException, InterruptedException {
+        startServer(1, 4);
+        var first = LocalDate.of(2021, 1, 1);
+        for (int i = 0; i < PlanningServer.DAYS_KEPT; i++) {
+            assertEquals(200, get(planPath(first.plusDays(i))).statusCode());
+        }
+        assertEquals(200, get(planPath(first)).statusCode());
+        assertEquals(1, getMapRequests(first));
+
+        // Now the second day is the least recently used
+        assertEquals(200, get(planPath(first.plusDays(PlanningServer.DAYS_KEPT))).statusCode());
+        assertEquals(200, get(planPath(first)).statusCode());
+        assertEquals(1, getMapRequests(first));
+        assertEquals(200, get(planPath(first.plusDays(1))).statusCode());
+        assertEquals(2, getMapRequests(first.plusDays(1)));
+    }
+
+    private void startServer(int workers, int queueCapacity) throws IOException, InterruptedException {
+        var client = new WebserverClient(webserver.getUrl());
+        var noFlyZones = App.createNoFlyZoneIndex(client.parseNoFlyZones(WebserverClient.await(client.fetchNoFlyZones())));
+        server = new PlanningServer(client, noFlyZones, new PlannerOptions(), workers, queueCapacity);
+        server.start(0);
+    }
+
+    private int getMapRequests(LocalDate date) {
+        return webserver.getRequestCount(FakeWebserver.getMapPath(String.format("%02d", date.getDayOfMonth()),
+                String.format("%02d", date.getMonthValue()), String.valueOf(date.getYear())));
+    }
+
+    private static String planPath(LocalDate date) {
+        return planPath(date.format(DATE_FORMAT));
+    }
+
+    private static String planPath(String date) {
+        return "/plan?date=" + date + "&latitude=" + FakeWebserver.START_LAT + "&longitude=" + FakeWebserver.START_LNG;
+    }
+
+    private JsonObject getStats() throws IOException, InterruptedException {
+        var responce = get("/stats");
+        assertEquals(200, responce.statusCode());
+        return JsonParser.parseString(responce.body()).getAsJsonObject();
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return http.send(HttpRequest.newBuilder(uri(path)).build(), BodyHandlers.ofString());
+    }
+
+    private CompletableFuture<HttpResponse<String>> getAsync(String path) {
+        return http.sendAsync(HttpRequest.newBuilder(uri(path)).build(), BodyHandlers.ofString());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getPort() + path);
+    }
+}
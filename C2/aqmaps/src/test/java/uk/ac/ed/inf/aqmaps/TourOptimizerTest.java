@@ -0,0 +1,140 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * The tour should always visit every index exactly once, and overall should be shorter than the plain 2-opt the
+ * planner used before, which is kept here as a reference.
+ */
+public class TourOptimizerTest {
+
+    @Test
+    public void visitsEveryIndexOnce() {
+        var random = new Random(12);
+        for (int size = 1; size <= 60; size++) {
+            assertPermutation(TourOptimizer.findTour(planarTable(random, size)));
+            assertPermutation(TourOptimizer.findTour(randomTable(random, size)));
+        }
+        for (var size : new int[] {100, 250}) {
+            assertPermutation(TourOptimizer.findTour(planarTable(random, size)));
+        }
+    }
+
+    @Test
+    public void handlesEqualDistances() {
+        // Every point in the same place, and every point the same distance from every other
+        for (var distance : new int[] {0, 1}) {
+            var distances = new int[40][40];
+            for (int i = 0; i < 40; i++) {
+                for (int j = 0; j < 40; j++) {
+                    distances[i][j] = i == j ? 0 : distance;
+                }
+            }
+            assertPermutation(TourOptimizer.findTour(distances));
+        }
+    }
+
+    @Test
+    public void sameTableGivesSameTour() {
+        var random = new Random(13);
+        for (int i = 0; i < 10; i++) {
+            var distances = planarTable(random, 20 + random.nextInt(150));
+            assertArrayEquals(TourOptimizer.findTour(distances), TourOptimizer.findTour(distances));
+        }
+    }
+
+    @Test
+    public void shorterThanTwoOptOverall() {
+        var random = new Random(14);
+        long total = 0;
+        long twoOptTotal = 0;
+        for (int i = 0; i < 40; i++) {
+            var distances = planarTable(random, 10 + random.nextInt(140));
+            var length = TourOptimizer.getLength(distances, TourOptimizer.findTour(distances));
+            var twoOptLength = TourOptimizer.getLength(distances, twoOpt(distances));
+            total += length;
+            twoOptTotal += twoOptLength;
+            // Both are heuristics so 2-opt sometimes wins on one table, by up to about six percent
+            assertTrue("table " + i + " length " + length + " 2-opt " + twoOptLength, length <= twoOptLength * 1.1);
+        }
+        // Over many tables the tours are a few percent shorter
+        assertTrue("total " + total + " 2-opt " + twoOptTotal, total <= twoOptTotal * 0.98);
+    }
+
+    @Test
+    public void lengthIsRoundTrip() {
+        var distances = new int[][] {{0, 1, 5}, {1, 0, 2}, {5, 2, 0}};
+        assertEquals(8, TourOptimizer.getLength(distances, new int[] {0, 1, 2}));
+        assertEquals(8, TourOptimizer.getLength(distances, new int[] {2, 1, 0}));
+    }
+
+    private static void assertPermutation(int[] tour) {
+        var seen = new boolean[tour.length];
+        for (var index : tour) {
+            assertTrue(index >= 0 && index < tour.length && !seen[index]);
+            seen[index] = true;
+        }
+    }
+
+    // Move counts between random points, like the planner's estimates
+    private static int[][] planarTable(Random random, int size) {
+        var points = new double[size][2];
+        for (var point : points) {
+            point[0] = random.nextDouble();
+            point[1] = random.nextDouble();
+        }
+        var distances = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                distances[i][j] = (int) Math.ceil(Math.hypot(points[i][0] - points[j][0], points[i][1] - points[j][1]) * 30);
+            }
+        }
+        return distances;
+    }
+
+    // Symmetric but otherwise random, so not even the triangle inequality holds
+    private static int[][] randomTable(Random random, int size) {
+        var distances = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < i; j++) {
+                distances[i][j] = random.nextInt(50);
+                distances[j][i] = distances[i][j];
+            }
+        }
+        return distances;
+    }
+
+    // The planner's tour before TourOptimizer, reversing segments while doing so shortens the tour
+    private static int[] twoOpt(int[][] distances) {
+        var order = new int[distances.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        var improvement = true;
+        while (improvement) {
+            improvement = false;
+            for (int i = 0; i < order.length - 2; i++) {
+                for (int j = i + 1; j < order.length - 1; j++) {
+                    var before = order[(i - 1 + order.length) % order.length];
+                    var after = order[(j + 1) % order.length];
+                    if (distances[before][order[j]] + distances[order[i]][after] < distances[before][order[i]] + distances[order[j]][after]) {
+                        improvement = true;
+                        for (int i2 = i, j2 = j; i2 < j2; i2++, j2--) {
+                            var temp = order[i2];
+                            order[i2] = order[j2];
+                            order[j2] = temp;
+                        }
+                    }
+                }
+            }
+        }
+        return order;
+    }
+}
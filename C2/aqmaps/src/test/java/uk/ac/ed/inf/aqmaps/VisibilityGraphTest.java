@@ -0,0 +1,103 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.mapbox.geojson.Point;
+
+/*
+ * The beam search's estimate of the moves still needed, and the lower bound searchLeg compares each leg with before
+ * trying a wider beam, both come from these distances, so they must never be more than the drone really has to fly.
+ * Legs are flown by beam search between random positions among seeded random zones, and the distance is checked at
+ * every position along each leg.
+ */
+public class VisibilityGraphTest {
+
+    private static final double WAYPOINT_OFFSET = App.MOVE_DISTANCE * 0.01;
+
+    @Test
+    public void neverMoreThanTheDistanceFlown() {
+        var random = new Random(19);
+        var legs = 0;
+        for (int map = 0; map < 12; map++) {
+            var noFlyZones = App.createNoFlyZoneIndex(NoFlyZoneIndexTest.randomZones(random, 1 + random.nextInt(8)));
+            var graph = new VisibilityGraph(noFlyZones, App.MINIMUM_LONGITUDE, App.MAXIMUM_LONGITUDE, App.MINIMUM_LATITUDE,
+                    App.MAXIMUM_LATITUDE, WAYPOINT_OFFSET);
+            for (int i = 0; i < 10; i++) {
+                var start = randomPosition(random);
+                var goal = randomPosition(random);
+                var path = fly(start, goal, noFlyZones);
+                if (path == null) {
+                    continue;
+                }
+                legs++;
+                var distances = graph.getDistancesTo(goal);
+                var positions = getPositions(start, path);
+
+                // What searchLeg takes as the fewest moves the leg could need
+                var lowerBound = (int) Math.ceil((distances.get(start.longitude(), start.latitude()) - App.READ_DISTANCE) / App.MOVE_DISTANCE);
+                assertTrue("leg " + start + " to " + goal, lowerBound <= path.getMoveCount());
+
+                // A sensor can be read through a wall, from where the way around is further than the reading distance
+                if (!canSee(noFlyZones, path.getEndPosition(), goal)) {
+                    continue;
+                }
+                for (int j = 0; j < positions.size(); j++) {
+                    var position = positions.get(j);
+                    var flown = (positions.size() - 1 - j) * App.MOVE_DISTANCE;
+                    assertTrue("leg " + start + " to " + goal + " at move " + j,
+                            distances.get(position.longitude(), position.latitude()) - App.READ_DISTANCE <= flown + 1e-12);
+                }
+            }
+        }
+        // Most random legs can be flown, so the test isn't passing by skipping them
+        assertTrue(legs > 100);
+    }
+
+    @Test
+    public void straightLineWhenTheGoalCanBeSeen() {
+        var random = new Random(20);
+        var noFlyZones = App.createNoFlyZoneIndex(NoFlyZoneIndexTest.randomZones(random, 6));
+        var graph = new VisibilityGraph(noFlyZones, App.MINIMUM_LONGITUDE, App.MAXIMUM_LONGITUDE, App.MINIMUM_LATITUDE,
+                App.MAXIMUM_LATITUDE, WAYPOINT_OFFSET);
+        for (int i = 0; i < 500; i++) {
+            var start = randomPosition(random);
+            var goal = randomPosition(random);
+            var distance = graph.getDistancesTo(goal).get(start.longitude(), start.latitude());
+            var straight = MoveModel.distance(start.longitude(), start.latitude(), goal.longitude(), goal.latitude());
+            if (canSee(noFlyZones, start, goal)) {
+                assertEquals(straight, distance, 0);
+            } else {
+                assertTrue(distance >= straight);
+            }
+        }
+    }
+
+    // A position anywhere in App's confinement area
+    static Point randomPosition(Random random) {
+        return Point.fromLngLat(App.MINIMUM_LONGITUDE + random.nextDouble() * (App.MAXIMUM_LONGITUDE - App.MINIMUM_LONGITUDE),
+                App.MINIMUM_LATITUDE + random.nextDouble() * (App.MAXIMUM_LATITUDE - App.MINIMUM_LATITUDE));
+    }
+
+    // Flies to within reading distance of the goal as App's drone would with its default beam, null if it can't
+    static Path fly(Point start, Point goal, NoFlyZoneIndex noFlyZones) {
+        return App.createDrone(start, new PlannerOptions()).findPath(start, goal, App.READ_DISTANCE, 100, 1, noFlyZones);
+    }
+
+    static boolean canSee(NoFlyZoneIndex noFlyZones, Point from, Point to) {
+        return !noFlyZones.isCrossedByMove(from.longitude(), from.latitude(), to.longitude(), to.latitude());
+    }
+
+    private static List<Point> getPositions(Point start, Path path) {
+        var positions = new ArrayList<Point>();
+        positions.add(start);
+        positions.addAll(path.getPositions());
+        return positions;
+    }
+}